@@ -2,10 +2,13 @@ package org.apache.coyote.ajp.client;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public abstract class AJPClient
 {
@@ -17,7 +20,6 @@ public abstract class AJPClient
 	protected String user_agent;
 	protected String urls[];
 	protected ClientContext context = new ClientContext();
-	protected AjpProcessor[] processors;
 	
 	
 	abstract protected void usage();
@@ -87,36 +89,61 @@ public abstract class AJPClient
 	
 	protected void init() throws Exception{
 		context.init();
-		Set<RequestContext> ctxs=context.getRequestContexts();
-		processors=new AjpProcessor[ctxs.size()];
-		
-		int index=0;
-		for(Iterator<RequestContext> it=ctxs.iterator();it.hasNext();){
-			AjpProcessor processor=new AjpProcessor(it.next());
-			processors[index++]=processor;
-		}
 	}
 	
-	protected void run()
+	/**
+	 * Execute the requests and wait for them to complete.
+	 * @throws IOException If a request failed or was aborted, after all
+	 *         requests completed.
+	 */
+	protected void run() throws IOException
 	{
-		for( AjpProcessor processor:processors )
-		{
-			new Thread(processor).start();
-		}
-		
-		synchronized(context)
+		AjpScheduler scheduler = AjpScheduler.create( context );
+		try
 		{
-			while(context.getProcessorCount() > 0)
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for( RequestContext ctx:context.getRequestContexts() )
+			{
+				futures.addAll( scheduler.submit( ctx ) );
+			}
+			
+			IOException failure = null;
+			for( Future<?> future:futures )
 			{
 				try
 				{
-					context.wait();
+					future.get();
 				}
 				catch (InterruptedException e)
 				{
-					e.printStackTrace();
+					Thread.currentThread().interrupt();
+					break;
+				}
+				catch (ExecutionException e)
+				{
+					if( failure == null )
+					{
+						failure = new IOException( "Request failed: " + e.getCause(), e.getCause() );
+					}
+				}
+				catch (CancellationException e)
+				{
+					// Aborted by the engine, e.g. when a selector thread died.
+					if( failure == null )
+					{
+						failure = new IOException( "Request aborted" );
+					}
 				}
 			}
+			if( failure != null )
+			{
+				throw failure;
+			}
+		}
+		finally
+		{
+			scheduler.shutdown();
+			context.close();
 		}
 	}
 	
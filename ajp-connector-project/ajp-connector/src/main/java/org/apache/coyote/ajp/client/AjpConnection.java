@@ -0,0 +1,141 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.apache.coyote.ajp.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Blocking connection to an AJP connector, handed out by the
+ * {@link AjpConnectionPool}.
+ */
+class AjpConnection
+{
+	/**
+	 * CPING packet, answered by the container with a CPONG packet.
+	 */
+	private static final byte[] CPING = { 0x12, 0x34, 0x00, 0x01, 0x0A };
+	private static final int AJP13_CPONG_REPLY = 9;
+	
+	private final String key;
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final String localAddress;
+	private final String localName;
+	private long lastUsed;
+	private boolean reused;
+	
+	AjpConnection(String key, String host, int port, int timeout) throws IOException {
+		this.key=key;
+		socket=new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			socket.setSoTimeout(timeout);
+			in=socket.getInputStream();
+			out=socket.getOutputStream();
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+		InetAddress local=socket.getLocalAddress();
+		localAddress=local.getHostAddress();
+		localName=local.getHostName();
+		lastUsed=System.currentTimeMillis();
+	}
+	
+	String getKey() {
+		return key;
+	}
+	
+	InputStream getInputStream() {
+		return in;
+	}
+	
+	OutputStream getOutputStream() {
+		return out;
+	}
+	
+	String getLocalAddress() {
+		return localAddress;
+	}
+	
+	String getLocalName() {
+		return localName;
+	}
+	
+	long getLastUsed() {
+		return lastUsed;
+	}
+	
+	/**
+	 * Whether the connection was used by a previous request, so a failure
+	 * may be caused by the container having closed it in the meantime.
+	 */
+	boolean isReused() {
+		return reused;
+	}
+	
+	void released() {
+		lastUsed=System.currentTimeMillis();
+		reused=true;
+	}
+	
+	/**
+	 * Check that the container still answers on this connection with a
+	 * CPING/CPONG exchange.
+	 * @param timeout Time in milliseconds to wait for the CPONG.
+	 * @return True if the CPONG was received.
+	 */
+	boolean ping(int timeout) {
+		try {
+			int soTimeout=socket.getSoTimeout();
+			socket.setSoTimeout(timeout);
+			try {
+				out.write(CPING);
+				byte[] reply=new byte[5];
+				int pos=0;
+				while(pos < reply.length) {
+					int nr=in.read(reply, pos, reply.length-pos);
+					if(nr < 0) {
+						return false;
+					}
+					pos+=nr;
+				}
+				return reply[0] == 'A' && reply[1] == 'B' && reply[4] == AJP13_CPONG_REPLY;
+			} finally {
+				socket.setSoTimeout(soTimeout);
+			}
+		} catch(IOException e) {
+			return false;
+		}
+	}
+	
+	void close() {
+		try {
+			socket.close();
+		} catch(IOException e) {
+			// Ignore, connection is discarded.
+		}
+	}
+}
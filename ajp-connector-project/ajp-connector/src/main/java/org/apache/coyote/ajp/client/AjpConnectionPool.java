@@ -0,0 +1,253 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.apache.coyote.ajp.client;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Pool of blocking AJP connections keyed by host and port, owned by the
+ * {@link ClientContext} and shared by all its processors. The number of
+ * connections per target is limited, idle connections are closed after the
+ * idle timeout and validated with a CPING before reuse once they have been
+ * idle for the validation interval. Expired connections of all targets are
+ * closed whenever a connection is borrowed or given back.
+ */
+public class AjpConnectionPool
+{
+	/**
+	 * Default maximum number of connections per host and port.
+	 */
+	public static final int DEFAULT_MAX_PER_TARGET = 64;
+	/**
+	 * Default time in milliseconds an idle connection is kept open.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+	/**
+	 * Default time in milliseconds after which an idle connection is
+	 * validated with a CPING before it is handed out again.
+	 */
+	public static final long DEFAULT_VALIDATION_INTERVAL = 5000;
+	/**
+	 * Time in milliseconds to wait for the CPONG of a validation.
+	 */
+	private static final int CPING_TIMEOUT = 2000;
+	
+	private final Map<String,Target> targets=new HashMap<String,Target>();
+	
+	private int maxPerTarget=DEFAULT_MAX_PER_TARGET;
+	private long idleTimeout=DEFAULT_IDLE_TIMEOUT;
+	private long validationInterval=DEFAULT_VALIDATION_INTERVAL;
+	private boolean closed;
+	
+	public int getMaxPerTarget() {
+		return maxPerTarget;
+	}
+	
+	public void setMaxPerTarget(int maxPerTarget) {
+		this.maxPerTarget=maxPerTarget;
+	}
+	
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+	
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout=idleTimeout;
+	}
+	
+	public long getValidationInterval() {
+		return validationInterval;
+	}
+	
+	public void setValidationInterval(long validationInterval) {
+		this.validationInterval=validationInterval;
+	}
+	
+	/**
+	 * Borrow a connection to a host and port, reusing the most recently
+	 * released idle connection if it is still valid. Waits for a connection
+	 * to be released if the maximum per target is reached.
+	 * @param host Host.
+	 * @param port Port.
+	 * @param timeout Connect, read and wait timeout in milliseconds, 0 for none.
+	 * @param fresh true to open a new connection instead of reusing an idle one.
+	 * @return Connection, to be given back with {@link #release(AjpConnection)}
+	 *         or {@link #invalidate(AjpConnection)}.
+	 * @throws IOException If no connection can be opened.
+	 */
+	AjpConnection borrow(String host, int port, int timeout, boolean fresh) throws IOException {
+		String key=host+":"+port;
+		long deadline=System.currentTimeMillis()+timeout;
+		while(true) {
+			AjpConnection connection=null;
+			LinkedList<AjpConnection> expired=new LinkedList<AjpConnection>();
+			try {
+				synchronized(this) {
+					if(closed) {
+						throw new IOException("Connection pool closed");
+					}
+					Target target=targets.get(key);
+					if(target == null) {
+						target=new Target();
+						targets.put(key, target);
+					}
+					long now=System.currentTimeMillis();
+					evict(now, expired);
+					if(!fresh && !target.idle.isEmpty()) {
+						connection=target.idle.removeFirst();
+					} else if(fresh && !target.idle.isEmpty() && maxPerTarget > 0
+							&& target.count >= maxPerTarget) {
+						// Make room for the new connection.
+						expired.add(target.idle.removeLast());
+						target.count--;
+					}
+					if(connection == null) {
+						if(maxPerTarget <= 0 || target.count < maxPerTarget) {
+							target.count++;
+						} else {
+							long wait=timeout > 0 ? deadline-now : 0;
+							if(timeout > 0 && wait <= 0) {
+								throw new SocketTimeoutException("No connection to "+key+" available");
+							}
+							try {
+								wait(wait);
+							} catch(InterruptedException e) {
+								throw new IOException("Interrupted waiting for a connection to "+key);
+							}
+							continue;
+						}
+					}
+				}
+			} finally {
+				close(expired);
+			}
+			
+			if(connection == null) {
+				try {
+					return new AjpConnection(key, host, port, timeout);
+				} catch(IOException e) {
+					discard(key);
+					throw e;
+				}
+			}
+			if(System.currentTimeMillis() - connection.getLastUsed() < validationInterval
+					|| connection.ping(timeout > 0 ? Math.min(timeout, CPING_TIMEOUT) : CPING_TIMEOUT)) {
+				return connection;
+			}
+			invalidate(connection);
+		}
+	}
+	
+	/**
+	 * Give a connection back to the pool after a complete request.
+	 * @param connection Connection obtained from {@link #borrow(String, int, int, boolean)}.
+	 */
+	void release(AjpConnection connection) {
+		LinkedList<AjpConnection> expired=new LinkedList<AjpConnection>();
+		synchronized(this) {
+			Target target=targets.get(connection.getKey());
+			if(!closed && target != null) {
+				connection.released();
+				target.idle.addFirst(connection);
+				evict(System.currentTimeMillis(), expired);
+				notifyAll();
+				connection=null;
+			}
+		}
+		if(connection != null) {
+			connection.close();
+		}
+		close(expired);
+	}
+	
+	/**
+	 * Close a connection which failed or which the container does not
+	 * allow to be reused, and remove it from the pool.
+	 * @param connection Connection obtained from {@link #borrow(String, int, int, boolean)}.
+	 */
+	void invalidate(AjpConnection connection) {
+		connection.close();
+		discard(connection.getKey());
+	}
+	
+	/**
+	 * Close all idle connections. Borrowed connections are closed when they
+	 * are given back.
+	 */
+	public void close() {
+		LinkedList<AjpConnection> all=new LinkedList<AjpConnection>();
+		synchronized(this) {
+			closed=true;
+			for(Target target:targets.values()) {
+				all.addAll(target.idle);
+				target.count-=target.idle.size();
+				target.idle.clear();
+			}
+			notifyAll();
+		}
+		close(all);
+	}
+	
+	/**
+	 * Remove the connections of all targets which have been idle for the
+	 * idle timeout. Idle lists are ordered from the most recently released
+	 * connection, so expired connections are found at their end.
+	 * @param now Current time in milliseconds.
+	 * @param expired List the removed connections are added to, to be
+	 *        closed outside the lock.
+	 */
+	private void evict(long now, LinkedList<AjpConnection> expired) {
+		for(Target target:targets.values()) {
+			while(!target.idle.isEmpty() && now - target.idle.getLast().getLastUsed() >= idleTimeout) {
+				expired.add(target.idle.removeLast());
+				target.count--;
+			}
+		}
+		if(!expired.isEmpty()) {
+			notifyAll();
+		}
+	}
+	
+	private static void close(LinkedList<AjpConnection> connections) {
+		for(AjpConnection connection:connections) {
+			connection.close();
+		}
+	}
+	
+	private synchronized void discard(String key) {
+		Target target=targets.get(key);
+		if(target != null) {
+			target.count--;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Connections of one host and port.
+	 */
+	private static class Target
+	{
+		private final LinkedList<AjpConnection> idle=new LinkedList<AjpConnection>();
+		private int count;
+	}
+}
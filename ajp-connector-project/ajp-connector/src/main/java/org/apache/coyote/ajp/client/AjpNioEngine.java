@@ -0,0 +1,449 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.apache.coyote.ajp.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Non-blocking AJP engine. Executes the rounds of many request contexts over
+ * a few selector threads with non-blocking socket channels, instead of one
+ * {@link AjpProcessor} thread per request context. Packets are decoded
+ * incrementally from direct buffers as they arrive. Like the processor, the
+ * engine adds the {@link Statistics} of each round to the client context and
+ * completes the future of an exchange once all its rounds are done.
+ */
+public class AjpNioEngine extends AjpScheduler
+{
+	private static final int AJP13_SEND_HEADERS = 4;
+	private static final int AJP13_END_RESPONSE = 5;
+	private static final int AJP13_GET_BODY_CHUNK = 6;
+	
+	/**
+	 * Maximum AJP packet size, including the packet header.
+	 */
+	private static final int PACKET_SIZE = 8*1024;
+	
+	/**
+	 * Time in milliseconds a selector waits before checking timeouts.
+	 */
+	private static final long SELECT_TIMEOUT = 100;
+	
+	/**
+	 * Task of the future completed by an exchange.
+	 */
+	private static final Runnable DONE=new Runnable() {
+		public void run() {
+		}
+	};
+	
+	/**
+	 * Default number of selector threads.
+	 */
+	public static final int DEFAULT_SELECTORS = Math.min(4, Runtime.getRuntime().availableProcessors());
+	
+	private final ClientContext cc;
+	private final Worker[] workers;
+	private int next;
+	
+	public AjpNioEngine(ClientContext cc){
+		this(cc, cc.getSelectors() > 0 ? cc.getSelectors() : DEFAULT_SELECTORS);
+	}
+	
+	public AjpNioEngine(ClientContext cc, int selectors){
+		this.cc=cc;
+		workers=new Worker[Math.max(1, selectors)];
+	}
+	
+	/**
+	 * Open the selectors and start the selector threads.
+	 * @throws IOException If a selector cannot be opened.
+	 */
+	public synchronized void start() throws IOException {
+		for(int i=0; i < workers.length; i++) {
+			workers[i]=new Worker(i);
+			workers[i].start();
+		}
+	}
+	
+	/**
+	 * Execute rounds of a request context on the next selector thread.
+	 */
+	@Override
+	protected synchronized Future<?> submit(RequestContext ctx, int rounds) {
+		Worker worker=workers[next++ % workers.length];
+		Exchange exchange=new Exchange(ctx, rounds, worker);
+		worker.submit(exchange);
+		return exchange.future;
+	}
+	
+	/**
+	 * Stop the selector threads, closing all open connections. Request
+	 * contexts which are not done yet are aborted and their futures
+	 * cancelled.
+	 */
+	@Override
+	public synchronized void shutdown() {
+		for(Worker worker:workers) {
+			if(worker != null) {
+				worker.close();
+			}
+		}
+	}
+	
+	private void log(String message){
+		if(cc.isVerbose()){
+			cc.getOutput().print(message);
+		}
+	}
+	
+	/**
+	 * Selector thread, owning the connections of its exchanges.
+	 */
+	private class Worker extends Thread
+	{
+		private final Selector selector;
+		private final Queue<Exchange> pending=new ConcurrentLinkedQueue<Exchange>();
+		private final List<Exchange> active=new ArrayList<Exchange>();
+		private final Map<InetAddress,String> localNames=new HashMap<InetAddress,String>();
+		private final SimpleDateFormat dateFormat=new SimpleDateFormat("yy/MM/dd HH:mm:ss");
+		private volatile boolean closed;
+		
+		Worker(int index) throws IOException {
+			super("ajp-nio-"+index);
+			setDaemon(true);
+			selector=Selector.open();
+		}
+		
+		void submit(Exchange exchange) {
+			pending.add(exchange);
+			selector.wakeup();
+		}
+		
+		void close() {
+			closed=true;
+			selector.wakeup();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(!closed) {
+					selector.select(SELECT_TIMEOUT);
+					
+					Exchange exchange;
+					while((exchange=pending.poll()) != null) {
+						active.add(exchange);
+						exchange.start();
+					}
+					
+					for(Iterator<SelectionKey> it=selector.selectedKeys().iterator(); it.hasNext();) {
+						SelectionKey key=it.next();
+						it.remove();
+						((Exchange)key.attachment()).ready(key);
+					}
+					
+					long now=System.currentTimeMillis();
+					for(Iterator<Exchange> it=active.iterator(); it.hasNext();) {
+						exchange=it.next();
+						if(!exchange.done) {
+							exchange.checkTimeout(now);
+						}
+						if(exchange.done) {
+							it.remove();
+						}
+					}
+				}
+			} catch(IOException e) {
+				log("Selector failed: "+e.getMessage());
+			} finally {
+				for(Exchange exchange:active) {
+					exchange.abort();
+				}
+				active.clear();
+				Exchange exchange;
+				while((exchange=pending.poll()) != null) {
+					exchange.abort();
+				}
+				try {
+					selector.close();
+				} catch(IOException e) {
+					// Ignore, selector is discarded.
+				}
+			}
+		}
+		
+		String getLocalName(InetAddress address) {
+			String name=localNames.get(address);
+			if(name == null) {
+				name=address.getHostName();
+				localNames.put(address, name);
+			}
+			return name;
+		}
+	}
+	
+	/**
+	 * Rounds of one request context, executed over one connection at a time.
+	 */
+	private class Exchange
+	{
+		private final RequestContext ctx;
+		private final Worker worker;
+		private final ByteBuffer in=ByteBuffer.allocateDirect(PACKET_SIZE);
+		private final ByteBuffer out=ByteBuffer.allocateDirect(2*PACKET_SIZE);
+		private final byte[] chunk=new byte[PACKET_SIZE];
+		private final long timeout;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private String host;
+		private int port;
+		private String localAddress;
+		private String localName;
+		private Statistics statistics;
+		private final RequestPacket packet=new RequestPacket();
+		private int bodyOffset;
+		private int rounds;
+		private final FutureTask<Void> future=new FutureTask<Void>(DONE, null);
+		private long start;
+		private long lastActivity;
+		private boolean done;
+		
+		Exchange(RequestContext ctx, int rounds, Worker worker) {
+			this.ctx=ctx;
+			this.rounds=rounds;
+			this.worker=worker;
+			timeout=(long)(cc.getTimeout()*1000);
+		}
+		
+		void start() {
+			if(rounds <= 0) {
+				complete();
+				return;
+			}
+			try {
+				nextRound();
+			} catch(IOException e) {
+				fail(e);
+			}
+		}
+		
+		void ready(SelectionKey key) {
+			try {
+				if(!key.isValid()) {
+					return;
+				}
+				if(key.isConnectable()) {
+					if(channel.finishConnect()) {
+						connected();
+					}
+				} else if(key.isWritable()) {
+					write();
+				} else if(key.isReadable()) {
+					read();
+				}
+			} catch(IOException e) {
+				fail(e);
+			}
+		}
+		
+		void checkTimeout(long now) {
+			if(timeout > 0 && now - lastActivity > timeout) {
+				fail(new SocketTimeoutException("Read timed out"));
+			}
+		}
+		
+		private void nextRound() throws IOException {
+			statistics=new Statistics();
+			statistics.setUrl(ctx.getUrl());
+			
+			URL url=ctx.getRequestUrl();
+			String h=url.getHost();
+			int p=RequestTemplate.getPort(url);
+			if(channel != null && (!h.equals(host) || p != port)) {
+				closeChannel();
+			}
+			host=h;
+			port=p;
+			lastActivity=System.currentTimeMillis();
+			
+			if(channel == null) {
+				channel=SocketChannel.open();
+				channel.configureBlocking(false);
+				key=channel.register(worker.selector, SelectionKey.OP_CONNECT, this);
+				if(channel.connect(new InetSocketAddress(host, port))) {
+					connected();
+				}
+			} else {
+				send();
+			}
+		}
+		
+		private void connected() throws IOException {
+			InetAddress local=channel.socket().getLocalAddress();
+			localAddress=local.getHostAddress();
+			localName=worker.getLocalName(local);
+			log("Connected to "+host+" at port "+port);
+			send();
+		}
+		
+		private void send() throws IOException {
+			ctx.getTemplate(localAddress, localName).render(packet);
+			bodyOffset=packet.getBodyOffset();
+			
+			out.clear();
+			out.put(packet.getBuffer(), 0, packet.getLength());
+			out.flip();
+			in.clear();
+			
+			statistics.setDateTime(worker.dateFormat.format(new Date()));
+			start=System.currentTimeMillis();
+			write();
+		}
+		
+		private void putBodyChunk() {
+			int len=RequestTemplate.bodyChunk(chunk, 0, packet.getBody(), bodyOffset);
+			bodyOffset+=len-RequestTemplate.CHUNK_HEADER_SIZE;
+			out.put(chunk, 0, len);
+		}
+		
+		private void write() throws IOException {
+			if(channel.write(out) > 0) {
+				lastActivity=System.currentTimeMillis();
+			}
+			key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+		
+		private void read() throws IOException {
+			int nr=channel.read(in);
+			if(nr < 0) {
+				throw new IOException("Protocol Error. Connection closed by "+host+":"+port);
+			}
+			lastActivity=System.currentTimeMillis();
+			
+			in.flip();
+			boolean ended=false;
+			boolean reuse=false;
+			while(!ended && in.remaining() >= 4) {
+				int pos=in.position();
+				if(in.get(pos) != 'A' || in.get(pos+1) != 'B') {
+					throw new IOException("Protocol Error. Unexpected response.");
+				}
+				int len=in.getShort(pos+2)&0xffff;
+				if(len == 0 || len+4 > in.capacity()) {
+					throw new IOException("Protocol Error. Invalid packet length "+len);
+				}
+				if(in.remaining() < len+4) {
+					break;
+				}
+				in.position(pos+4+len);
+				
+				int msg=in.get(pos+4);
+				if(msg == AJP13_SEND_HEADERS) {
+					statistics.setReplyCode(in.getShort(pos+5)&0xffff);
+				} else if(msg == AJP13_GET_BODY_CHUNK) {
+					out.clear();
+					putBodyChunk();
+					out.flip();
+					write();
+				} else if(msg == AJP13_END_RESPONSE) {
+					ended=true;
+					reuse=len > 1 && in.get(pos+5) != 0;
+				}
+				// Body chunks of the response are discarded.
+			}
+			
+			if(ended) {
+				in.clear();
+				endRound(reuse);
+			} else {
+				in.compact();
+			}
+		}
+		
+		private void endRound(boolean reuse) throws IOException {
+			statistics.setTimeElapsed(System.currentTimeMillis()-start);
+			cc.setStatistics(statistics);
+			if(!reuse) {
+				closeChannel();
+			}
+			if(--rounds > 0) {
+				nextRound();
+			} else {
+				complete();
+			}
+		}
+		
+		private void fail(IOException e) {
+			if(e instanceof SocketTimeoutException && statistics != null) {
+				statistics.setTimeout(true);
+			}
+			log(host+":"+port+" "+e.getMessage());
+			complete();
+		}
+		
+		private void complete() {
+			if(!done) {
+				done=true;
+				closeChannel();
+				cc.releaseFeeds(packet);
+				future.run();
+			}
+		}
+		
+		void abort() {
+			closeChannel();
+			cc.releaseFeeds(packet);
+			future.cancel(false);
+		}
+		
+		void closeChannel() {
+			if(key != null) {
+				key.cancel();
+				key=null;
+			}
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch(IOException e) {
+					// Ignore, connection is discarded.
+				}
+				channel=null;
+			}
+		}
+	}
+}
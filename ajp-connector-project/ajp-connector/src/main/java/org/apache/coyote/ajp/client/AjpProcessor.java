@@ -17,18 +17,14 @@
 
 package org.apache.coyote.ajp.client;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Map;
 
 /**
  * AJP protocol handler class.
@@ -52,27 +48,7 @@ public class AjpProcessor implements Runnable
 	private String responseHeader;
 	
 	private Statistics statistics;
- 
-    /**
-     *  Translates integer codes to request header names    
-     */
-    private static final String []headerTransArray = {
-        "accept",               //$NON-NLS-1$
-        "accept-charset",       //$NON-NLS-1$
-        "accept-encoding",      //$NON-NLS-1$
-        "accept-language",      //$NON-NLS-1$
-        "authorization",        //$NON-NLS-1$
-        "connection",           //$NON-NLS-1$
-        "content-type",         //$NON-NLS-1$
-        "content-length",       //$NON-NLS-1$
-        "cookie",               //$NON-NLS-1$
-        "cookie2",              //$NON-NLS-1$
-        "host",                 //$NON-NLS-1$
-        "pragma",               //$NON-NLS-1$
-        "referer",              //$NON-NLS-1$
-        "user-agent"            //$NON-NLS-1$
-    };
-    
+
     // Translates integer codes to response header names
     public static final String []responseTransArray = {
             "Content-Type",
@@ -92,23 +68,36 @@ public class AjpProcessor implements Runnable
      * Base value for translated headers
      */
 
-    private transient Socket channel = null;
-    private int lastPort = -1;
-    private String lastHost = null;
-    private String localName = null;
-    private String localAddress = null;
+    private transient AjpConnection connection = null;
+    private String host = null;
+    private int port = -1;
+    private boolean responseStarted = false;
+    private boolean reuse = false;
     private byte [] inbuf = new byte[8*1024];
     private byte [] outbuf = new byte[8*1024];
     private transient ByteArrayOutputStream responseData = new ByteArrayOutputStream();
     private int inpos = 0;
-    private int outpos = 0;
-    private transient String stringBody = null;
-    private transient InputStream body = null;
+    private transient RequestTemplate template = null;
+    private final RequestPacket packet = new RequestPacket();
+    private int bodyOffset = 0;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yy/MM/dd HH:mm:ss");
 
 	
+	private final int rounds;
+	
 	public AjpProcessor(RequestContext ctx){
+		this(ctx, ctx.getRounds());
+	}
+	
+	/**
+	 * Create a processor executing some of the rounds of a request context.
+	 * @param ctx Request context.
+	 * @param rounds Number of rounds.
+	 */
+	public AjpProcessor(RequestContext ctx, int rounds){
 		this.ctx=ctx;
 		this.cc=ctx.getClientContext();
+		this.rounds=rounds;
 	}
 	
 	public void run(){
@@ -117,7 +106,7 @@ public class AjpProcessor implements Runnable
 	
 	public void process(){
         try {
-        	int rounds=ctx.getRounds();
+        	int rounds=this.rounds;
         	
         	while(rounds-- > 0){
 	            setupConnection();
@@ -129,15 +118,13 @@ public class AjpProcessor implements Runnable
         	if(iex instanceof SocketTimeoutException){
         		statistics.setTimeout(true);
         	}
-            lastPort = -1; // force reopen on next sample
-            channel = null;
+        	discardConnection();
             //return err;
         } catch(ProtocolException e){
-            lastPort = -1; // force reopen on next sample
-            channel = null;
+        	discardConnection();
+        } finally {
+        	cc.releaseFeeds(packet);
         }
-        
-        cc.decrementProcessorCount();
 	}
 	
 	public String getResponseHeader(){
@@ -149,298 +136,89 @@ public class AjpProcessor implements Runnable
 	}
 	
 	private void setupConnection() throws IOException {
-		URL url=ctx.getUrl();
 		statistics=new Statistics();
-		statistics.setUrl(url);
-		
-		if(ctx.getQueryParams().size() > 0 && ctx.getMethod().equals(Constants.GET) && url.getQuery() != null){
-			StringBuffer sb=new StringBuffer(url.toString());
-			sb.append("?");
-			
-			Map<String,String> params=ctx.getQueryParams();
-			boolean first=true;
-			
-			for(String param:params.keySet()){	
-				if(first){
-					first=false;
-				}else{
-					sb.append("&");
-				}
-				sb.append(param);
-				sb.append("=");
-				sb.append(params.get(param));
-			}
-			
-			url=new URL(sb.toString());
-			ctx.setUrl(url);
-		}
+		statistics.setUrl(ctx.getUrl());
 		
-		String host = url.getHost();
-		int port = url.getPort();
-		if(port <= 0 || port == url.getDefaultPort()) {
-			port = 8009;
-		}
-		String scheme = url.getProtocol();
-		if(channel == null || !host.equals(lastHost) || port != lastPort) {
-			if(channel != null) {
-				channel.close();
-			}
-			channel = new Socket(host, port);
-			double timeout = cc.getTimeout();
-			if(timeout > 0) {
-				channel.setSoTimeout((int)timeout*1000);
-			}
-			localAddress = channel.getLocalAddress().getHostAddress();
-			localName = channel.getLocalAddress().getHostName();
-			lastHost = host;
-			lastPort = port;
-		}
+		URL url=ctx.getRequestUrl();
+		host = url.getHost();
+		port = RequestTemplate.getPort(url);
+		connect(false);
+	}
+	
+	private void connect(boolean fresh) throws IOException {
+		connection = cc.getConnectionPool().borrow(host, port, (int)(cc.getTimeout()*1000), fresh);
 		log("Connected to "+host+" at port "+port);
 		
-		outpos = 4;
-		setByte((byte)2);
-		if(ctx.getMethod() != null && ctx.getMethod().equals(Constants.POST)) {
-			setByte((byte)4);
-		} else {
-			setByte((byte)2);
-		}
-		if(cc.getHttpVersion() != null && (cc.getHttpVersion().equals("1.0") || cc.getHttpVersion().equals("1"))) {//$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
-			setString("HTTP/1.0");//$NON-NLS-1$
+		template = ctx.getTemplate(connection.getLocalAddress(), connection.getLocalName());
+		template.render(packet);
+	}
+	
+	/**
+	 * Give the connection back to the pool, or close it if the container
+	 * does not allow it to be reused.
+	 */
+	private void releaseConnection() {
+		if(reuse) {
+			cc.getConnectionPool().release(connection);
 		} else {
-			setString("HTTP/1.1");
+			cc.getConnectionPool().invalidate(connection);
 		}
-	   setString(url.getPath());
-	   setString(localAddress);
-	   setString(localName);
-	   setString(host);
-	   setInt(url.getDefaultPort());
-	   setByte(Constants.PROTOCOL_HTTPS.equalsIgnoreCase(scheme) ? (byte)1 : (byte)0);
-	   setInt(getHeaderSize());
-	   setConnectionHeaders(host);
-	   String query = url.getQuery();
-	   if (query != null) {
-	       setByte((byte)0x05); // Marker for query string attribute
-	       setString(query);
-	   }
-	   setByte((byte)0xff); // More general attributes not supported
+		connection = null;
 	}
-
-	private int getHeaderSize() {
-	/*   HeaderManager headers = getHeaderManager();
-	   CookieManager cookies = getCookieManager();
-	   AuthManager auth = getAuthManager();
-	   int hsz = 1; // Host always
-	   if(method.equals(POST)) {
-	       HTTPFileArg[] hfa = getHTTPFiles();
-	       if(hfa.length > 0) {
-	           hsz += 3;
-	       } else {
-	           hsz += 2;
-	       }
-	   }
-	   if(headers != null) {
-	       hsz += headers.size();
-	   }
-	   if(cookies != null) {
-	       hsz += cookies.getCookieCount();
-	   }
-	   if(auth != null) {
-	           String authHeader = auth.getAuthHeaderForURL(url);
-	       if(authHeader != null) {
-	       ++hsz;
-	       }
-	   }*/
-	   //return hsz;
-		int size=1;			// For host header which is compulsory.
-		if(ctx.getMethod().endsWith(Constants.POST)){
-			size+=2;		// For content-type and content-length headers.
-		}
-		
-		if(ctx.getHeaders().get("host") != null){
-			size=size+ctx.getHeaders().size() - 1; // Prevent host header being counted twice
-		}else{
-			size += ctx.getHeaders().size();
+	
+	private void discardConnection() {
+		if(connection != null) {
+			cc.getConnectionPool().invalidate(connection);
+			connection = null;
 		}
-	   return size; 	// For now return size of the header map. Additional header for host header.
-	}
-
-
-	private void setConnectionHeaders(String host) throws IOException {
-	/*   HeaderManager headers = getHeaderManager();
-	   AuthManager auth = getAuthManager();*/
-	   //StringBuilder hbuf = new StringBuilder();
-	   // Allow Headers to override Host setting
-	   //hbuf.append("Host").append(COLON_SPACE).append(host).append(NEWLINE);//$NON-NLS-1$
-	   setInt(0xA00b); //Host 
-	   setString(host);
-	   /*if(headers != null) {
-	       CollectionProperty coll = headers.getHeaders();
-	       PropertyIterator i = coll.iterator();
-	       while(i.hasNext()) {
-	           Header header = (Header)i.next().getObjectValue();
-	           String n = header.getName();
-	           String v = header.getValue();
-	           //hbuf.append(n).append(COLON_SPACE).append(v).append(NEWLINE);
-	           int hc = translateHeader(n);
-	           if(hc > 0) {
-	               setInt(hc+AJP_HEADER_BASE);
-	           } else {
-	               setString(n);
-	           }
-	           setString(v);
-	       }
-	   }*/
-	   
-	   Map<String,String> headers=ctx.getHeaders();
-	   headers.remove("host"); // Remove any repeating header for host. We already set host header.
-	   for(String name:headers.keySet()){
-		   String value=headers.get(name);
-		   int code=translateHeader(name);
-		   if(code > 0){
-			   setInt(code+Constants.AJP_HEADER_BASE);
-		   }else{
-			   setString(name);
-		   }
-		   
-		   setString(value);
-	   }
-	   
-	   if(ctx.getMethod().equals(Constants.POST)) {
-	       int cl = -1;
-	       //HTTPFileArg[] hfa = getHTTPFiles();
-	       if(ctx.getBodyFile() != null) {	
-/*	    	   File input=ctx.getBodyFile();
-	           cl = (int)input.length();
-	           body = new FileInputStream(input);
-	           setString(HEADER_CONTENT_DISPOSITION);
-	           setString("form-data; name=\""+encode(fa.getParamName())+
-	                 "\"; filename=\"" + encode(fn) +"\""); //$NON-NLS-1$ //$NON-NLS-2$
-	           String mt = fa.getMimeType();
-	           hbuf.append(HEADER_CONTENT_TYPE).append(COLON_SPACE).append(mt).append(NEWLINE);
-	           setInt(0xA007); // content-type
-	           setString(mt);*/
-	       } else {
-	           //hbuf.append(HEADER_CONTENT_TYPE).append(COLON_SPACE).append(APPLICATION_X_WWW_FORM_URLENCODED).append(NEWLINE);
-	           setInt(0xA007); // content-type
-	           setString(Constants.APPLICATION_X_WWW_FORM_URLENCODED);
-	           StringBuilder sb = new StringBuilder();
-	           
-	           boolean first = true;
-	           Map<String,String> params=ctx.getQueryParams();
-	           
-	           for(String param:params.keySet()){
-	               if(first) {
-	                   first = false;
-	                   sb.append(param);
-	                   sb.append("=");
-	               } else {
-	                   sb.append('&');
-	               }
-	               sb.append(params.get(param));
-	           }
-	           stringBody = sb.toString();
-	           byte [] sbody = stringBody.getBytes(); //FIXME - encoding
-	           cl = sbody.length;
-	           body = new ByteArrayInputStream(sbody);
-	       }
-	       //hbuf.append(HEADER_CONTENT_LENGTH).append(COLON_SPACE).append(String.valueOf(cl)).append(NEWLINE);
-	       setInt(0xA008); // Content-length
-	       setString(String.valueOf(cl));
-	   }
-/*	   if(auth != null) {
-	       String authHeader = auth.getAuthHeaderForURL(url);
-	       if(authHeader != null) {
-	           setInt(0xA005); // Authorization
-	           setString(authHeader);
-	           hbuf.append(HEADER_AUTHORIZATION).append(COLON_SPACE).append(authHeader).append(NEWLINE);
-	       }
-	   }
-	   return hbuf.toString();*/
 	}
 	
-	private String encode(String value)  {
-	   StringBuilder newValue = new StringBuilder();
-	   char[] chars = value.toCharArray();
-	   for (int i = 0; i < chars.length; i++)
-	   {
-	       if (chars[i] == '\\')//$NON-NLS-1$
-	       {
-	           newValue.append("\\\\");//$NON-NLS-1$
-	       }
-	       else
-	       {
-	           newValue.append(chars[i]);
-	       }
-	   }
-	   return newValue.toString();
+	private void execute() throws IOException, ProtocolException {
+	   String dateTime=dateFormat.format(new Date());
+	   statistics.setDateTime(dateTime);
+	   long start=System.currentTimeMillis();
+	   exchange();
+	   long end=System.currentTimeMillis();
+	   statistics.setTimeElapsed(end-start);
+	   releaseConnection();
 	}
 	
-	/*private String setConnectionCookies(URL url, CookieManager cookies) {
-	   String cookieHeader = null;
-	   if(cookies != null) {
-	       cookieHeader = cookies.getCookieHeaderForURL(url);
-	       CollectionProperty coll = cookies.getCookies();
-	       PropertyIterator i = coll.iterator();
-	       while(i.hasNext()) {
-	           Cookie cookie = (Cookie)(i.next().getObjectValue());
-	           setInt(0xA009); // Cookie
-	           setString(cookie.getName()+"="+cookie.getValue());//$NON-NLS-1$
+	/**
+	 * Send the request and read the response. An idempotent request which
+	 * fails on a pooled connection before any response arrived, typically
+	 * because the container closed the idle connection, is retried once on
+	 * a new connection.
+	 */
+	private void exchange() throws IOException, ProtocolException {
+	   responseStarted = false;
+	   bodyOffset = packet.getBodyOffset();
+	   try {
+	       connection.getOutputStream().write(packet.getBuffer(), 0, packet.getLength());
+	       handshake();
+	   } catch(IOException e) {
+	       if(!isRetryable(e)) {
+	           throw e;
 	       }
-	   }
-	   return cookieHeader;
-	}*/
-	
-	private int translateHeader(String n) {
-	   for(int i=0; i < headerTransArray.length; i++) {
-	       if(headerTransArray[i].equalsIgnoreCase(n)) {
-	           return i+1;
+	       reconnect(e);
+	       exchange();
+	   } catch(ProtocolException e) {
+	       if(!isRetryable(e)) {
+	           throw e;
 	       }
+	       reconnect(e);
+	       exchange();
 	   }
-	   return -1;
 	}
 	
-	private void setByte(byte b) {
-	   outbuf[outpos++] = b;
+	private boolean isRetryable(Exception e) {
+	   return connection.isReused() && !responseStarted && !(e instanceof SocketTimeoutException)
+	   		&& Constants.GET.equals(ctx.getMethod());
 	}
 	
-	private void setInt(int n) {
-	   outbuf[outpos++] = (byte)((n >> 8)&0xff);
-	   outbuf[outpos++] = (byte) (n&0xff);
-	}
-	
-	private void setString(String s) {
-	   if( s == null ) {
-	       setInt(0xFFFF);
-	   } else {
-	       int len = s.length();
-	       setInt(len);
-	       for(int i=0; i < len; i++) {
-	           setByte((byte)s.charAt(i));
-	       }
-	       setByte((byte)0);
-	   }
-	}
-	
-	private void send() throws IOException {
-	   OutputStream os = channel.getOutputStream();
-	   int len = outpos;
-	   outpos = 0;
-	   setInt(0x1234);
-	   setInt(len-4);
-	   os.write(outbuf, 0, len);
-	}
-	
-	private void execute() throws IOException, ProtocolException {
-	   String dateTime=new SimpleDateFormat("yy/MM/dd HH:mm:ss").format(new Date());
-	   statistics.setDateTime(dateTime);
-	   long start=System.currentTimeMillis();
-	   send();
-	   if(ctx.getMethod() != null && ctx.getMethod().equals(Constants.POST)) {
-	       sendPostBody();
-	   }
-	   handshake();
-	   long end=System.currentTimeMillis();
-	   statistics.setTimeElapsed(end-start);
+	private void reconnect(Exception e) throws IOException {
+	   log("Connection to "+host+" at port "+port+" failed, retrying: "+e.getMessage());
+	   discardConnection();
+	   connect(true);
 	}
 	
 	private void handshake() throws IOException, ProtocolException {
@@ -453,32 +231,17 @@ public class AjpProcessor implements Runnable
 	       } else if(msg == AJP13_SEND_HEADERS) {
 	           responseHeader=parseHeaders();
 	       } else if(msg == AJP13_GET_BODY_CHUNK) {
-	           setNextBodyChunk();
-	           send();
+	           sendNextBodyChunk();
 	       }
 	       msg = getMessage();
 	   }
+	   reuse = getByte() != 0;
 	}
 	
-	private void sendPostBody() throws IOException {
-	   setNextBodyChunk();
-	   send();
-	}
-	
-	private void setNextBodyChunk() throws IOException {
-		int len = (body == null) ? 0 : body.available();
-		if(len < 0) {
-			len = 0;
-		} else if(len > Constants.MAX_SEND_SIZE) {
-			len = Constants.MAX_SEND_SIZE;
-		}
-		outpos = 4;
-		int nr = 0;
-		if(len > 0) {
-			nr = body.read(outbuf, outpos+2, len);
-		}
-		setInt(nr);
-		outpos += nr;
+	private void sendNextBodyChunk() throws IOException {
+		int len = RequestTemplate.bodyChunk(outbuf, 0, packet.getBody(), bodyOffset);
+		bodyOffset += len - RequestTemplate.CHUNK_HEADER_SIZE;
+		connection.getOutputStream().write(outbuf, 0, len);
 	}
 	
 	
@@ -518,7 +281,7 @@ public class AjpProcessor implements Runnable
 	
 	
 	private int getMessage() throws  ProtocolException, IOException {
-	   InputStream is = channel.getInputStream();
+	   InputStream is = connection.getInputStream();
 	   inpos = 0;
 	   int nr=0;
 	   
@@ -529,8 +292,6 @@ public class AjpProcessor implements Runnable
 	   }
 	   
 	   if(nr != 4) {
-	       channel.close();
-	       channel = null;
 	       throw new ProtocolException("Protocol Error. Unexpected response.");
 	   }
 	//int mark = 
@@ -547,6 +308,7 @@ public class AjpProcessor implements Runnable
 	       cpos += nr;
 	       toRead -= nr;
 	   }
+	   responseStarted = true;
 	   return getByte();
 	}
 	
@@ -0,0 +1,115 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.apache.coyote.ajp.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Executes the rounds of request contexts and tracks their completion with
+ * futures. A request context runs on as many connections in parallel as
+ * its concurrency, the rounds being divided among them. The scheduler is
+ * chosen by the engine of the client context:
+ * <ul>
+ * <li>thread: a fixed pool of threads running blocking processors, by
+ * default one per connection up to {@link #DEFAULT_MAX_THREADS}</li>
+ * <li>virtual: a virtual thread per blocking processor, where the Java
+ * runtime supports them</li>
+ * <li>nio: the {@link AjpNioEngine}</li>
+ * </ul>
+ */
+public abstract class AjpScheduler
+{
+	/**
+	 * Maximum number of threads of the thread engine if the number of
+	 * threads is not given.
+	 */
+	public static final int DEFAULT_MAX_THREADS = 8 * Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Create the scheduler of a client context.
+	 * @param cc Initialized client context.
+	 * @return Started scheduler.
+	 * @throws IOException If the NIO engine cannot be started.
+	 */
+	public static AjpScheduler create(ClientContext cc) throws IOException {
+		String engine=cc.getEngine();
+		if(Constants.ENGINE_NIO.equals(engine)) {
+			AjpNioEngine nio=new AjpNioEngine(cc);
+			nio.start();
+			return nio;
+		}
+		if(Constants.ENGINE_VIRTUAL.equals(engine)) {
+			AjpScheduler virtual=ExecutorScheduler.newVirtualThreadScheduler();
+			if(virtual != null) {
+				return virtual;
+			}
+			if(cc.isVerbose()) {
+				cc.getOutput().println("Virtual threads not supported, using a thread pool.");
+			}
+		}
+		int threads=cc.getThreads();
+		if(threads <= 0) {
+			threads=Math.min(getConnections(cc), DEFAULT_MAX_THREADS);
+		}
+		return ExecutorScheduler.newFixedThreadScheduler(threads);
+	}
+	
+	/**
+	 * Get the number of connections all request contexts run on.
+	 */
+	static int getConnections(ClientContext cc) {
+		int connections=0;
+		for(RequestContext ctx:cc.getRequestContexts()) {
+			connections+=Math.min(Math.max(1, ctx.getConcurrency()), Math.max(1, ctx.getRounds()));
+		}
+		return Math.max(1, connections);
+	}
+	
+	/**
+	 * Execute the rounds of a request context, divided among as many
+	 * connections as its concurrency.
+	 * @param ctx Request context.
+	 * @return Futures completing when the rounds of a connection are done.
+	 */
+	public List<Future<?>> submit(RequestContext ctx) {
+		int rounds=ctx.getRounds();
+		int connections=Math.min(Math.max(1, ctx.getConcurrency()), Math.max(1, rounds));
+		List<Future<?>> futures=new ArrayList<Future<?>>(connections);
+		for(int i=0; i < connections; i++) {
+			futures.add(submit(ctx, rounds/connections + (i < rounds%connections ? 1 : 0)));
+		}
+		return futures;
+	}
+	
+	/**
+	 * Execute rounds of a request context over one connection at a time.
+	 * @param ctx Request context.
+	 * @param rounds Number of rounds.
+	 * @return Future completing when the rounds are done.
+	 */
+	protected abstract Future<?> submit(RequestContext ctx, int rounds);
+	
+	/**
+	 * Stop the scheduler. Rounds not yet done are abandoned.
+	 */
+	public abstract void shutdown();
+}
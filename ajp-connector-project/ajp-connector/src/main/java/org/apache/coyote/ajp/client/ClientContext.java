@@ -18,11 +18,13 @@
 package org.apache.coyote.ajp.client;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -39,7 +41,8 @@ public class ClientContext
 	
 	double timeout;
 	int rounds;
-	int processorCount;
+	int concurrency;
+	int threads;
 	boolean verbose;
 	PrintStream output;
 	String bind_address;
@@ -54,6 +57,10 @@ public class ClientContext
 	ArrayList<Statistics> stats;
 	String method;
 	File bodyFile;
+	String engine;
+	int selectors;
+	AjpConnectionPool pool;
+	List<DataFeed> feeds;
 	
 	public ClientContext()
 	{
@@ -64,6 +71,10 @@ public class ClientContext
 		stats=new ArrayList<Statistics>();
 		urls=new String[0];
 		rounds=1;
+		concurrency=1;
+		engine=Constants.ENGINE_THREAD;
+		pool=new AjpConnectionPool();
+		feeds=new ArrayList<DataFeed>();
 		output = System.out;
 		populateDefaultHeaders();
 	}
@@ -103,6 +114,7 @@ public class ClientContext
 			}
 			
 			ctx.setRounds(rounds);
+			ctx.setConcurrency(concurrency);
 			
 			if(ctxs.contains(ctx)){
 				ctxs.remove(ctx);
@@ -118,8 +130,27 @@ public class ClientContext
 			}
 		}
 		
-		synchronized(this){
-			processorCount=ctxs.size();
+		// Fail early on placeholders no feed has a column for.
+		List<DataFeed> used=new ArrayList<DataFeed>();
+		for(RequestContext ctx:ctxs){
+			Expression.parse(ctx.getUrl().toString(), this, used);
+			for(String value:ctx.getHeaders().values()){
+				Expression.parse(value, this, used);
+			}
+			for(String value:ctx.getQueryParams().values()){
+				Expression.parse(value, this, used);
+			}
+		}
+	}
+	
+	/**
+	 * Close the connection pool and the feeds.
+	 */
+	public void close()
+	{
+		pool.close();
+		for(DataFeed feed:feeds){
+			feed.close();
 		}
 	}
 	
@@ -199,6 +230,98 @@ public class ClientContext
 		this.method = method;
 	}
 	
+	public String getEngine()
+	{
+		return engine;
+	}
+	
+	public void setEngine( String engine )
+	{
+		this.engine = engine;
+	}
+	
+	public int getConcurrency()
+	{
+		return concurrency;
+	}
+	
+	public void setConcurrency( int concurrency )
+	{
+		this.concurrency = concurrency;
+	}
+	
+	public int getThreads()
+	{
+		return threads;
+	}
+	
+	public void setThreads( int threads )
+	{
+		this.threads = threads;
+	}
+	
+	public int getSelectors()
+	{
+		return selectors;
+	}
+	
+	public void setSelectors( int selectors )
+	{
+		this.selectors = selectors;
+	}
+	
+	/**
+	 * Add a CSV feed supplying the values of ${column} placeholders in URLs,
+	 * header values and query parameters.
+	 * @param file CSV file, with the column names in the first line.
+	 * @param mode {@link DataFeed#SEQUENTIAL}, {@link DataFeed#RANDOM} or
+	 *        {@link DataFeed#THREAD}.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public void addFeed( File file, String mode ) throws IOException
+	{
+		feeds.add( new DataFeed( file, mode ) );
+	}
+	
+	List<DataFeed> getFeeds()
+	{
+		return feeds;
+	}
+	
+	/**
+	 * Close the feed files read for a processor or exchange in thread mode.
+	 * @param owner Request packet of the processor or exchange.
+	 */
+	void releaseFeeds( RequestPacket owner )
+	{
+		for( DataFeed feed:feeds )
+		{
+			feed.release( owner );
+		}
+	}
+	
+	/**
+	 * Get the first feed having a column.
+	 * @param column Column name.
+	 * @return Feed, or null if no feed has the column.
+	 */
+	DataFeed getFeed( String column )
+	{
+		for( DataFeed feed:feeds )
+		{
+			if( feed.getColumn( column ) >= 0 )
+			{
+				return feed;
+			}
+		}
+		return null;
+	}
+	
+	public AjpConnectionPool getConnectionPool()
+	{
+		return pool;
+	}
+	
 	public void setStatistics(Statistics statistics){
 		synchronized(stats){
 			stats.add(statistics);
@@ -219,15 +342,6 @@ public class ClientContext
 		defaultHeaders.put("Accept-Language","en");
 	}
 	
-	public synchronized void decrementProcessorCount(){
-		processorCount--;
-		notifyAll();
-	}
-	
-	public int getProcessorCount(){
-		return processorCount;
-	}
-	
 	private void parse(){
 		try {
 			  DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -235,6 +349,25 @@ public class ClientContext
 			  Document doc = db.parse(requests_file);
 			  doc.getDocumentElement().normalize();
 			  
+			  // Process feeds, relative files are resolved against the directory of the requests file.
+			  NodeList feedLst = doc.getElementsByTagName("feed");
+			  for(int i=0;i< feedLst.getLength();i++){
+				  Node feed=feedLst.item(i);
+				  if(feed.getNodeType() == Node.ELEMENT_NODE){
+					  Element feedElmnt=(Element)feed;
+					  File file=new File(feedElmnt.getElementsByTagName("file").item(0).getFirstChild().getTextContent().trim());
+					  if(!file.isAbsolute()){
+						  file=new File(requests_file.getAbsoluteFile().getParentFile(), file.getPath());
+					  }
+					  String mode=DataFeed.SEQUENTIAL;
+					  NodeList modeLst=feedElmnt.getElementsByTagName("mode");
+					  if(modeLst.getLength() > 0){
+						  mode=modeLst.item(0).getFirstChild().getTextContent().trim();
+					  }
+					  addFeed(file, mode);
+				  }
+			  }
+			  
 			  NodeList reqLst = doc.getElementsByTagName("request");	
 			  NodeList commonLst=doc.getElementsByTagName("common");
 			  NodeList commonHeaders=null;
@@ -252,6 +385,7 @@ public class ClientContext
 				  if (request.getNodeType() == Node.ELEMENT_NODE) {
 					  
 					  RequestContext ctx=new RequestContext(this);
+					  ctx.setConcurrency(concurrency);
 					  
 					  //Process request URL
 			          Element reqElmnt = (Element) request;
@@ -377,6 +511,13 @@ public class ClientContext
 			        	  ctx.setRounds(Integer.parseInt(roundsStr));
 			          }
 			          
+			          //Process concurrency
+			          NodeList concurrencyLst=reqElmnt.getElementsByTagName("concurrency");
+			          if(concurrencyLst.getLength() > 0 ){
+			        	  String concurrencyStr=concurrencyLst.item(0).getFirstChild().getTextContent();
+			        	  ctx.setConcurrency(Integer.parseInt(concurrencyStr.trim()));
+			          }
+			          
 			          ctxs.add(ctx);
 			          
 			          //Default method is GET if no specific method is set
@@ -25,6 +25,9 @@ public class Constants {
     public static final String GET="GET";
     public static final String PROTOCOL_HTTPS="https";
     public static final String HTTP_1_1="HTTP/1.1";
+    public static final String ENGINE_THREAD="thread";
+    public static final String ENGINE_NIO="nio";
+    public static final String ENGINE_VIRTUAL="virtual";
     
     static final int AJP_HEADER_BASE = 0xA000;
 
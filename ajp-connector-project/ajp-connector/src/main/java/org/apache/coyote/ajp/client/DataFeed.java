@@ -0,0 +1,285 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.apache.coyote.ajp.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * CSV file supplying the values of <code>${column}</code> placeholders in
+ * request templates. The first line names the columns, every further line is
+ * a row. The file is streamed, not loaded, and read again from the start when
+ * its end is reached. Rows are handed out in one of three modes:
+ * <ul>
+ * <li>sequential: in file order, shared by all threads</li>
+ * <li>random: in random order, drawn from a window of {@link #RANDOM_WINDOW}
+ * rows which is refilled from the file</li>
+ * <li>thread: in file order, each processor, or exchange of the nio engine,
+ * reading the file on its own</li>
+ * </ul>
+ * The nio engine renders requests on its selector threads, so rows are read
+ * there as well, from a buffered local file.
+ */
+public class DataFeed
+{
+	public static final String SEQUENTIAL="sequential";
+	public static final String RANDOM="random";
+	public static final String THREAD="thread";
+	
+	/**
+	 * Number of rows random mode draws from.
+	 */
+	static final int RANDOM_WINDOW = 1024;
+	
+	private final File file;
+	private final String mode;
+	private final String[] columns;
+	private final Map<Object,Cursor> ownerCursors=new IdentityHashMap<Object,Cursor>();
+	private Cursor cursor;
+	private boolean closed;
+	private String[][] window;
+	private int windowSize;
+	private Random random;
+	
+	/**
+	 * Open a feed.
+	 * @param file CSV file.
+	 * @param mode sequential, random or thread.
+	 * @throws IOException If the file cannot be read or has no rows.
+	 */
+	public DataFeed(File file, String mode) throws IOException {
+		if(!SEQUENTIAL.equals(mode) && !RANDOM.equals(mode) && !THREAD.equals(mode)) {
+			throw new IllegalArgumentException("Invalid feed mode "+mode);
+		}
+		this.file=file;
+		this.mode=mode;
+		Cursor first=new Cursor();
+		columns=first.header;
+		if(first.next() == null) {
+			first.close();
+			throw new IOException("No rows in "+file);
+		}
+		first.close();
+		cursor=new Cursor();
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public String getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Get the index of a column.
+	 * @param name Column name.
+	 * @return Index, or -1 if the feed has no such column.
+	 */
+	int getColumn(String name) {
+		for(int i=0; i < columns.length; i++) {
+			if(columns[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the next row according to the mode of the feed.
+	 * @param owner Processor or exchange the row is rendered for, used by
+	 *        thread mode only and to be released with {@link #release(Object)}.
+	 * @return Row, with as many values as the header names columns.
+	 * @throws IOException If the file cannot be read.
+	 */
+	String[] next(Object owner) throws IOException {
+		if(THREAD.equals(mode)) {
+			Cursor c;
+			synchronized(this) {
+				c=ownerCursors.get(owner);
+			}
+			if(c == null) {
+				c=new Cursor();
+				synchronized(this) {
+					if(closed) {
+						c.close();
+						throw new IOException("Feed "+file+" closed");
+					}
+					ownerCursors.put(owner, c);
+				}
+			}
+			// An owner renders one request at a time.
+			return c.nextRow();
+		}
+		synchronized(this) {
+			if(SEQUENTIAL.equals(mode)) {
+				return cursor.nextRow();
+			}
+			if(window == null) {
+				window=new String[RANDOM_WINDOW][];
+				random=new Random();
+				while(windowSize < RANDOM_WINDOW) {
+					window[windowSize++]=cursor.nextRow();
+				}
+			}
+			int i=random.nextInt(windowSize);
+			String[] row=window[i];
+			window[i]=cursor.nextRow();
+			return row;
+		}
+	}
+	
+	/**
+	 * Close the file read for an owner in thread mode, once it renders no
+	 * more requests.
+	 * @param owner Owner passed to {@link #next(Object)}.
+	 */
+	void release(Object owner) {
+		Cursor c;
+		synchronized(this) {
+			c=ownerCursors.remove(owner);
+		}
+		if(c != null) {
+			c.close();
+		}
+	}
+	
+	/**
+	 * Close the file.
+	 */
+	public synchronized void close() {
+		closed=true;
+		cursor.close();
+		for(Cursor c:ownerCursors.values()) {
+			c.close();
+		}
+		ownerCursors.clear();
+	}
+	
+	/**
+	 * Split a CSV line into values. Values may be quoted with double quotes,
+	 * a double quote within a quoted value is written twice.
+	 */
+	static String[] parseLine(String line) {
+		List<String> values=new ArrayList<String>();
+		StringBuilder value=new StringBuilder();
+		boolean quoted=false;
+		for(int i=0; i < line.length(); i++) {
+			char c=line.charAt(i);
+			if(quoted) {
+				if(c == '"') {
+					if(i+1 < line.length() && line.charAt(i+1) == '"') {
+						value.append('"');
+						i++;
+					} else {
+						quoted=false;
+					}
+				} else {
+					value.append(c);
+				}
+			} else if(c == '"') {
+				quoted=true;
+			} else if(c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values.toArray(new String[values.size()]);
+	}
+	
+	/**
+	 * Reader positioned after the header line.
+	 */
+	private class Cursor
+	{
+		private final String[] header;
+		private BufferedReader reader;
+		
+		Cursor() throws IOException {
+			reader=open();
+			String line=reader.readLine();
+			if(line == null) {
+				reader.close();
+				throw new IOException("No header in "+file);
+			}
+			header=parseLine(line);
+		}
+		
+		/**
+		 * Get the next row, starting again at the first row at the end of
+		 * the file.
+		 */
+		String[] nextRow() throws IOException {
+			String[] row=next();
+			if(row == null) {
+				reader.close();
+				reader=open();
+				reader.readLine();
+				row=next();
+				if(row == null) {
+					throw new IOException("No rows in "+file);
+				}
+			}
+			return row;
+		}
+		
+		String[] next() throws IOException {
+			String line;
+			do {
+				line=reader.readLine();
+				if(line == null) {
+					return null;
+				}
+			} while(line.length() == 0);
+			String[] values=parseLine(line);
+			if(values.length < header.length) {
+				String[] row=new String[header.length];
+				System.arraycopy(values, 0, row, 0, values.length);
+				for(int i=values.length; i < row.length; i++) {
+					row[i]="";
+				}
+				values=row;
+			}
+			return values;
+		}
+		
+		void close() {
+			try {
+				reader.close();
+			} catch(IOException e) {
+				// Ignore, feed is discarded.
+			}
+		}
+		
+		private BufferedReader open() throws IOException {
+			return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		}
+	}
+}
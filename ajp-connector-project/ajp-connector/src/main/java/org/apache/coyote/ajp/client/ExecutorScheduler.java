@@ -0,0 +1,78 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.apache.coyote.ajp.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduler running each connection of a request context as a blocking
+ * {@link AjpProcessor} on an executor.
+ */
+class ExecutorScheduler extends AjpScheduler
+{
+	private final ExecutorService executor;
+	
+	ExecutorScheduler(ExecutorService executor) {
+		this.executor=executor;
+	}
+	
+	/**
+	 * Create a scheduler with a fixed number of daemon threads.
+	 */
+	static ExecutorScheduler newFixedThreadScheduler(int threads) {
+		final AtomicInteger count=new AtomicInteger();
+		return new ExecutorScheduler(Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread=new Thread(r, "ajp-processor-"+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+	}
+	
+	/**
+	 * Create a scheduler starting a virtual thread per connection. Looked
+	 * up by reflection as virtual threads need Java 21.
+	 * @return Scheduler, or null if the runtime has no virtual threads.
+	 */
+	static ExecutorScheduler newVirtualThreadScheduler() {
+		try {
+			Method factory=Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return new ExecutorScheduler((ExecutorService)factory.invoke(null));
+		} catch(Exception e) {
+			// Not available before Java 21.
+			return null;
+		}
+	}
+	
+	@Override
+	protected Future<?> submit(RequestContext ctx, int rounds) {
+		return executor.submit(new AjpProcessor(ctx, rounds));
+	}
+	
+	@Override
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.apache.coyote.ajp.client;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * String with <code>${column}</code> placeholders, replaced by the values of
+ * a row of the {@link DataFeed} having that column.
+ */
+final class Expression
+{
+	private final String[] literals;
+	private final int[] slots;
+	private final int[] columns;
+	
+	private Expression(String[] literals, int[] slots, int[] columns) {
+		this.literals=literals;
+		this.slots=slots;
+		this.columns=columns;
+	}
+	
+	/**
+	 * Parse a string for placeholders.
+	 * @param s String, may be null.
+	 * @param cc Client context with the feeds.
+	 * @param feeds Feeds used by the template, extended by the feeds
+	 *        referenced by this string. The index of a feed in this list
+	 *        is its slot in the rows passed to {@link #expand(String[][])}.
+	 * @return Expression, or null if the string has no placeholders or the
+	 *         client context no feeds.
+	 * @throws IllegalArgumentException If no feed has a referenced column.
+	 */
+	static Expression parse(String s, ClientContext cc, List<DataFeed> feeds) {
+		if(s == null || s.indexOf("${") < 0 || cc.getFeeds().isEmpty()) {
+			return null;
+		}
+		List<String> literals=new ArrayList<String>();
+		List<Integer> slots=new ArrayList<Integer>();
+		List<Integer> columns=new ArrayList<Integer>();
+		int from=0;
+		int start;
+		while((start=s.indexOf("${", from)) >= 0) {
+			int end=s.indexOf('}', start+2);
+			if(end < 0) {
+				break;
+			}
+			String name=s.substring(start+2, end);
+			DataFeed feed=cc.getFeed(name);
+			if(feed == null) {
+				throw new IllegalArgumentException("No feed has a column for ${"+name+"}");
+			}
+			int slot=feeds.indexOf(feed);
+			if(slot < 0) {
+				slot=feeds.size();
+				feeds.add(feed);
+			}
+			literals.add(s.substring(from, start));
+			slots.add(Integer.valueOf(slot));
+			columns.add(Integer.valueOf(feed.getColumn(name)));
+			from=end+1;
+		}
+		if(slots.isEmpty()) {
+			return null;
+		}
+		literals.add(s.substring(from));
+		
+		int[] slotArray=new int[slots.size()];
+		int[] columnArray=new int[columns.size()];
+		for(int i=0; i < slotArray.length; i++) {
+			slotArray[i]=slots.get(i).intValue();
+			columnArray[i]=columns.get(i).intValue();
+		}
+		return new Expression(literals.toArray(new String[literals.size()]), slotArray, columnArray);
+	}
+	
+	/**
+	 * Replace the placeholders.
+	 * @param rows Current row of each feed slot.
+	 * @return Expanded string.
+	 */
+	String expandString(String[][] rows) {
+		StringBuilder sb=new StringBuilder(literals[0]);
+		for(int i=0; i < slots.length; i++) {
+			sb.append(rows[slots[i]][columns[i]]);
+			sb.append(literals[i+1]);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Replace the placeholders and encode the result as ISO-8859-1, like
+	 * all strings of an AJP packet.
+	 * @param rows Current row of each feed slot.
+	 * @return Expanded bytes.
+	 */
+	byte[] expand(String[][] rows) throws UnsupportedEncodingException {
+		return expandString(rows).getBytes("ISO-8859-1");
+	}
+}
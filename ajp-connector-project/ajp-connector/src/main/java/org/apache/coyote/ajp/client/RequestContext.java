@@ -18,6 +18,7 @@
 package org.apache.coyote.ajp.client;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
@@ -32,10 +33,14 @@ public class RequestContext {
 	File bodyFile;
 	ClientContext cc;
 	int rounds;
+	int concurrency;
+	private volatile URL requestUrl;
+	private volatile RequestTemplate template;
 	
 	public RequestContext(ClientContext cc){
 		this.cc = cc;
 		rounds=1;
+		concurrency=1;
 	}
 	
 	void setUrl(URL url) {
@@ -46,6 +51,31 @@ public class RequestContext {
 		return url;
 	}
 	
+	/**
+	 * Get the URL requested, with the query parameters of a GET request.
+	 */
+	URL getRequestUrl() throws IOException {
+		URL u=requestUrl;
+		if(u == null){
+			u=RequestTemplate.buildRequestUrl(this);
+			requestUrl=u;
+		}
+		return u;
+	}
+	
+	/**
+	 * Get the encoded forward request for a connection, compiled on first
+	 * use and again only if the local address of the connection changes.
+	 */
+	RequestTemplate getTemplate(String localAddress, String localName) throws IOException {
+		RequestTemplate t=template;
+		if(t == null || !t.isFor(localAddress, localName)){
+			t=new RequestTemplate(this, localAddress, localName);
+			template=t;
+		}
+		return t;
+	}
+	
 	
 	void setHeader(String name,String value){
 		headers.put(name, value);
@@ -89,6 +119,14 @@ public class RequestContext {
 		return rounds;
 	}
 	
+	void setConcurrency(int concurrency){
+		this.concurrency=concurrency;
+	}
+	
+	int getConcurrency(){
+		return concurrency;
+	}
+	
 	File getBodyFile(){
 		return bodyFile;
 	}
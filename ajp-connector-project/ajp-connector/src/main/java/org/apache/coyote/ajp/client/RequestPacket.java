@@ -0,0 +1,61 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.apache.coyote.ajp.client;
+
+/**
+ * Forward request of one round as rendered by a {@link RequestTemplate}.
+ * Holds the template packet itself for a request without placeholders, or
+ * the variant spliced into its own buffer. One instance is reused by each
+ * processor or connection.
+ */
+final class RequestPacket
+{
+	final byte[] data = new byte[2*RequestTemplate.MAX_PACKET_SIZE];
+	byte[] buffer;
+	int length;
+	byte[] body;
+	int bodyOffset;
+	
+	/**
+	 * Get the buffer holding the packets to send.
+	 * @return Buffer, valid up to {@link #getLength()}, not to be modified.
+	 */
+	byte[] getBuffer() {
+		return buffer;
+	}
+	
+	int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Get the form body of a POST request.
+	 * @return Body, or null if there is none.
+	 */
+	byte[] getBody() {
+		return body;
+	}
+	
+	/**
+	 * Get the offset of the body chunk requested next by the container.
+	 */
+	int getBodyOffset() {
+		return bodyOffset;
+	}
+}
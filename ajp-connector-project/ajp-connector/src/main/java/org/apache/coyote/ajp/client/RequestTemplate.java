@@ -0,0 +1,442 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package org.apache.coyote.ajp.client;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AJP13 FORWARD_REQUEST of a request context, encoded once and replayed by
+ * every round of the blocking {@link AjpProcessor} and the
+ * {@link AjpNioEngine}. The packet is complete including the 0x1234 magic
+ * and length and, for a POST request, followed by the first body chunk, so
+ * a round sends it with a single write. The template depends on the local
+ * address of the connection, which is part of the request.
+ * <p>
+ * Strings with <code>${column}</code> placeholders are left out of the
+ * packet and recorded as fields with their offset instead. Each round then
+ * splices the values of the next rows of the feeds into the packet at these
+ * offsets and patches the packet length, without encoding the request again.
+ */
+final class RequestTemplate
+{
+	private static final int AJP13_FORWARD_REQUEST = 2;
+	private static final int METHOD_GET = 2;
+	private static final int METHOD_POST = 4;
+	private static final int ATTRIBUTE_QUERY_STRING = 0x05;
+	private static final int ATTRIBUTE_TERMINATOR = 0xff;
+	private static final int HEADER_HOST = 0xA00B;
+	private static final int HEADER_CONTENT_TYPE = 0xA007;
+	private static final int HEADER_CONTENT_LENGTH = 0xA008;
+	
+	/**
+	 * Size of the header of a body chunk packet.
+	 */
+	static final int CHUNK_HEADER_SIZE = 6;
+	
+	/**
+	 * Maximum size of an AJP packet.
+	 */
+	static final int MAX_PACKET_SIZE = 8*1024;
+	
+	/**
+	 *  Translates request header names to integer codes    
+	 */
+	private static final Map<String,Integer> headerCodes = new HashMap<String,Integer>();
+	
+	static {
+		String []headerTransArray = {
+			"accept",               //$NON-NLS-1$
+			"accept-charset",       //$NON-NLS-1$
+			"accept-encoding",      //$NON-NLS-1$
+			"accept-language",      //$NON-NLS-1$
+			"authorization",        //$NON-NLS-1$
+			"connection",           //$NON-NLS-1$
+			"content-type",         //$NON-NLS-1$
+			"content-length",       //$NON-NLS-1$
+			"cookie",               //$NON-NLS-1$
+			"cookie2",              //$NON-NLS-1$
+			"host",                 //$NON-NLS-1$
+			"pragma",               //$NON-NLS-1$
+			"referer",              //$NON-NLS-1$
+			"user-agent"            //$NON-NLS-1$
+		};
+		for(int i=0; i < headerTransArray.length; i++) {
+			headerCodes.put(headerTransArray[i], Integer.valueOf(Constants.AJP_HEADER_BASE+i+1));
+		}
+	}
+	
+	private final String localAddress;
+	private final String localName;
+	private final byte[] packet;
+	private final byte[] body;
+	private final int bodyOffset;
+	private final Field[] fields;
+	private final Expression bodyExpression;
+	private final DataFeed[] feeds;
+	private final boolean post;
+	
+	/**
+	 * Encode the forward request of a request context.
+	 * @param ctx Request context.
+	 * @param localAddress Local address of the connection.
+	 * @param localName Local host name of the connection.
+	 * @throws IOException If the packet exceeds the AJP packet size.
+	 */
+	RequestTemplate(RequestContext ctx, String localAddress, String localName) throws IOException {
+		this.localAddress=localAddress;
+		this.localName=localName;
+		
+		URL url=ctx.getRequestUrl();
+		ClientContext cc=ctx.getClientContext();
+		post=Constants.POST.equals(ctx.getMethod());
+		List<DataFeed> feedList=new ArrayList<DataFeed>();
+		byte[] form=post ? getFormBody(ctx) : null;
+		bodyExpression=(form == null) ? null : Expression.parse(new String(form, "ISO-8859-1"), cc, feedList);
+		body=(bodyExpression == null) ? form : null;
+		
+		Encoder encoder=new Encoder(cc, feedList);
+		try {
+			int len=encoder.encode(ctx, url, localAddress, localName, body, bodyExpression != null);
+			if(len > MAX_PACKET_SIZE) {
+				throw new ArrayIndexOutOfBoundsException(len);
+			}
+			if(post && encoder.fields.isEmpty()) {
+				bodyOffset=encoder.bodyChunk(body, 0);
+			} else {
+				bodyOffset=0;
+			}
+		} catch(ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Request too large for an AJP packet: "+url);
+		}
+		packet=encoder.toByteArray();
+		fields=encoder.fields.isEmpty() ? null : encoder.fields.toArray(new Field[encoder.fields.size()]);
+		feeds=feedList.toArray(new DataFeed[feedList.size()]);
+	}
+	
+	/**
+	 * Render the request of a round. A template without placeholders is
+	 * handed out as is, otherwise the next row of each feed is spliced in.
+	 * @param p Packet to render into.
+	 * @throws IOException If a feed cannot be read or the packet exceeds the
+	 *         AJP packet size.
+	 */
+	void render(RequestPacket p) throws IOException {
+		if(fields == null) {
+			p.buffer=packet;
+			p.length=packet.length;
+			p.body=body;
+			p.bodyOffset=bodyOffset;
+			return;
+		}
+		
+		String[][] rows=new String[feeds.length][];
+		for(int i=0; i < rows.length; i++) {
+			rows[i]=feeds[i].next(p);
+		}
+		byte[] form=(bodyExpression == null) ? body : bodyExpression.expand(rows);
+		byte[][] values=new byte[fields.length][];
+		int len=packet.length;
+		for(int i=0; i < fields.length; i++) {
+			Expression value=fields[i].value;
+			values[i]=(value == null) ? String.valueOf(form.length).getBytes("ISO-8859-1") : value.expand(rows);
+			len+=values[i].length+3;
+		}
+		if(len > MAX_PACKET_SIZE) {
+			throw new IOException("Request too large for an AJP packet: "+len+" bytes");
+		}
+		
+		byte[] dest=p.data;
+		int pos=0;
+		int from=0;
+		for(int i=0; i < fields.length; i++) {
+			int n=fields[i].offset-from;
+			System.arraycopy(packet, from, dest, pos, n);
+			pos+=n;
+			from=fields[i].offset;
+			byte[] value=values[i];
+			dest[pos++]=(byte)((value.length >> 8)&0xff);
+			dest[pos++]=(byte)(value.length&0xff);
+			System.arraycopy(value, 0, dest, pos, value.length);
+			pos+=value.length;
+			dest[pos++]=0;
+		}
+		System.arraycopy(packet, from, dest, pos, packet.length-from);
+		pos+=packet.length-from;
+		dest[2]=(byte)(((pos-4) >> 8)&0xff);
+		dest[3]=(byte)((pos-4)&0xff);
+		
+		p.buffer=dest;
+		p.body=form;
+		p.bodyOffset=0;
+		if(post) {
+			int n=bodyChunk(dest, pos, form, 0);
+			pos+=n;
+			p.bodyOffset=n-CHUNK_HEADER_SIZE;
+		}
+		p.length=pos;
+	}
+	
+	/**
+	 * Build the URL of a request context, with the query parameters of a
+	 * GET request appended.
+	 */
+	static URL buildRequestUrl(RequestContext ctx) throws IOException {
+		URL url=ctx.getUrl();
+		if(ctx.getQueryParams().size() > 0 && ctx.getMethod().equals(Constants.GET) && url.getQuery() != null){
+			StringBuilder sb=new StringBuilder(url.toString());
+			sb.append("?");
+			
+			Map<String,String> params=ctx.getQueryParams();
+			boolean first=true;
+			
+			for(String param:params.keySet()){	
+				if(first){
+					first=false;
+				}else{
+					sb.append("&");
+				}
+				sb.append(param);
+				sb.append("=");
+				sb.append(params.get(param));
+			}
+			
+			url=new URL(sb.toString());
+		}
+		return url;
+	}
+	
+	/**
+	 * Get the AJP port of a URL, 8009 unless a port other than the default
+	 * port of the scheme is given.
+	 */
+	static int getPort(URL url) {
+		int port = url.getPort();
+		if(port <= 0 || port == url.getDefaultPort()) {
+			port = 8009;
+		}
+		return port;
+	}
+	
+	/**
+	 * Whether this template was encoded for a connection with the given
+	 * local address.
+	 */
+	boolean isFor(String localAddress, String localName) {
+		return this.localAddress.equals(localAddress) && this.localName.equals(localName);
+	}
+	
+	/**
+	 * Encode a body chunk packet into a buffer.
+	 * @param dest Buffer with room for at least {@link Constants#MAX_SEND_SIZE}
+	 *        + {@link #CHUNK_HEADER_SIZE} bytes.
+	 * @param pos Position of the packet in the buffer.
+	 * @param data Body, or null.
+	 * @param offset Offset of the chunk in the body.
+	 * @return Length of the packet.
+	 */
+	static int bodyChunk(byte[] dest, int pos, byte[] data, int offset) {
+		int len = (data == null) ? 0 : Math.min(data.length - offset, Constants.MAX_SEND_SIZE);
+		if(len < 0) {
+			len = 0;
+		}
+		dest[pos] = 0x12;
+		dest[pos+1] = 0x34;
+		dest[pos+2] = (byte)(((len+2) >> 8)&0xff);
+		dest[pos+3] = (byte)((len+2)&0xff);
+		dest[pos+4] = (byte)((len >> 8)&0xff);
+		dest[pos+5] = (byte)(len&0xff);
+		if(len > 0) {
+			System.arraycopy(data, offset, dest, pos+CHUNK_HEADER_SIZE, len);
+		}
+		return len+CHUNK_HEADER_SIZE;
+	}
+	
+	private static byte[] getFormBody(RequestContext ctx) {
+		if(ctx.getBodyFile() != null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		
+		boolean first = true;
+		Map<String,String> params=ctx.getQueryParams();
+		
+		for(String param:params.keySet()){
+			if(first) {
+				first = false;
+				sb.append(param);
+				sb.append("=");
+			} else {
+				sb.append('&');
+			}
+			sb.append(params.get(param));
+		}
+		return sb.toString().getBytes(); //FIXME - encoding
+	}
+	
+	/**
+	 * String with placeholders, inserted into the packet at the offset.
+	 */
+	private static final class Field
+	{
+		private final int offset;
+		private final Expression value;
+		
+		/**
+		 * @param offset Offset in the packet.
+		 * @param value String, or null for the length of the body.
+		 */
+		Field(int offset, Expression value) {
+			this.offset = offset;
+			this.value = value;
+		}
+	}
+	
+	/**
+	 * Packet encoder, used once per template.
+	 */
+	private static class Encoder
+	{
+		private final byte[] buf = new byte[2*MAX_PACKET_SIZE];
+		private final ClientContext cc;
+		private final List<DataFeed> feeds;
+		private final List<Field> fields = new ArrayList<Field>();
+		private int pos;
+		
+		Encoder(ClientContext cc, List<DataFeed> feeds) {
+			this.cc = cc;
+			this.feeds = feeds;
+		}
+		
+		/**
+		 * Encode the forward request.
+		 * @return Length of the packet.
+		 */
+		int encode(RequestContext ctx, URL url, String localAddress, String localName, byte[] body, boolean variableBody) throws UnsupportedEncodingException {
+			String host = url.getHost();
+			boolean post = Constants.POST.equals(ctx.getMethod());
+			
+			pos = 4;
+			setByte(AJP13_FORWARD_REQUEST);
+			setByte(post ? METHOD_POST : METHOD_GET);
+			if(cc.getHttpVersion() != null && (cc.getHttpVersion().equals("1.0") || cc.getHttpVersion().equals("1"))) {//$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
+				setString("HTTP/1.0");//$NON-NLS-1$
+			} else {
+				setString("HTTP/1.1");
+			}
+			setString(url.getPath());
+			setString(localAddress);
+			setString(localName);
+			setString(host);
+			setInt(url.getDefaultPort());
+			setByte(Constants.PROTOCOL_HTTPS.equalsIgnoreCase(url.getProtocol()) ? 1 : 0);
+			
+			int countPos = pos;
+			int count = 1;
+			setInt(0);
+			setInt(HEADER_HOST);
+			setString(host);
+			Map<String,String> headers=ctx.getHeaders();
+			for(String name:headers.keySet()){
+				if(name.equals("host")) {
+					continue; // We already set host header.
+				}
+				Integer code=headerCodes.get(name.toLowerCase());
+				if(code != null){
+					setInt(code.intValue());
+				}else{
+					setString(name);
+				}
+				setString(headers.get(name));
+				count++;
+			}
+			if(post) {
+				boolean form = body != null || variableBody;
+				if(form) {
+					setInt(HEADER_CONTENT_TYPE);
+					setString(Constants.APPLICATION_X_WWW_FORM_URLENCODED);
+				}
+				setInt(HEADER_CONTENT_LENGTH);
+				if(variableBody) {
+					fields.add(new Field(pos, null));
+				} else {
+					setString(String.valueOf(body == null ? -1 : body.length));
+				}
+				count += form ? 2 : 1;
+			}
+			buf[countPos] = (byte)((count >> 8)&0xff);
+			buf[countPos+1] = (byte)(count&0xff);
+			
+			String query = url.getQuery();
+			if (query != null) {
+				setByte(ATTRIBUTE_QUERY_STRING);
+				setString(query);
+			}
+			setByte(ATTRIBUTE_TERMINATOR); // More general attributes not supported
+			
+			int len = pos;
+			pos = 0;
+			setInt(0x1234);
+			setInt(len-4);
+			pos = len;
+			return len;
+		}
+		
+		int bodyChunk(byte[] data, int offset) {
+			int len = RequestTemplate.bodyChunk(buf, pos, data, offset);
+			pos += len;
+			return len-CHUNK_HEADER_SIZE;
+		}
+		
+		byte[] toByteArray() {
+			byte[] packet = new byte[pos];
+			System.arraycopy(buf, 0, packet, 0, pos);
+			return packet;
+		}
+		
+		private void setByte(int b) {
+			buf[pos++] = (byte)b;
+		}
+		
+		private void setInt(int n) {
+			buf[pos++] = (byte)((n >> 8)&0xff);
+			buf[pos++] = (byte) (n&0xff);
+		}
+		
+		private void setString(String s) throws UnsupportedEncodingException {
+			Expression value = Expression.parse(s, cc, feeds);
+			if( value != null ) {
+				fields.add(new Field(pos, value));
+			} else if( s == null ) {
+				setInt(0xFFFF);
+			} else {
+				byte[] b = s.getBytes("ISO-8859-1");
+				setInt(b.length);
+				System.arraycopy(b, 0, buf, pos, b.length);
+				pos += b.length;
+				buf[pos++] = 0;
+			}
+		}
+	}
+}
@@ -26,7 +26,10 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class AJPClient {
 	
@@ -46,8 +49,6 @@ public class AJPClient {
 	
 	ClientContext cc=new ClientContext();
 	
-	AjpProcessor[] processors;
-	
 	public static void main(String args[]) throws Exception{
 		AJPClient client=new AJPClient();
 		client.parseArguments(args);
@@ -141,6 +142,46 @@ public class AJPClient {
                     	cc.method=Constants.GET;
                     }
                     isSwitch=true;
+                } else if (name.equals("--engine")) {
+                    if(!value.equals(Constants.ENGINE_NIO) && !value.equals(Constants.ENGINE_THREAD)
+                    		&& !value.equals(Constants.ENGINE_VIRTUAL)){
+                    	printUsage();
+                    	System.exit(-1);
+                    }
+                    cc.engine=value;
+                    isSwitch=true;
+                } else if (name.equals("--concurrency")) {
+                    cc.setConcurrency(Integer.parseInt(value));
+                    isSwitch=true;
+                } else if (name.equals("--threads")) {
+                    cc.setThreads(Integer.parseInt(value));
+                    isSwitch=true;
+                } else if (name.equals("--selectors")) {
+                    cc.selectors=Integer.parseInt(value);
+                    isSwitch=true;
+                } else if (name.equals("--max-connections")) {
+                    cc.getConnectionPool().setMaxPerTarget(Integer.parseInt(value));
+                    isSwitch=true;
+                } else if (name.equals("--idle-timeout")) {
+                    cc.getConnectionPool().setIdleTimeout((long)(Double.parseDouble(value)*1000));
+                    isSwitch=true;
+                } else if (name.equals("--feed")) {
+                    String mode=DataFeed.SEQUENTIAL;
+                    int colon=value.lastIndexOf(':');
+                    if(colon > 0){
+                    	String suffix=value.substring(colon+1);
+                    	if(suffix.equals(DataFeed.SEQUENTIAL) || suffix.equals(DataFeed.RANDOM) || suffix.equals(DataFeed.THREAD)){
+                    		mode=suffix;
+                    		value=value.substring(0, colon);
+                    	}
+                    }
+                    try{
+                    	cc.addFeed(new File(value), mode);
+                    }catch(IOException e){
+                    	System.out.println("Failed loading feed "+value+": "+e.getMessage());
+                    	System.exit(-1);
+                    }
+                    isSwitch=true;
                 } else if (name.equals("-h") || name.equals("--help")) {
                     printUsage();
                     System.exit(0);
@@ -182,6 +223,23 @@ public class AJPClient {
 		System.out.println("\t-o\n\t--output=file\n\t\tSets the output file location. If - is specified then outputs to the console.\n");
 		System.out.println("\t-H\n\t--headers=header_1:value|....|header_2:value\n\t\t" +
 				"Sets headers to be included in HTTP requests for url[s] specified in the command line.\n");
+		System.out.println("\t--engine=engine\n\t\tSets the engine executing the requests. Either thread, a pool of threads with one" +
+				" connection each, virtual, a virtual thread per connection (Java 21 and later, otherwise as thread)," +
+				" or nio, all connections multiplexed over a few selector threads. Defaults to thread.\n");
+		System.out.println("\t--concurrency=number\n\t\tSets the number of connections each url is fetched over in parallel," +
+				" the rounds being divided among them. May also be given per request in the requests file. Defaults to 1.\n");
+		System.out.println("\t--threads=number\n\t\tSets the number of threads of the thread engine." +
+				" Defaults to one per connection, at most "+AjpScheduler.DEFAULT_MAX_THREADS+" (8 per processor).\n");
+		System.out.println("\t--selectors=number\n\t\tSets the number of selector threads of the nio engine." +
+				" Defaults to the number of processors, at most 4.\n");
+		System.out.println("\t--max-connections=number\n\t\tSets the maximum number of connections of the thread engine to one host and port," +
+				" shared by all url[s]. Defaults to "+AjpConnectionPool.DEFAULT_MAX_PER_TARGET+".\n");
+		System.out.println("\t--idle-timeout=seconds\n\t\tSets the time an idle connection is kept open for reuse. Defaults to " +
+				AjpConnectionPool.DEFAULT_IDLE_TIMEOUT/1000+" seconds.\n");
+		System.out.println("\t--feed=file[:mode]\n\t\tAdds a CSV file whose first line names the columns. ${column} in url[s], header values" +
+				" and query parameters is replaced by the value in the next row, in file order (sequential), in random order (random)" +
+				" or in file order per concurrent connection (thread). Defaults to sequential. Feeds may also be given in the requests file as" +
+				" <feed><file>file</file><mode>mode</mode></feed>.\n");
 	}
 	
 	private void error(String... switches){
@@ -196,29 +254,32 @@ public class AJPClient {
 	
 	private void init() throws Exception{
 		cc.init();
-		Set<RequestContext> ctxs=cc.getRequestContexts();
-		processors=new AjpProcessor[ctxs.size()];
-		
-		int index=0;
-		for(Iterator<RequestContext> it=ctxs.iterator();it.hasNext();){
-			AjpProcessor processor=new AjpProcessor(it.next());
-			processors[index++]=processor;
-		}
 	}
 	
-	private void run(){
-		for(AjpProcessor processor:processors){
-			new Thread(processor).start();
-		}
-		
-		synchronized(cc){
-			while(cc.getProcessorCount() > 0){
+	private void run() throws IOException{
+		AjpScheduler scheduler=AjpScheduler.create(cc);
+		try{
+			List<Future<?>> futures=new ArrayList<Future<?>>();
+			for(RequestContext ctx:cc.getRequestContexts()){
+				futures.addAll(scheduler.submit(ctx));
+			}
+			
+			for(Future<?> future:futures){
 				try {
-					cc.wait();
+					future.get();
 				} catch (InterruptedException e) {
-					e.printStackTrace();
+					Thread.currentThread().interrupt();
+					break;
+				} catch (ExecutionException e) {
+					System.err.println("Request failed: "+e.getCause());
+				} catch (CancellationException e) {
+					// Aborted by the engine, e.g. when a selector thread died.
+					System.err.println("Request aborted");
 				}
 			}
+		}finally{
+			scheduler.shutdown();
+			cc.close();
 		}
 	}
 	
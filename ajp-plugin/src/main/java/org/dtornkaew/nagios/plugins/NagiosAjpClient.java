@@ -101,6 +101,10 @@ public final class NagiosAjpClient extends AJPClient
 	 * Request type (GET,POST)
 	 */
 	private static final String PROP_METHOD = "method";
+	/**
+	 * Request engine (thread,virtual,nio)
+	 */
+	private static final String PROP_ENGINE = "engine";
 	/**
 	 * Help output
 	 */
@@ -265,6 +269,10 @@ public final class NagiosAjpClient extends AJPClient
 		this.context.setMethod( 
 			props.getProperty( PROP_METHOD, "GET" ) );
 		
+		// Engine
+		if( props.containsKey( PROP_ENGINE ) )
+			this.context.setEngine( props.getProperty( PROP_ENGINE ) );
+		
 		// Critical threshold
 		this.thresholdCritical = ( props.containsKey( PROP_THRESHOLD_CRITICAL ) ) ? Long.parseLong( props.getProperty( PROP_THRESHOLD_CRITICAL ) ) : null;
 		
@@ -367,6 +375,9 @@ public final class NagiosAjpClient extends AJPClient
 			// query method
 			else if( "-m".equals( args[i] ) || "--method".equals( args[i] ) )
 				props.put( PROP_METHOD, args[++i] );
+			// request engine
+			else if( "-e".equals( args[i] ) || "--engine".equals( args[i] ) )
+				props.put( PROP_ENGINE, args[++i] );
 			// warning threshold
 			else if( "-w".equals( args[i] ) || "--warning".equals( args[i] ) )
 				props.put( PROP_THRESHOLD_WARNING, args[++i] );
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.MBeanServerConnection;
+
+/**
+ * Check computing its values from several remote calls instead of reading
+ * a single attribute, selected with --mode. The attribute name (-A) of
+ * each check selects one of the metrics of the mode, thresholds and
+ * performance data work as for attribute checks.
+ *
+ */
+public interface CheckMode {
+
+    /**
+     * Get name of the MBean the metrics are taken from, used as object name
+     * of the checks.
+     * @return Object name.
+     */
+    String getObjectName();
+
+    /**
+     * Get names of the metrics.
+     * @return Metric names.
+     */
+    List<String> getMetrics();
+
+    /**
+     * Get units of a metric.
+     * @param metric Metric name.
+     * @return Units, or null.
+     */
+    String getUnits(String metric);
+
+    /**
+     * Compute metrics.
+     * @param connection MBean server connection.
+     * @param deadline Deadline of the check, bounding any waiting.
+     * @param args Arguments of the check.
+     * @return Values by metric name, a missing value is not set.
+     * @throws NagiosJmxPluginException If the metrics are not available.
+     * @throws Exception If querying the server fails.
+     */
+    Map<String, Number> query(MBeanServerConnection connection, Deadline deadline,
+            Properties args)
+    throws NagiosJmxPluginException, Exception;
+
+    /**
+     * Get lines added to the output after the performance data.
+     * @return Long output, or null.
+     */
+    String getLongOutput();
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Deadline of a check, covering all of its phases. Phases are executed on
+ * a worker thread so that the check can return when the deadline expires
+ * even if a remote call does not. The time spent in each phase is kept.
+ *
+ */
+public class Deadline {
+
+    /**
+     * Connect phase.
+     */
+    public static final String PHASE_CONNECT = "connect";
+    /**
+     * Query phase.
+     */
+    public static final String PHASE_QUERY = "query";
+    /**
+     * Invoke phase.
+     */
+    public static final String PHASE_INVOKE = "invoke";
+    /**
+     * Close phase.
+     */
+    public static final String PHASE_CLOSE = "close";
+    /**
+     * Thread dump phase.
+     */
+    public static final String PHASE_DUMP = "dump";
+    /**
+     * History phase.
+     */
+    public static final String PHASE_HISTORY = "history";
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "check_jmx-deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final long start = System.nanoTime();
+    private final long timeout;
+    private final int status;
+    private final Map<String, Long> timings =
+        Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+
+    /**
+     * Create deadline.
+     * @param timeout Timeout in milliseconds, 0 for none.
+     * @param status Nagios status reported on expiry.
+     */
+    public Deadline(long timeout, int status) {
+        this.timeout = timeout;
+        this.status = status;
+    }
+
+    /**
+     * Get timeout.
+     * @return Timeout in milliseconds, 0 for none.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Get remaining time.
+     * @return Remaining time in milliseconds, Long.MAX_VALUE if there is
+     *         no timeout.
+     */
+    public long getRemaining() {
+        if (timeout <= 0)
+            return Long.MAX_VALUE;
+        return timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Get time since the deadline was created.
+     * @return Elapsed time in nanoseconds.
+     */
+    public long getElapsed() {
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Add time spent in a phase.
+     * @param phase Phase name.
+     * @param nanos Time in nanoseconds.
+     */
+    public void addTiming(String phase, long nanos) {
+        synchronized (timings) {
+            Long previous = timings.get(phase);
+            timings.put(phase, previous == null ? nanos : previous + nanos);
+        }
+    }
+
+    /**
+     * Get time spent in each phase, in the order the phases started.
+     * @return Time in nanoseconds by phase name.
+     */
+    public Map<String, Long> getTimings() {
+        synchronized (timings) {
+            return new LinkedHashMap<String, Long>(timings);
+        }
+    }
+
+    /**
+     * Check if deadline has expired.
+     * @return true if expired.
+     */
+    public boolean isExpired() {
+        return getRemaining() <= 0;
+    }
+
+    /**
+     * Throw if deadline has expired.
+     * @param phase Current phase.
+     * @throws NagiosJmxTimeoutException If deadline has expired.
+     */
+    public void check(String phase) throws NagiosJmxTimeoutException {
+        if (isExpired())
+            throw new NagiosJmxTimeoutException(phase, timeout, status);
+    }
+
+    /**
+     * Execute phase within the remaining time. On expiry the phase is
+     * interrupted and left to finish in the background.
+     * @param phase Phase name.
+     * @param task Task.
+     * @return Result of task.
+     * @throws NagiosJmxTimeoutException If the deadline expires.
+     * @throws Exception Exception thrown by task.
+     */
+    public <T> T call(String phase, Callable<T> task) throws Exception {
+        long phaseStart = System.nanoTime();
+        try {
+            if (timeout <= 0)
+                return task.call();
+            check(phase);
+            Future<T> future = WORKERS.submit(task);
+            try {
+                return future.get(getRemaining(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                throw new NagiosJmxTimeoutException(phase, timeout, status);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
+        } finally {
+            addTiming(phase, System.nanoTime() - phaseStart);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.Attribute;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Garbage collection check. Compares the collector statistics with the
+ * previous invocation of the same check, kept in the state file, or if
+ * there is none or it is too recent with a second reading after --interval,
+ * and reports over that window:
+ * percentage of time spent in GC, collections per minute, duration of the
+ * last collection and the allocation rate.
+ *
+ * <p>The allocation rate is estimated from the eden pool: its growth over
+ * the window plus, for each collection, the eden space freed by the last
+ * collection of the same collector.</p>
+ *
+ */
+public class GcCheck implements CheckMode {
+
+    /**
+     * Metric percentage of wall time spent in GC.
+     */
+    public static final String METRIC_TIME = "time";
+    /**
+     * Metric collections per minute.
+     */
+    public static final String METRIC_PAUSES = "pauses";
+    /**
+     * Metric duration of the last collection in milliseconds.
+     */
+    public static final String METRIC_LAST = "last";
+    /**
+     * Metric allocation rate in MB per second.
+     */
+    public static final String METRIC_ALLOC = "alloc";
+
+    private static final String COLLECTORS = ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*";
+    private static final String POOLS = ManagementFactory.MEMORY_POOL_MXBEAN_DOMAIN_TYPE + ",*";
+    private static final String[] COLLECTOR_ATTRIBUTES = {
+        "CollectionTime", "CollectionCount", "LastGcInfo" };
+    /**
+     * Shortest window in milliseconds over which rates are computed.
+     */
+    private static final long MIN_WINDOW = 5000;
+
+    public String getObjectName() {
+        return COLLECTORS;
+    }
+
+    public List<String> getMetrics() {
+        return Arrays.asList(METRIC_TIME, METRIC_PAUSES, METRIC_LAST, METRIC_ALLOC);
+    }
+
+    public String getUnits(String metric) {
+        if (METRIC_TIME.equals(metric))
+            return NagiosJmxPlugin.UNIT_PERCENT;
+        if (METRIC_LAST.equals(metric))
+            return NagiosJmxPlugin.UNIT_MS;
+        return null;
+    }
+
+    public Map<String, Number> query(MBeanServerConnection connection, Deadline deadline,
+            Properties args)
+    throws NagiosJmxPluginException, Exception
+    {
+        Snapshot current = read(connection);
+        Snapshot previous = exchange(args, current);
+        if (previous == null || !previous.precedes(current) ||
+                current.time - previous.time < MIN_WINDOW) {
+            long interval = Long.parseLong(args.getProperty(NagiosJmxPlugin.PROP_INTERVAL,
+                    String.valueOf(NagiosJmxPlugin.DEFAULT_INTERVAL)));
+            long wait = Math.min(interval, deadline.getRemaining() / 2);
+            if (wait > 0)
+                Thread.sleep(wait);
+            previous = current;
+            current = read(connection);
+            exchange(args, current);
+        }
+
+        Map<String, Number> values = new HashMap<String, Number>();
+        double window = Math.max(1, current.time - previous.time);
+        long gcTime = 0;
+        long collections = 0;
+        double freed = 0;
+        for (Map.Entry<String, long[]> entry : current.collectors.entrySet()) {
+            long[] before = previous.collectors.get(entry.getKey());
+            if (before == null)
+                continue;
+            long count = entry.getValue()[1] - before[1];
+            gcTime += entry.getValue()[0] - before[0];
+            collections += count;
+            Long edenFreed = current.edenFreed.get(entry.getKey());
+            if (edenFreed != null)
+                freed += count * edenFreed.doubleValue();
+        }
+        values.put(METRIC_TIME, round(gcTime * 100 / window));
+        values.put(METRIC_PAUSES, round(collections * 60000 / window));
+        if (current.lastDuration >= 0)
+            values.put(METRIC_LAST, current.lastDuration);
+        if (current.edenUsed >= 0 && previous.edenUsed >= 0) {
+            double allocated = current.edenUsed - previous.edenUsed + freed;
+            values.put(METRIC_ALLOC, round(Math.max(0, allocated) / (1024 * 1024) /
+                    (window / 1000)));
+        }
+        return values;
+    }
+
+    public String getLongOutput() {
+        return null;
+    }
+
+    /**
+     * Read collector and eden statistics.
+     */
+    private Snapshot read(MBeanServerConnection connection) throws Exception {
+        Snapshot snapshot = new Snapshot();
+        snapshot.time = System.currentTimeMillis();
+        String eden = null;
+        for (ObjectName pool : connection.queryNames(new ObjectName(POOLS), null)) {
+            String name = pool.getKeyProperty("name");
+            if (name != null && name.contains("Eden")) {
+                CompositeData usage = (CompositeData) connection.getAttribute(pool, "Usage");
+                snapshot.edenUsed = ((Number) usage.get("used")).longValue();
+                eden = name;
+                break;
+            }
+        }
+        long lastEnd = -1;
+        for (ObjectName collector : connection.queryNames(new ObjectName(COLLECTORS), null)) {
+            Map<String, Object> attributes = new HashMap<String, Object>();
+            for (Object attribute : connection.getAttributes(collector, COLLECTOR_ATTRIBUTES)) {
+                Attribute attr = (Attribute) attribute;
+                attributes.put(attr.getName(), attr.getValue());
+            }
+            String name = collector.getKeyProperty("name");
+            snapshot.collectors.put(name, new long[] {
+                    ((Number) attributes.get("CollectionTime")).longValue(),
+                    ((Number) attributes.get("CollectionCount")).longValue() });
+            // LastGcInfo is only provided by com.sun.management collectors.
+            CompositeData gcInfo = (CompositeData) attributes.get("LastGcInfo");
+            if (gcInfo == null)
+                continue;
+            long end = ((Number) gcInfo.get("endTime")).longValue();
+            if (end > lastEnd) {
+                lastEnd = end;
+                snapshot.lastDuration = ((Number) gcInfo.get("duration")).longValue();
+            }
+            if (eden != null) {
+                long before = getUsed((TabularData) gcInfo.get("memoryUsageBeforeGc"), eden);
+                long after = getUsed((TabularData) gcInfo.get("memoryUsageAfterGc"), eden);
+                if (before >= 0 && after >= 0)
+                    snapshot.edenFreed.put(name, Math.max(0, before - after));
+            }
+        }
+        return snapshot;
+    }
+
+    private static long getUsed(TabularData usage, String pool) {
+        CompositeData row = usage.get(new Object[] { pool });
+        if (row == null)
+            return -1;
+        return ((Number) ((CompositeData) row.get("value")).get("used")).longValue();
+    }
+
+    /**
+     * Store snapshot in the state file and return the previous one of the
+     * same check. Snapshots are kept per check, as checks of the same JVM
+     * run at different times.
+     * @return Previous snapshot, or null if there is none.
+     */
+    private Snapshot exchange(Properties args, final Snapshot current)
+    throws NagiosJmxPluginException
+    {
+        final Snapshot previous = new Snapshot();
+        final boolean[] found = { true };
+        StringBuilder key = new StringBuilder(NagiosJmxPlugin.getTarget(args));
+        key.append("\u0000gc");
+        String metric;
+        for (int i = 0; (metric = args.getProperty(NagiosJmxPlugin.getItemProperty(
+                NagiosJmxPlugin.PROP_ATTRIBUTE_NAME, i))) != null; i++)
+            key.append('\u0000').append(metric);
+        String target = key.append('\u0000').toString();
+        try {
+            StateFile stateFile = StateFile.open(NagiosJmxPlugin.getStateFile(args), 2,
+                    NagiosJmxPlugin.DEFAULT_STATE_SLOTS);
+            stateFile.update(target + "eden", new StateFile.SlotUpdate() {
+                public boolean update(long[] values, long lastUpdate) {
+                    if (lastUpdate == 0)
+                        found[0] = false;
+                    previous.time = lastUpdate;
+                    previous.edenUsed = values[0];
+                    values[0] = current.edenUsed;
+                    return true;
+                }
+            });
+            for (Map.Entry<String, long[]> entry : current.collectors.entrySet()) {
+                final String name = entry.getKey();
+                final long[] counters = entry.getValue();
+                stateFile.update(target + name, new StateFile.SlotUpdate() {
+                    public boolean update(long[] values, long lastUpdate) {
+                        if (lastUpdate > 0)
+                            previous.collectors.put(name, values.clone());
+                        else
+                            found[0] = false;
+                        System.arraycopy(counters, 0, values, 0, 2);
+                        return true;
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new NagiosJmxPluginException("Error accessing state file: " + e.getMessage(), e);
+        }
+        return found[0] ? previous : null;
+    }
+
+    private static BigDecimal round(double value) {
+        return new BigDecimal(value).setScale(2, RoundingMode.HALF_UP);
+    }
+
+    /**
+     * Collector and eden statistics at one point in time.
+     */
+    private static class Snapshot {
+        private long time;
+        // Collection time and count by collector name.
+        private final Map<String, long[]> collectors = new LinkedHashMap<String, long[]>();
+        // Eden space freed by the last collection, by collector name.
+        private final Map<String, Long> edenFreed = new HashMap<String, Long>();
+        private long lastDuration = -1;
+        private long edenUsed = -1;
+
+        /**
+         * Check if this snapshot was taken before another one of the same
+         * JVM, i.e. the JVM did not restart in between.
+         */
+        boolean precedes(Snapshot other) {
+            for (Map.Entry<String, long[]> entry : collectors.entrySet()) {
+                long[] counters = other.collectors.get(entry.getKey());
+                if (counters != null && counters[1] < entry.getValue()[1])
+                    return false;
+            }
+            return time < other.time;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Heap exhaustion forecast. Records the old generation usage after garbage
+ * collection, which is free of the sawtooth of allocation between
+ * collections, in a ring of samples per JVM kept next to the state file.
+ * A least squares line fitted through the samples gives the growth of the
+ * live data and the hours until it reaches the maximum size of the pool.
+ *
+ * <p>A sample is recorded at most every --interval milliseconds, by default
+ * {@link #MIN_SPACING}, and only if the pool was collected since the
+ * previous sample. The ring is cleared if the JVM restarted.</p>
+ *
+ */
+public class HeapForecastCheck implements CheckMode {
+
+    /**
+     * Metric old generation usage after the last collection, percent of
+     * its maximum size.
+     */
+    public static final String METRIC_USED = "used";
+    /**
+     * Metric growth of the usage after collection in MB per hour.
+     */
+    public static final String METRIC_SLOPE = "slope";
+    /**
+     * Metric hours until the pool is exhausted at the current growth.
+     */
+    public static final String METRIC_HOURS = "hours";
+
+    /**
+     * Number of samples kept per JVM.
+     */
+    public static final int SAMPLES = 144;
+    /**
+     * Default minimum time in milliseconds between samples.
+     */
+    public static final long MIN_SPACING = 600000;
+    /**
+     * Minimum number of samples a trend is fitted through.
+     */
+    public static final int MIN_SAMPLES = 3;
+    /**
+     * Hours reported if the pool does not grow, or no trend is known yet.
+     */
+    public static final int MAX_HOURS = 8760;
+
+    private static final String POOLS = ManagementFactory.MEMORY_POOL_MXBEAN_DOMAIN_TYPE + ",*";
+    // Slot values: count, next index, collection count, JVM start time, samples.
+    private static final int SLOT_HEADER = 4;
+    // Returned samples: count, next index, samples.
+    private static final int HEADER = 2;
+    private static final int STATE_SLOTS = 1024;
+
+    private String longOutput;
+
+    public String getObjectName() {
+        return POOLS;
+    }
+
+    public List<String> getMetrics() {
+        return Arrays.asList(METRIC_USED, METRIC_SLOPE, METRIC_HOURS);
+    }
+
+    public String getUnits(String metric) {
+        if (METRIC_USED.equals(metric))
+            return NagiosJmxPlugin.UNIT_PERCENT;
+        return null;
+    }
+
+    public Map<String, Number> query(MBeanServerConnection connection, Deadline deadline,
+            Properties args)
+    throws NagiosJmxPluginException, Exception
+    {
+        ObjectName pool = findPool(connection, new ObjectName(
+                args.getProperty(NagiosJmxPlugin.PROP_OBJECT_NAME, POOLS)));
+        CompositeData usage = (CompositeData) connection.getAttribute(pool, "CollectionUsage");
+        if (usage == null)
+            throw new NagiosJmxPluginException("Memory pool [" + pool +
+                    "] does not provide usage after collection");
+        long used = ((Number) usage.get("used")).longValue();
+        long max = ((Number) usage.get("max")).longValue();
+        if (max < 0) {
+            CompositeData heap = (CompositeData) connection.getAttribute(
+                    new ObjectName(ManagementFactory.MEMORY_MXBEAN_NAME), "HeapMemoryUsage");
+            max = ((Number) heap.get("max")).longValue();
+        }
+        long started = ((Number) connection.getAttribute(
+                new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME), "StartTime")).longValue();
+        long collections = 0;
+        for (String manager : (String[]) connection.getAttribute(pool, "MemoryManagerNames")) {
+            ObjectName collector = new ObjectName(
+                    ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",name=" + manager);
+            if (connection.isRegistered(collector))
+                collections += ((Number) connection.getAttribute(collector,
+                        "CollectionCount")).longValue();
+        }
+        if (collections == 0)
+            throw new NagiosJmxPluginException("Memory pool [" + pool + "] not collected yet");
+
+        long spacing = Long.parseLong(args.getProperty(NagiosJmxPlugin.PROP_INTERVAL,
+                String.valueOf(MIN_SPACING)));
+        long[] samples = record(args, System.currentTimeMillis(), spacing, used,
+                collections, started);
+        int count = (int) samples[0];
+        Map<String, Number> values = new HashMap<String, Number>();
+        if (max > 0)
+            values.put(METRIC_USED, round(used * 100.0 / max));
+
+        if (count < MIN_SAMPLES) {
+            values.put(METRIC_SLOPE, round(0));
+            values.put(METRIC_HOURS, round(MAX_HOURS));
+            longOutput = pool.getKeyProperty("name") + ": " + toMB(used) + " MB used after GC, " +
+                "trend pending, " + count + " of " + MIN_SAMPLES + " samples";
+            return values;
+        }
+        // Fit used = intercept + slope * t, t in hours relative to the latest sample.
+        int latest = (int) ((samples[1] + SAMPLES - 1) % SAMPLES);
+        long now = samples[HEADER + 2 * latest];
+        double sumT = 0, sumU = 0, sumTT = 0, sumTU = 0;
+        double oldest = 0;
+        for (int i = 0; i < count; i++) {
+            double t = (samples[HEADER + 2 * i] - now) / 3600000.0;
+            double u = samples[HEADER + 2 * i + 1];
+            sumT += t;
+            sumU += u;
+            sumTT += t * t;
+            sumTU += t * u;
+            oldest = Math.min(oldest, t);
+        }
+        double denominator = count * sumTT - sumT * sumT;
+        double slope = denominator == 0 ? 0 : (count * sumTU - sumT * sumU) / denominator;
+        double intercept = (sumU - slope * sumT) / count;
+        double hours = MAX_HOURS;
+        if (slope > 0 && max > 0)
+            hours = Math.max(0, Math.min(MAX_HOURS, (max - intercept) / slope));
+        values.put(METRIC_SLOPE, round(slope / (1024 * 1024)));
+        values.put(METRIC_HOURS, round(hours));
+        longOutput = pool.getKeyProperty("name") + ": " + toMB(used) + " MB used after GC of " +
+            (max > 0 ? toMB(max) + " MB" : "undefined maximum") + ", trend " +
+            round(slope / (1024 * 1024)) + " MB/h over " + count + " samples spanning " +
+            round(-oldest) + " h";
+        return values;
+    }
+
+    public String getLongOutput() {
+        return longOutput;
+    }
+
+    /**
+     * Find old generation pool: a heap pool named old or tenured, else the
+     * only heap pool apart from eden and survivor spaces.
+     */
+    private static ObjectName findPool(MBeanServerConnection connection, ObjectName pattern)
+    throws NagiosJmxPluginException, Exception
+    {
+        Set<ObjectName> names = connection.queryNames(pattern, null);
+        if (!pattern.isPattern() && names.size() == 1)
+            return names.iterator().next();
+        ObjectName found = null;
+        int candidates = 0;
+        for (ObjectName name : names) {
+            String pool = name.getKeyProperty("name");
+            if (pool == null || !"HEAP".equals(String.valueOf(connection.getAttribute(name, "Type"))))
+                continue;
+            if (pool.contains("Old") || pool.contains("Tenured"))
+                return name;
+            if (!pool.contains("Eden") && !pool.contains("Survivor")) {
+                found = name;
+                candidates++;
+            }
+        }
+        if (candidates != 1)
+            throw new NagiosJmxPluginException("No old generation pool found, select it with -O");
+        return found;
+    }
+
+    /**
+     * Record sample in the ring of the JVM.
+     * @return Number of samples, index of the next sample and the samples
+     *         as pairs of time and usage.
+     */
+    private static long[] record(Properties args, final long time, final long spacing,
+            final long used, final long collections, final long started)
+    throws NagiosJmxPluginException
+    {
+        final long[] samples = new long[HEADER + 2 * SAMPLES];
+        File file = new File(NagiosJmxPlugin.getStateFile(args).getPath() + ".heap");
+        try {
+            StateFile stateFile = StateFile.open(file, SLOT_HEADER + 2 * SAMPLES, STATE_SLOTS);
+            stateFile.update(NagiosJmxPlugin.getTarget(args) + "\u0000heap",
+                    new StateFile.SlotUpdate() {
+                public boolean update(long[] values, long lastUpdate) {
+                    if (values[3] != started) {
+                        Arrays.fill(values, 0);
+                        values[3] = started;
+                    }
+                    int next = (int) values[1];
+                    long last = values[0] == 0 ? 0 :
+                        values[SLOT_HEADER + 2 * ((next + SAMPLES - 1) % SAMPLES)];
+                    boolean store = collections > values[2] && time - last >= spacing;
+                    if (store) {
+                        values[SLOT_HEADER + 2 * next] = time;
+                        values[SLOT_HEADER + 2 * next + 1] = used;
+                        values[0] = Math.min(SAMPLES, values[0] + 1);
+                        values[1] = (next + 1) % SAMPLES;
+                        values[2] = collections;
+                    }
+                    samples[0] = values[0];
+                    samples[1] = values[1];
+                    System.arraycopy(values, SLOT_HEADER, samples, HEADER, 2 * SAMPLES);
+                    return store || lastUpdate == 0;
+                }
+            });
+        } catch (IOException e) {
+            throw new NagiosJmxPluginException("Error accessing state file: " + e.getMessage(), e);
+        }
+        return samples;
+    }
+
+    private static long toMB(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+
+    private static BigDecimal round(double value) {
+        return new BigDecimal(value).setScale(2, RoundingMode.HALF_UP);
+    }
+}
@@ -0,0 +1,575 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.InvalidKeyException;
+
+/**
+ * Single attribute check of a check_jmx invocation, i.e. one
+ * -O/-A/-K triple together with its units and thresholds. If the object
+ * name is a pattern, the values of all matching MBeans are reduced with the
+ * aggregation function of the check.
+ *
+ */
+public class JmxCheck {
+
+    /**
+     * Aggregation sum.
+     */
+    public static final String AGGREGATE_SUM = "sum";
+    /**
+     * Aggregation minimum.
+     */
+    public static final String AGGREGATE_MIN = "min";
+    /**
+     * Aggregation maximum.
+     */
+    public static final String AGGREGATE_MAX = "max";
+    /**
+     * Aggregation average.
+     */
+    public static final String AGGREGATE_AVG = "avg";
+    /**
+     * Aggregation count of matching MBeans.
+     */
+    public static final String AGGREGATE_COUNT = "count";
+    /**
+     * List of valid aggregations.
+     */
+    public static final List<String> AGGREGATIONS = Arrays.asList(
+            AGGREGATE_SUM, AGGREGATE_MIN, AGGREGATE_MAX, AGGREGATE_AVG,
+            AGGREGATE_COUNT);
+
+    /**
+     * Statistic minimum of a sample window.
+     */
+    public static final String STATISTIC_MIN = "min";
+    /**
+     * Statistic maximum of a sample window.
+     */
+    public static final String STATISTIC_MAX = "max";
+    /**
+     * Statistic arithmetic mean of a sample window.
+     */
+    public static final String STATISTIC_MEAN = "mean";
+    /**
+     * Statistic 95th percentile (nearest rank) of a sample window.
+     */
+    public static final String STATISTIC_P95 = "p95";
+    /**
+     * List of valid statistics.
+     */
+    public static final List<String> STATISTICS = Arrays.asList(
+            STATISTIC_MIN, STATISTIC_MAX, STATISTIC_MEAN, STATISTIC_P95);
+
+    private static final Comparator<Number> NUMBER_ORDER = new Comparator<Number>() {
+        public int compare(Number n1, Number n2) {
+            return Double.compare(n1.doubleValue(), n2.doubleValue());
+        }
+    };
+
+    private final String objectName;
+    private final String attributeName;
+    private final String attributeKey;
+    private final String units;
+    private final String thresholdWarning;
+    private final String thresholdCritical;
+    private final Threshold warning;
+    private final Threshold critical;
+    private String aggregation = AGGREGATE_SUM;
+    private Map<ObjectName, Number> instanceValues;
+    private Number value;
+    private boolean rate;
+    private String pending;
+    private List<Number> samples;
+    private String statistic;
+    private Number sampleMin;
+    private Number sampleMean;
+    private Number sampleMax;
+    private Number observed;
+    private Number baselineMean;
+    private Number baselineDeviation;
+    private int baselineCount;
+    private int status = NagiosJmxPlugin.NAGIOS_OK;
+
+    /**
+     * Create check.
+     * @throws NagiosJmxPluginException If a threshold is malformed.
+     */
+    public JmxCheck(String objectName, String attributeName,
+            String attributeKey, String units, String thresholdWarning,
+            String thresholdCritical)
+    throws NagiosJmxPluginException
+    {
+        this.objectName = objectName;
+        this.attributeName = attributeName;
+        this.attributeKey = attributeKey;
+        this.units = units;
+        this.thresholdWarning = thresholdWarning;
+        this.thresholdCritical = thresholdCritical;
+        this.warning = Threshold.parse(thresholdWarning);
+        this.critical = Threshold.parse(thresholdCritical);
+    }
+
+    public String getObjectName() {
+        return objectName;
+    }
+
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    public String getAttributeKey() {
+        return attributeKey;
+    }
+
+    public String getUnits() {
+        return units;
+    }
+
+    public String getThresholdWarning() {
+        return thresholdWarning;
+    }
+
+    public String getThresholdCritical() {
+        return thresholdCritical;
+    }
+
+    public String getAggregation() {
+        return aggregation;
+    }
+
+    public void setAggregation(String aggregation) {
+        this.aggregation = aggregation;
+    }
+
+    /**
+     * Get values of the MBeans matching the object name pattern.
+     * @return Values by object name, null if object name is not a pattern.
+     */
+    public Map<ObjectName, Number> getInstanceValues() {
+        return instanceValues;
+    }
+
+    /**
+     * Check if object name is a pattern.
+     * @return true if object name is a pattern.
+     */
+    public boolean isPattern() {
+        try {
+            return new ObjectName(objectName).isPattern();
+        } catch (MalformedObjectNameException e) {
+            return false;
+        }
+    }
+
+    public Number getValue() {
+        return value;
+    }
+
+    public void setValue(Number value) {
+        this.value = value;
+    }
+
+    /**
+     * Get reason the value is not available, which is not an alert.
+     * @return Reason, or null if a missing value is a warning.
+     */
+    public String getPending() {
+        return pending;
+    }
+
+    public void setPending(String pending) {
+        this.pending = pending;
+    }
+
+    /**
+     * Check if value is a rate per second of a counter.
+     * @return true if value is a rate.
+     */
+    public boolean isRate() {
+        return rate;
+    }
+
+    /**
+     * Replace counter value by its rate per second.
+     * @param rate Rate per second, or null if there is no previous sample.
+     */
+    public void setRate(Double rate) {
+        this.rate = true;
+        this.value = rate == null ? null : Math.round(rate * 100) / 100.0;
+    }
+
+    /**
+     * Prepare sample window.
+     * @param size Number of samples to be taken.
+     */
+    public void startSampling(int size) {
+        samples = new ArrayList<Number>(size);
+    }
+
+    /**
+     * Add current value to the sample window. Missing values are skipped.
+     */
+    public void addSample() {
+        if (value != null)
+            samples.add(value);
+    }
+
+    /**
+     * Get number of samples taken.
+     * @return Number of samples, 0 if not sampling.
+     */
+    public int getSampleCount() {
+        return samples == null ? 0 : samples.size();
+    }
+
+    /**
+     * Replace value by a statistic of the sample window and keep minimum,
+     * mean and maximum for performance data. The value is not set if no
+     * sample was taken.
+     * @param statistic One of {@link #STATISTICS}.
+     */
+    public void computeStatistic(String statistic) {
+        this.statistic = statistic;
+        if (samples.isEmpty()) {
+            value = null;
+            return;
+        }
+        List<Number> sorted = new ArrayList<Number>(samples);
+        Collections.sort(sorted, NUMBER_ORDER);
+        double sum = 0;
+        for (Number sample : sorted)
+            sum += sample.doubleValue();
+        sampleMin = sorted.get(0);
+        sampleMax = sorted.get(sorted.size() - 1);
+        // Plain decimal, a large double would be printed in E notation.
+        sampleMean = new BigDecimal(sum / sorted.size()).setScale(2, RoundingMode.HALF_UP);
+        if (STATISTIC_MIN.equals(statistic))
+            value = sampleMin;
+        else if (STATISTIC_MAX.equals(statistic))
+            value = sampleMax;
+        else if (STATISTIC_P95.equals(statistic))
+            value = sorted.get((int) Math.ceil(sorted.size() * 0.95) - 1);
+        else
+            value = sampleMean;
+    }
+
+    /**
+     * Get statistic the value was computed with.
+     * @return Statistic, or null if value is a single sample.
+     */
+    public String getStatistic() {
+        return statistic;
+    }
+
+    public Number getSampleMin() {
+        return sampleMin;
+    }
+
+    public Number getSampleMean() {
+        return sampleMean;
+    }
+
+    public Number getSampleMax() {
+        return sampleMax;
+    }
+
+    /**
+     * Check if value is the deviation from a baseline in standard
+     * deviations.
+     * @return true if value is a deviation.
+     */
+    public boolean isDeviation() {
+        return observed != null;
+    }
+
+    /**
+     * Replace value by its deviation from a baseline in standard
+     * deviations, 0 while the baseline is learned.
+     * @param mean Mean of the baseline.
+     * @param deviation Standard deviation of the baseline.
+     * @param count Number of weeks the baseline was learned from.
+     * @param learned true if the baseline has learned enough weeks.
+     */
+    public void setDeviation(double mean, double deviation, int count, boolean learned) {
+        observed = value;
+        baselineMean = new BigDecimal(mean).setScale(2, RoundingMode.HALF_UP);
+        baselineDeviation = new BigDecimal(deviation).setScale(2, RoundingMode.HALF_UP);
+        baselineCount = count;
+        double sigmas = learned ? (value.doubleValue() - mean) / deviation : 0;
+        value = Math.round(sigmas * 100) / 100.0;
+    }
+
+    /**
+     * Get value the deviation was computed from.
+     * @return Value, or null if value is not a deviation.
+     */
+    public Number getObserved() {
+        return observed;
+    }
+
+    public Number getBaselineMean() {
+        return baselineMean;
+    }
+
+    public Number getBaselineDeviation() {
+        return baselineDeviation;
+    }
+
+    public int getBaselineCount() {
+        return baselineCount;
+    }
+
+    /**
+     * Get key identifying this check across invocations.
+     * @param serviceUrl Service URL.
+     * @return Key.
+     */
+    public String getStateKey(String serviceUrl) {
+        StringBuilder key = new StringBuilder(serviceUrl);
+        key.append('\u0000').append(objectName);
+        key.append('\u0000').append(attributeName);
+        if (attributeKey != null)
+            key.append('\u0000').append(attributeKey);
+        if (instanceValues != null)
+            key.append('\u0000').append(aggregation);
+        return key.toString();
+    }
+
+    /**
+     * Evaluate value against thresholds and set status accordingly. A
+     * missing value is a warning, unless it is a rate without previous
+     * sample.
+     * @return Nagios status code.
+     */
+    public int evaluate() {
+        if (value == null)
+            status = rate || pending != null ?
+                NagiosJmxPlugin.NAGIOS_OK : NagiosJmxPlugin.NAGIOS_WARNING;
+        else if (critical != null && critical.isAlert(value))
+            status = NagiosJmxPlugin.NAGIOS_CRITICAL;
+        else if (warning != null && warning.isAlert(value))
+            status = NagiosJmxPlugin.NAGIOS_WARNING;
+        else
+            status = NagiosJmxPlugin.NAGIOS_OK;
+        return status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Check if value is computed as percentage of two composite keys,
+     * i.e. -K whole:part.
+     * @return true if percentage of keys.
+     */
+    public boolean isPercentOfKeys() {
+        return NagiosJmxPlugin.UNIT_PERCENT.equals(units) &&
+            attributeKey != null && attributeKey.contains(":");
+    }
+
+    /**
+     * Check if value is computed as percentage of two attributes,
+     * i.e. -A whole:part.
+     * @return true if percentage of attributes.
+     */
+    public boolean isPercentOfAttributes() {
+        return NagiosJmxPlugin.UNIT_PERCENT.equals(units) && !isPercentOfKeys() &&
+            attributeName.contains(":");
+    }
+
+    /**
+     * Get names of the attributes which have to be fetched from the MBean
+     * server to compute the value of this check.
+     * @return Attribute names.
+     */
+    public String[] getRemoteAttributeNames() {
+        if (isPercentOfAttributes())
+            return attributeName.split(":");
+        return new String[] { attributeName };
+    }
+
+    /**
+     * Compute value of this check from fetched attributes.
+     * @param attributes Attribute values by attribute name, as fetched for
+     *        {@link #getRemoteAttributeNames()}.
+     * @throws NagiosJmxPluginException If a key is missing or a value is
+     *         not a number.
+     */
+    public void computeValue(Map<String, Object> attributes)
+    throws NagiosJmxPluginException
+    {
+        value = getValue(attributes);
+    }
+
+    /**
+     * Compute value of this check from the attributes of all MBeans
+     * matching the object name pattern.
+     * @param instanceAttributes Attribute values by attribute name for each
+     *        matching MBean.
+     * @throws NagiosJmxPluginException If a key is missing or a value is
+     *         not a number.
+     */
+    public void computeAggregateValue(Map<ObjectName, Map<String, Object>> instanceAttributes)
+    throws NagiosJmxPluginException
+    {
+        instanceValues = new LinkedHashMap<ObjectName, Number>();
+        for (Map.Entry<ObjectName, Map<String, Object>> entry : instanceAttributes.entrySet()) {
+            if (AGGREGATE_COUNT.equals(aggregation)) {
+                // Count MBeans providing the attribute, whatever its type.
+                if (entry.getValue().get(getRemoteAttributeNames()[0]) != null)
+                    instanceValues.put(entry.getKey(), 1);
+                continue;
+            }
+            Number instanceValue = getValue(entry.getValue());
+            if (instanceValue != null)
+                instanceValues.put(entry.getKey(), instanceValue);
+        }
+        value = aggregate(instanceValues.values());
+    }
+
+    private Number getValue(Map<String, Object> attributes)
+    throws NagiosJmxPluginException
+    {
+        if (isPercentOfKeys()) {
+            String[] keys = attributeKey.split(":");
+            Object attribute = attributes.get(attributeName);
+            return percent(getNumber(attribute, keys[0]),
+                    getNumber(attribute, keys[1]));
+        } else if (isPercentOfAttributes()) {
+            String[] names = attributeName.split(":");
+            return percent(getNumber(attributes.get(names[0]), attributeKey),
+                    getNumber(attributes.get(names[1]), attributeKey));
+        } else {
+            return getNumber(attributes.get(attributeName), attributeKey);
+        }
+    }
+
+    private Number aggregate(Collection<Number> values) {
+        if (AGGREGATE_COUNT.equals(aggregation))
+            return values.size();
+        if (values.isEmpty())
+            return AGGREGATE_SUM.equals(aggregation) ? Long.valueOf(0) : null;
+        boolean integral = true;
+        long longSum = 0;
+        double sum = 0;
+        Number min = null;
+        Number max = null;
+        for (Number number : values) {
+            integral &= number instanceof Long || number instanceof Integer ||
+                number instanceof Short || number instanceof Byte;
+            longSum += number.longValue();
+            sum += number.doubleValue();
+            if (min == null || number.doubleValue() < min.doubleValue())
+                min = number;
+            if (max == null || number.doubleValue() > max.doubleValue())
+                max = number;
+        }
+        if (AGGREGATE_MIN.equals(aggregation))
+            return min;
+        if (AGGREGATE_MAX.equals(aggregation))
+            return max;
+        if (AGGREGATE_AVG.equals(aggregation))
+            return sum / values.size();
+        return integral ? (Number) longSum : (Number) sum;
+    }
+
+    /**
+     * Get label used in status output, e.g. HeapMemoryUsage.used.
+     * @return Label.
+     */
+    public String getLabel() {
+        StringBuilder label = new StringBuilder(attributeName);
+        if (attributeKey != null)
+            label.append(".").append(attributeKey);
+        if (instanceValues != null)
+            return aggregation + "(" + label + ")";
+        return label.toString();
+    }
+
+    /**
+     * Get label used in performance data, e.g. HeapMemoryUsage used.
+     * @return Label.
+     */
+    public String getPerformanceLabel() {
+        StringBuilder label = new StringBuilder(attributeName);
+        if (attributeKey != null)
+            label.append(" ").append(attributeKey);
+        if (instanceValues != null)
+            label.insert(0, aggregation + " ");
+        return label.toString();
+    }
+
+    /**
+     * Get label used in performance data of a MBean matching the object
+     * name pattern, e.g. HeapMemoryUsage used PS Eden Space.
+     * @param instance Object name of matching MBean.
+     * @return Label.
+     */
+    public String getPerformanceLabel(ObjectName instance) {
+        StringBuilder label = new StringBuilder(attributeName);
+        if (attributeKey != null)
+            label.append(" ").append(attributeKey);
+        String name = instance.getKeyProperty("name");
+        label.append(" ").append(name != null ? name : instance.getKeyPropertyListString());
+        return label.toString().replace("'", "");
+    }
+
+    private Number percent(Number whole, Number part) {
+        // Whole is undefined, e.g. max of -1 for an unbounded memory pool.
+        if (whole == null || part == null || whole.doubleValue() <= 0)
+            return null;
+        return Math.round(part.doubleValue() * 100 / whole.doubleValue());
+    }
+
+    private Number getNumber(Object attribute, String key)
+    throws NagiosJmxPluginException
+    {
+        Object result;
+        try {
+            result = NagiosJmxPlugin.getValue(attribute, key);
+        } catch (InvalidKeyException e) {
+            throw new NagiosJmxPluginException("attributeKey not found [" + key + "]", e);
+        }
+        if (result == null || result instanceof Number)
+            return (Number) result;
+        if (attribute instanceof CompositeData && key == null)
+            throw new NagiosJmxPluginException("attributeKey missing for composite attribute [" +
+                    attributeName + "]");
+        throw new NagiosJmxPluginException(
+                "Type of value is not a number [" + result.getClass().getName() + "]");
+    }
+}
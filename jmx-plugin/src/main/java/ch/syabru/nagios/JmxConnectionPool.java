@@ -0,0 +1,331 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Keyed pool of JMX connections, used by the resident daemon to keep
+ * connections open between checks. Connections are keyed by service URL
+ * and credentials, validated before reuse and evicted when idle too long.
+ *
+ */
+public class JmxConnectionPool {
+
+    /**
+     * Default time in milliseconds an idle connection is kept open.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+    /**
+     * Default time in milliseconds after which an idle connection is
+     * validated with a remote call before it is handed out again.
+     */
+    public static final long DEFAULT_VALIDATION_INTERVAL = 30000;
+    /**
+     * Default maximum number of idle connections per key.
+     */
+    public static final int DEFAULT_MAX_IDLE = 4;
+
+    private final Map<String, LinkedList<PooledConnection>> idle =
+        new HashMap<String, LinkedList<PooledConnection>>();
+    private final Map<MBeanServerConnection, PooledConnection> borrowed =
+        new HashMap<MBeanServerConnection, PooledConnection>();
+
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+    private int maxIdle = DEFAULT_MAX_IDLE;
+    private Timer evictor;
+    private boolean closed;
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Start the background thread evicting idle connections.
+     */
+    public synchronized void start() {
+        if (evictor != null)
+            return;
+        evictor = new Timer("jmx-pool-evictor", true);
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evict();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Borrow a connection from the pool, opening a new one if no valid
+     * idle connection exists for the given URL and credentials.
+     * @param serviceUrl Service URL.
+     * @param username Username, or null.
+     * @param password Password, or null.
+     * @return MBeanServerConnection, which has to be given back with
+     *         {@link #release(MBeanServerConnection)}.
+     * @throws IOException If the connection cannot be opened.
+     */
+    public MBeanServerConnection borrow(JMXServiceURL serviceUrl,
+            String username, String password)
+    throws IOException
+    {
+        String key = getKey(serviceUrl, username, password);
+        PooledConnection pooled;
+        while ((pooled = takeIdle(key)) != null) {
+            if (validate(pooled))
+                break;
+            pooled.close();
+        }
+        if (pooled == null) {
+            // Pooled connections may carry the registration listener of a
+            // MBeanIndex.
+            JMXConnector connector = NagiosJmxPlugin.connect(serviceUrl, username, password,
+                    NotificationMonitor.getEnvironment());
+            pooled = new PooledConnection(key, connector);
+        }
+        synchronized (this) {
+            borrowed.put(pooled.connection, pooled);
+        }
+        return pooled.connection;
+    }
+
+    /**
+     * Give a connection back to the pool.
+     * @param connection Connection obtained from
+     *        {@link #borrow(JMXServiceURL, String, String)}.
+     */
+    public void release(MBeanServerConnection connection) {
+        PooledConnection pooled;
+        boolean keep = false;
+        synchronized (this) {
+            pooled = borrowed.remove(connection);
+            if (pooled == null)
+                return;
+            LinkedList<PooledConnection> list = idle.get(pooled.key);
+            if (list == null) {
+                list = new LinkedList<PooledConnection>();
+                idle.put(pooled.key, list);
+            }
+            if (!closed && !pooled.failed && list.size() < maxIdle) {
+                pooled.lastUsed = System.currentTimeMillis();
+                list.addFirst(pooled);
+                keep = true;
+            }
+        }
+        if (!keep)
+            pooled.close();
+    }
+
+    /**
+     * Remove a connection which is known to be broken from the pool and
+     * close it in the background, as closing may block on a dead server.
+     * @param connection Connection obtained from
+     *        {@link #borrow(JMXServiceURL, String, String)}.
+     */
+    public void invalidate(MBeanServerConnection connection) {
+        final PooledConnection pooled;
+        synchronized (this) {
+            pooled = borrowed.remove(connection);
+        }
+        if (pooled == null)
+            return;
+        pooled.failed = true;
+        Thread closer = new Thread("jmx-pool-closer") {
+            @Override
+            public void run() {
+                pooled.close();
+            }
+        };
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    /**
+     * Close all idle connections which have not been used within the idle
+     * timeout or whose connector reported a failure.
+     */
+    public void evict() {
+        LinkedList<PooledConnection> expired = new LinkedList<PooledConnection>();
+        long limit = System.currentTimeMillis() - idleTimeout;
+        synchronized (this) {
+            for (Iterator<LinkedList<PooledConnection>> i = idle.values().iterator();
+                    i.hasNext(); ) {
+                LinkedList<PooledConnection> list = i.next();
+                for (Iterator<PooledConnection> j = list.iterator(); j.hasNext(); ) {
+                    PooledConnection pooled = j.next();
+                    if (pooled.failed || pooled.lastUsed < limit) {
+                        j.remove();
+                        expired.add(pooled);
+                    }
+                }
+                if (list.isEmpty())
+                    i.remove();
+            }
+        }
+        for (PooledConnection pooled : expired)
+            pooled.close();
+    }
+
+    /**
+     * Close all idle connections and stop the evictor. Borrowed connections
+     * are closed when they are released.
+     */
+    public void close() {
+        LinkedList<PooledConnection> all = new LinkedList<PooledConnection>();
+        synchronized (this) {
+            closed = true;
+            if (evictor != null) {
+                evictor.cancel();
+                evictor = null;
+            }
+            for (LinkedList<PooledConnection> list : idle.values())
+                all.addAll(list);
+            idle.clear();
+        }
+        for (PooledConnection pooled : all)
+            pooled.close();
+    }
+
+    /**
+     * Get number of idle connections in the pool.
+     * @return Number of idle connections.
+     */
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (LinkedList<PooledConnection> list : idle.values())
+            count += list.size();
+        return count;
+    }
+
+    /**
+     * Get number of connections currently borrowed.
+     * @return Number of borrowed connections.
+     */
+    public synchronized int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    private synchronized PooledConnection takeIdle(String key) {
+        LinkedList<PooledConnection> list = idle.get(key);
+        if (list == null || list.isEmpty())
+            return null;
+        return list.removeFirst();
+    }
+
+    private boolean validate(PooledConnection pooled) {
+        if (pooled.failed)
+            return false;
+        long now = System.currentTimeMillis();
+        if (now - pooled.lastValidated < validationInterval)
+            return true;
+        try {
+            pooled.connection.getMBeanCount();
+            pooled.lastValidated = now;
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static String getKey(JMXServiceURL serviceUrl, String username,
+            String password)
+    {
+        StringBuilder key = new StringBuilder(serviceUrl.toString());
+        if (username != null && password != null) {
+            key.append('\u0000').append(username);
+            key.append('\u0000').append(password);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Pooled connection, listening for connector failures.
+     */
+    private static class PooledConnection implements NotificationListener {
+
+        private final String key;
+        private final JMXConnector connector;
+        private final MBeanServerConnection connection;
+        private volatile boolean failed;
+        private long lastUsed;
+        private long lastValidated;
+
+        PooledConnection(String key, JMXConnector connector) throws IOException {
+            this.key = key;
+            this.connector = connector;
+            this.connection = connector.getMBeanServerConnection();
+            this.lastUsed = System.currentTimeMillis();
+            this.lastValidated = lastUsed;
+            connector.addConnectionNotificationListener(this, null, null);
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            String type = notification.getType();
+            if (JMXConnectionNotification.FAILED.equals(type) ||
+                    JMXConnectionNotification.CLOSED.equals(type))
+                failed = true;
+        }
+
+        void close() {
+            failed = true;
+            try {
+                connector.removeConnectionNotificationListener(this);
+            } catch (Exception e) {
+                // Ignore, connector is closed anyway.
+            }
+            try {
+                connector.close();
+            } catch (IOException e) {
+                // Ignore, connection is discarded.
+            }
+        }
+    }
+}
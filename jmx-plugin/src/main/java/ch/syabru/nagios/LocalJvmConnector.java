@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Resolves the local JMX connector address of a JVM on the same host with
+ * the Attach API, starting its local management agent if necessary.
+ *
+ * <p>The Attach API is accessed by reflection, as it lives in tools.jar up
+ * to Java 8 and in the jdk.attach module later on. Addresses are cached by
+ * process id, so a resident daemon attaches only once per JVM.</p>
+ *
+ */
+public class LocalJvmConnector {
+
+    /**
+     * Agent property holding the local connector address.
+     */
+    public static final String LOCAL_CONNECTOR_ADDRESS =
+        "com.sun.management.jmxremote.localConnectorAddress";
+
+    private static final String ATTACH_PACKAGE = "com.sun.tools.attach.";
+
+    private static final Map<String, String> ADDRESSES = new HashMap<String, String>();
+
+    private static ClassLoader attachClassLoader;
+
+    /**
+     * Get service URL of the local connector of a JVM.
+     * @param jvm Process id, or display name, i.e. main class or jar as
+     *        shown by jps. The simple name of the main class is sufficient.
+     * @return Service URL.
+     * @throws NagiosJmxPluginException If the JVM is not found or the agent
+     *         cannot be started.
+     */
+    public static JMXServiceURL getServiceUrl(String jvm) throws NagiosJmxPluginException {
+        String pid = findPid(jvm);
+        String address;
+        synchronized (ADDRESSES) {
+            address = ADDRESSES.get(pid);
+        }
+        if (address == null) {
+            address = attach(pid);
+            synchronized (ADDRESSES) {
+                ADDRESSES.put(pid, address);
+            }
+        }
+        try {
+            return new JMXServiceURL(address);
+        } catch (MalformedURLException e) {
+            throw new NagiosJmxPluginException("Malformed local connector address [" +
+                    address + "]", e);
+        }
+    }
+
+    /**
+     * Forget cached connector address of a JVM, e.g. after a failed
+     * connect.
+     * @param jvm Process id or display name.
+     */
+    public static void forget(String jvm) {
+        synchronized (ADDRESSES) {
+            if (ADDRESSES.remove(jvm) != null)
+                return;
+        }
+        try {
+            String pid = findPid(jvm);
+            synchronized (ADDRESSES) {
+                ADDRESSES.remove(pid);
+            }
+        } catch (NagiosJmxPluginException e) {
+            // JVM is gone, nothing cached for it anymore.
+        }
+    }
+
+    private static String findPid(String jvm) throws NagiosJmxPluginException {
+        if (jvm.matches("\\d+"))
+            return jvm;
+        List<String> matches = new ArrayList<String>();
+        for (Object descriptor : (List<?>) invokeStatic("list")) {
+            String displayName = (String) invoke(descriptor, "displayName");
+            String main = displayName.split(" ")[0];
+            if (displayName.equals(jvm) || main.equals(jvm) || main.endsWith("." + jvm) ||
+                    main.endsWith(File.separator + jvm))
+                matches.add((String) invoke(descriptor, "id"));
+        }
+        if (matches.isEmpty())
+            throw new NagiosJmxPluginException("Local JVM not found [" + jvm + "]");
+        if (matches.size() > 1)
+            throw new NagiosJmxPluginException("Local JVM [" + jvm +
+                    "] is ambiguous, matching processes " + matches);
+        return matches.get(0);
+    }
+
+    private static String attach(String pid) throws NagiosJmxPluginException {
+        Object vm = invokeStatic("attach", pid);
+        try {
+            Properties agentProperties = (Properties) invoke(vm, "getAgentProperties");
+            String address = agentProperties.getProperty(LOCAL_CONNECTOR_ADDRESS);
+            if (address != null)
+                return address;
+            try {
+                // Java 8 and later.
+                return (String) invoke(vm, "startLocalManagementAgent");
+            } catch (NagiosJmxPluginException e) {
+                if (!(e.getCause() instanceof NoSuchMethodException))
+                    throw e;
+            }
+            Properties systemProperties = (Properties) invoke(vm, "getSystemProperties");
+            File agent = new File(systemProperties.getProperty("java.home"),
+                    "lib" + File.separator + "management-agent.jar");
+            invoke(vm, "loadAgent", agent.getPath());
+            agentProperties = (Properties) invoke(vm, "getAgentProperties");
+            address = agentProperties.getProperty(LOCAL_CONNECTOR_ADDRESS);
+            if (address == null)
+                throw new NagiosJmxPluginException(
+                        "Local management agent did not start in JVM [" + pid + "]");
+            return address;
+        } finally {
+            try {
+                invoke(vm, "detach");
+            } catch (NagiosJmxPluginException e) {
+                // Ignore, address is known or attach failed anyway.
+            }
+        }
+    }
+
+    private static Object invokeStatic(String name, Object... args)
+    throws NagiosJmxPluginException
+    {
+        return invoke(getVirtualMachineClass(), null, name, args);
+    }
+
+    private static Object invoke(Object target, String name, Object... args)
+    throws NagiosJmxPluginException
+    {
+        return invoke(target.getClass(), target, name, args);
+    }
+
+    private static Object invoke(Class<?> type, Object target, String name, Object... args)
+    throws NagiosJmxPluginException
+    {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++)
+            types[i] = args[i].getClass();
+        try {
+            Method method = findMethod(type, name, types);
+            return method.invoke(target, args);
+        } catch (NoSuchMethodException e) {
+            throw new NagiosJmxPluginException("Attach API method not found [" + name + "]", e);
+        } catch (IllegalAccessException e) {
+            throw new NagiosJmxPluginException("Attach API method not accessible [" + name + "]", e);
+        } catch (InvocationTargetException e) {
+            throw new NagiosJmxPluginException("Error attaching to local JVM: " +
+                    e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Find method on the Attach API type implemented by a class, as the
+     * implementation classes are not accessible.
+     */
+    private static Method findMethod(Class<?> type, String name, Class<?>[] types)
+    throws NoSuchMethodException
+    {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            if (c.getName().startsWith(ATTACH_PACKAGE)) {
+                try {
+                    return c.getMethod(name, types);
+                } catch (NoSuchMethodException e) {
+                    // Try superclass.
+                }
+            }
+        }
+        throw new NoSuchMethodException(type.getName() + "." + name);
+    }
+
+    private static synchronized Class<?> getVirtualMachineClass()
+    throws NagiosJmxPluginException
+    {
+        String name = ATTACH_PACKAGE + "VirtualMachine";
+        try {
+            if (attachClassLoader == null) {
+                try {
+                    Class.forName(name);
+                    attachClassLoader = LocalJvmConnector.class.getClassLoader();
+                } catch (ClassNotFoundException e) {
+                    // Up to Java 8 the Attach API is in tools.jar of the JDK.
+                    File toolsJar = new File(System.getProperty("java.home"),
+                            ".." + File.separator + "lib" + File.separator + "tools.jar");
+                    attachClassLoader = new URLClassLoader(new URL[] {
+                            toolsJar.toURI().toURL() });
+                }
+            }
+            return Class.forName(name, true, attachClassLoader);
+        } catch (ClassNotFoundException e) {
+            throw new NagiosJmxPluginException(
+                    "Attach API not available, local checks require a JDK", e);
+        } catch (MalformedURLException e) {
+            throw new NagiosJmxPluginException(e);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+/**
+ * Index of the MBeans of a target JVM with their attribute names and
+ * types, persisted in a directory so object name patterns are resolved and
+ * attribute types validated without remote introspection.
+ *
+ * <p>Each object name pattern is resolved with a queryNames call for that
+ * pattern and then locally, as long as the MBean count of the server stays
+ * the same; attribute types are fetched with getMBeanInfo the first time a
+ * MBean is checked. As MBeans may be replaced without changing the count,
+ * a pattern is queried again when one of its MBeans is not found. In the
+ * daemon the index additionally listens to the registration notifications
+ * of the MBeanServerDelegate and is updated as MBeans come and go.</p>
+ *
+ * <p>File format, gzip compressed: magic, version, MBean count, resolved
+ * patterns with the MBean count they were queried at, string table of
+ * attribute names and types, then the sorted canonical object names, each
+ * stored as length of the prefix shared with the previous name and the
+ * remaining suffix, followed by its attributes as pairs of string table
+ * indexes, or -1 if not fetched yet.</p>
+ *
+ */
+public class MBeanIndex {
+
+    private static final int MAGIC = 0x4a4d5849; // JMXI
+    private static final int VERSION = 2;
+
+    private static final Map<File, MBeanIndex> OPEN_INDEXES = new HashMap<File, MBeanIndex>();
+
+    private static final Set<String> PRIMITIVE_NUMBER_TYPES = new HashSet<String>(
+            Arrays.asList("byte", "short", "int", "long", "float", "double"));
+
+    private final File file;
+    // Attribute types by attribute name of each MBean, null if not fetched.
+    private final TreeMap<String, Map<String, String>> mbeans =
+        new TreeMap<String, Map<String, String>>();
+    // MBean count the resolved patterns were queried at, by pattern.
+    private final Map<String, Integer> patterns = new HashMap<String, Integer>();
+    private int mbeanCount = -1;
+    private boolean dirty;
+    private MBeanServerConnection listening;
+
+    private final NotificationListener registrationListener = new NotificationListener() {
+        public void handleNotification(Notification notification, Object handback) {
+            String name = ((MBeanServerNotification) notification).getMBeanName()
+                .getCanonicalName();
+            synchronized (MBeanIndex.this) {
+                int count = mbeanCount;
+                if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(
+                        notification.getType())) {
+                    mbeans.put(name, null);
+                    mbeanCount++;
+                } else {
+                    mbeans.remove(name);
+                    mbeanCount--;
+                }
+                // Patterns resolved before are still current.
+                for (Map.Entry<String, Integer> pattern : patterns.entrySet()) {
+                    if (pattern.getValue() == count)
+                        pattern.setValue(mbeanCount);
+                }
+                dirty = true;
+            }
+        }
+    };
+
+    /**
+     * Open index of a target, loading it from the index directory if it
+     * exists. Indexes are shared per JVM.
+     * @param directory Index directory.
+     * @param target Target, e.g. service URL.
+     * @return Index.
+     */
+    public static MBeanIndex open(File directory, String target) {
+        File file = new File(directory,
+                Long.toHexString(StateFile.hash(target)) + ".idx");
+        synchronized (OPEN_INDEXES) {
+            MBeanIndex index = OPEN_INDEXES.get(file);
+            if (index == null) {
+                index = new MBeanIndex(file);
+                OPEN_INDEXES.put(file, index);
+            }
+            return index;
+        }
+    }
+
+    private MBeanIndex(File file) {
+        this.file = file;
+        try {
+            load();
+        } catch (IOException e) {
+            // Missing or corrupt, rebuilt on first use.
+            mbeans.clear();
+            patterns.clear();
+            mbeanCount = -1;
+        }
+    }
+
+    /**
+     * Fetch the MBean count of the server, which invalidates the resolved
+     * patterns if it changed. Costs one remote call.
+     * @param connection MBean server connection.
+     * @param listen true to keep the index current with registration
+     *        notifications over this connection, for long-lived connections.
+     *        The connection must have been opened with the environment of
+     *        {@link NotificationMonitor#getEnvironment()}.
+     * @throws IOException If querying the server fails.
+     */
+    public synchronized void sync(MBeanServerConnection connection, boolean listen)
+    throws IOException
+    {
+        if (listen && listening != connection) {
+            // A listener on more than one connection would count each
+            // registration more than once.
+            if (listening != null) {
+                try {
+                    listening.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                            registrationListener);
+                } catch (Exception e) {
+                    // Connection closed or listener gone with it.
+                }
+                listening = null;
+            }
+            try {
+                connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                        registrationListener, new MBeanServerNotificationFilter(), null);
+                listening = connection;
+            } catch (InstanceNotFoundException e) {
+                // No delegate, rely on the MBean count.
+            }
+        }
+        int count = connection.getMBeanCount();
+        if (count != mbeanCount) {
+            mbeanCount = count;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Get names of the MBeans matching a pattern, from the index if the
+     * pattern was resolved at the current MBean count, otherwise from the
+     * server.
+     * @param connection MBean server connection.
+     * @param pattern Object name pattern.
+     * @return Object names.
+     * @throws IOException If querying the server fails.
+     */
+    public synchronized Set<ObjectName> queryNames(MBeanServerConnection connection,
+            ObjectName pattern)
+    throws IOException
+    {
+        Integer count = patterns.get(pattern.getCanonicalName());
+        if (count == null || count != mbeanCount)
+            return refresh(connection, pattern);
+        return queryIndexed(pattern);
+    }
+
+    private Set<ObjectName> queryIndexed(ObjectName pattern) {
+        Set<ObjectName> result = new HashSet<ObjectName>();
+        // Canonical names start with the domain, narrow down if it is literal.
+        String domain = pattern.getDomain();
+        Map<String, Map<String, String>> candidates = mbeans;
+        if (!pattern.isDomainPattern())
+            candidates = mbeans.subMap(domain + ":", domain + ";");
+        for (String name : candidates.keySet()) {
+            try {
+                ObjectName objName = new ObjectName(name);
+                if (pattern.apply(objName))
+                    result.add(objName);
+            } catch (MalformedObjectNameException e) {
+                // Not written by this class.
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolve a pattern with the server, e.g. after one of its MBeans was
+     * not found, and update the index with the result.
+     * @param connection MBean server connection.
+     * @param pattern Object name pattern.
+     * @return Object names.
+     * @throws IOException If querying the server fails.
+     */
+    public synchronized Set<ObjectName> refresh(MBeanServerConnection connection,
+            ObjectName pattern)
+    throws IOException
+    {
+        Set<ObjectName> result = connection.queryNames(pattern, null);
+        Set<String> names = new HashSet<String>();
+        for (ObjectName name : result)
+            names.add(name.getCanonicalName());
+        for (ObjectName name : queryIndexed(pattern)) {
+            if (!names.contains(name.getCanonicalName()))
+                mbeans.remove(name.getCanonicalName());
+        }
+        for (String name : names) {
+            if (!mbeans.containsKey(name))
+                mbeans.put(name, null);
+        }
+        patterns.put(pattern.getCanonicalName(), mbeanCount);
+        dirty = true;
+        return result;
+    }
+
+    /**
+     * Check that a MBean has an attribute whose value may be a number,
+     * fetching the attribute types of the MBean on first use.
+     * @param connection MBean server connection.
+     * @param objName Object name.
+     * @param attributeName Attribute name.
+     * @throws NagiosJmxPluginException If the MBean or attribute is not
+     *         found or the attribute type is not numeric.
+     * @throws Exception If querying the server fails.
+     */
+    public void validate(MBeanServerConnection connection, ObjectName objName,
+            String attributeName)
+    throws NagiosJmxPluginException, Exception
+    {
+        String name = objName.getCanonicalName();
+        Map<String, String> attributes;
+        synchronized (this) {
+            attributes = mbeans.get(name);
+        }
+        if (attributes == null || !attributes.containsKey(attributeName)) {
+            // Unknown or maybe changed since indexed, ask the server.
+            attributes = new LinkedHashMap<String, String>();
+            try {
+                for (MBeanAttributeInfo info : connection.getMBeanInfo(objName).getAttributes())
+                    attributes.put(info.getName(), info.getType());
+            } catch (InstanceNotFoundException e) {
+                throw new NagiosJmxPluginException("objectName not found [" + objName + "]", e);
+            }
+            synchronized (this) {
+                mbeans.put(name, attributes);
+                dirty = true;
+            }
+        }
+        if (!attributes.containsKey(attributeName))
+            throw new NagiosJmxPluginException("attributeName not found [" + attributeName + "]");
+        String type = attributes.get(attributeName);
+        if (!isNumberType(type))
+            throw new NagiosJmxPluginException("Type of value is not a number [" + type + "]");
+    }
+
+    /**
+     * Check if an attribute of a type may hold a number or a composite
+     * with numbers. Types unknown to this JVM are given the benefit of the
+     * doubt.
+     */
+    static boolean isNumberType(String type) {
+        if (PRIMITIVE_NUMBER_TYPES.contains(type))
+            return true;
+        Class<?> c;
+        try {
+            c = Class.forName(type, false, MBeanIndex.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return !"boolean".equals(type) && !"char".equals(type) && !"void".equals(type);
+        }
+        return Number.class.isAssignableFrom(c) || c.isAssignableFrom(Long.class) ||
+            CompositeData.class.isAssignableFrom(c) ||
+            c.isAssignableFrom(javax.management.openmbean.CompositeDataSupport.class);
+    }
+
+    /**
+     * Write index to disk if it changed.
+     * @throws IOException If writing fails.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+        file.getParentFile().mkdirs();
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmp))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mbeanCount);
+            out.writeInt(patterns.size());
+            for (Map.Entry<String, Integer> pattern : patterns.entrySet()) {
+                out.writeUTF(pattern.getKey());
+                out.writeInt(pattern.getValue());
+            }
+            Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+            for (Map<String, String> attributes : mbeans.values()) {
+                if (attributes == null)
+                    continue;
+                for (Map.Entry<String, String> entry : attributes.entrySet()) {
+                    addString(strings, entry.getKey());
+                    addString(strings, entry.getValue());
+                }
+            }
+            out.writeInt(strings.size());
+            for (String string : strings.keySet())
+                out.writeUTF(string);
+            out.writeInt(mbeans.size());
+            String previous = "";
+            for (Map.Entry<String, Map<String, String>> entry : mbeans.entrySet()) {
+                String name = entry.getKey();
+                int prefix = 0;
+                int max = Math.min(name.length(), previous.length());
+                while (prefix < max && name.charAt(prefix) == previous.charAt(prefix))
+                    prefix++;
+                out.writeShort(prefix);
+                out.writeUTF(name.substring(prefix));
+                previous = name;
+                Map<String, String> attributes = entry.getValue();
+                out.writeInt(attributes == null ? -1 : attributes.size());
+                if (attributes != null) {
+                    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                        out.writeInt(strings.get(attribute.getKey()));
+                        out.writeInt(strings.get(attribute.getValue()));
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace index file [" + file + "]");
+        }
+        dirty = false;
+    }
+
+    private static void addString(Map<String, Integer> strings, String string) {
+        if (!strings.containsKey(string))
+            strings.put(string, strings.size());
+    }
+
+    private void load() throws IOException {
+        if (!file.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a check_jmx index file [" + file + "]");
+            int count = in.readInt();
+            for (int i = in.readInt(); i > 0; i--) {
+                String pattern = in.readUTF();
+                patterns.put(pattern, in.readInt());
+            }
+            List<String> strings = new ArrayList<String>();
+            for (int i = in.readInt(); i > 0; i--)
+                strings.add(in.readUTF());
+            String previous = "";
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = previous.substring(0, in.readShort()) + in.readUTF();
+                Map<String, String> attributes = null;
+                int attributeCount = in.readInt();
+                if (attributeCount >= 0) {
+                    attributes = new LinkedHashMap<String, String>();
+                    for (int j = 0; j < attributeCount; j++)
+                        attributes.put(strings.get(in.readInt()), strings.get(in.readInt()));
+                }
+                mbeans.put(name, attributes);
+                previous = name;
+            }
+            mbeanCount = count;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Executes a file of named checks in one JVM and submits the results to
+ * Nagios as passive service check results.
+ *
+ * <p>Each check is configured with the properties of
+ * {@link NagiosJmxPlugin#execute(Properties)}, prefixed by the check name,
+ * plus the Nagios host and service the result belongs to:</p>
+ * <pre>
+ * heap.host=app1
+ * heap.service=JVM Heap
+ * heap.serviceUrl=service:jmx:rmi:///jndi/rmi://app1:9010/jmxrmi
+ * heap.objectName=java.lang:type=Memory
+ * heap.attributeName=HeapMemoryUsage
+ * heap.attributeKey=used
+ * heap.thresholdWarning=800000000
+ * </pre>
+ *
+ * <p>Checks are grouped by target JVM and executed concurrently; all checks
+ * of a target share one connection. The results are written with a single
+ * write to the Nagios command file.</p>
+ *
+ */
+public class NagiosJmxBatch {
+
+    /**
+     * Nagios host of a check.
+     */
+    public static final String PROP_HOST = "host";
+    /**
+     * Nagios service of a check, defaults to the check name.
+     */
+    public static final String PROP_SERVICE = "service";
+    /**
+     * Default number of checks executed concurrently.
+     */
+    public static final int DEFAULT_THREADS = 16;
+
+    private final Map<String, Properties> checks;
+    private final int threads;
+
+    /**
+     * Create batch.
+     * @param checks Check properties by check name.
+     * @param threads Number of checks executed concurrently.
+     */
+    public NagiosJmxBatch(Map<String, Properties> checks, int threads) {
+        this.checks = checks;
+        this.threads = threads;
+    }
+
+    /**
+     * Read checks from configuration properties.
+     * @param config Configuration, properties prefixed by check name.
+     * @return Check properties by check name, in name order.
+     * @throws NagiosJmxPluginException If a check has no host.
+     */
+    public static Map<String, Properties> getChecks(Properties config)
+    throws NagiosJmxPluginException
+    {
+        Map<String, Properties> checks = new TreeMap<String, Properties>();
+        for (String key : config.stringPropertyNames()) {
+            int dot = key.indexOf('.');
+            if (dot <= 0)
+                continue;
+            String name = key.substring(0, dot);
+            Properties props = checks.get(name);
+            if (props == null) {
+                props = new Properties();
+                checks.put(name, props);
+            }
+            props.setProperty(key.substring(dot + 1), config.getProperty(key));
+        }
+        for (Map.Entry<String, Properties> entry : checks.entrySet()) {
+            if (entry.getValue().getProperty(PROP_HOST) == null)
+                throw new NagiosJmxPluginException("Host missing for check [" +
+                        entry.getKey() + "]");
+        }
+        return checks;
+    }
+
+    /**
+     * Execute all checks.
+     * @return Passive check results, one external command per line.
+     * @throws InterruptedException If interrupted while waiting for checks.
+     */
+    public String execute() throws InterruptedException {
+        Map<String, SharedConnection> targets = new HashMap<String, SharedConnection>();
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final Map.Entry<String, Properties> entry : checks.entrySet()) {
+                Properties props = entry.getValue();
+                String key = getTargetKey(props);
+                SharedConnection target = targets.get(key);
+                if (target == null) {
+                    target = new SharedConnection();
+                    targets.put(key, target);
+                }
+                final SharedConnection connection = target;
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return execute(entry.getKey(), entry.getValue(), connection);
+                    }
+                }));
+            }
+            StringBuilder commands = new StringBuilder();
+            for (Future<String> result : results) {
+                try {
+                    commands.append(result.get());
+                } catch (ExecutionException e) {
+                    // Check results are reported by the plugin itself.
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return commands.toString();
+        } finally {
+            executor.shutdownNow();
+            for (SharedConnection target : targets.values())
+                target.close();
+        }
+    }
+
+    /**
+     * Execute a check over the shared connection of its target.
+     * @return Passive check result.
+     */
+    private String execute(String name, Properties props, final SharedConnection target)
+    throws IOException
+    {
+        NagiosJmxPlugin plugin = new NagiosJmxPlugin() {
+            @Override
+            public MBeanServerConnection openConnection(JMXServiceURL serviceUrl,
+                    String username, String password)
+            throws IOException
+            {
+                return target.open(serviceUrl, username, password);
+            }
+
+            @Override
+            public void closeConnection(MBeanServerConnection connection) {
+                // Closed after all checks of the target.
+            }
+
+            @Override
+            public void abortConnection(MBeanServerConnection connection) {
+                // Other checks may still use the connection.
+            }
+        };
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        plugin.setOutput(new PrintStream(buffer, false, "UTF-8"));
+        int exitCode = plugin.run(props);
+        String output = buffer.toString("UTF-8").trim();
+
+        StringBuilder command = new StringBuilder();
+        command.append('[').append(System.currentTimeMillis() / 1000).append("] ");
+        command.append("PROCESS_SERVICE_CHECK_RESULT;");
+        command.append(props.getProperty(PROP_HOST)).append(';');
+        command.append(props.getProperty(PROP_SERVICE, name)).append(';');
+        command.append(exitCode).append(';');
+        // External commands are single lines, Nagios expands \n.
+        command.append(output.replace("\r", "").replace("\n", "\\n")).append('\n');
+        return command.toString();
+    }
+
+    private static String getTargetKey(Properties props) {
+        StringBuilder key = new StringBuilder();
+        key.append(props.getProperty(NagiosJmxPlugin.PROP_SERVICE_URL));
+        key.append('\u0000').append(props.getProperty(NagiosJmxPlugin.PROP_LOCAL_JVM));
+        key.append('\u0000').append(props.getProperty(NagiosJmxPlugin.PROP_USERNAME));
+        key.append('\u0000').append(props.getProperty(NagiosJmxPlugin.PROP_PASSWORD));
+        return key.toString();
+    }
+
+    /**
+     * Connection shared by all checks of a target, opened by the first
+     * check. If opening fails, the other checks fail with the same error
+     * instead of waiting for their own connect timeout. The error is kept
+     * per service URL, so a local JVM whose cached address failed is still
+     * retried at its newly resolved address.
+     */
+    private static class SharedConnection {
+
+        private JMXConnector connector;
+        private MBeanServerConnection connection;
+        private JMXServiceURL errorUrl;
+        private IOException error;
+
+        synchronized MBeanServerConnection open(JMXServiceURL serviceUrl,
+                String username, String password)
+        throws IOException
+        {
+            if (connection == null) {
+                if (error != null && serviceUrl.equals(errorUrl))
+                    throw error;
+                try {
+                    connector = NagiosJmxPlugin.connect(serviceUrl, username, password);
+                    connection = connector.getMBeanServerConnection();
+                } catch (IOException e) {
+                    errorUrl = serviceUrl;
+                    error = e;
+                    throw e;
+                }
+            }
+            return connection;
+        }
+
+        void close() {
+            final JMXConnector closing;
+            synchronized (this) {
+                closing = connector;
+            }
+            if (closing == null)
+                return;
+            // Closing may block on a dead server, which must not delay the
+            // results of the other targets.
+            Thread closer = new Thread("check_jmx-batch-closer") {
+                @Override
+                public void run() {
+                    try {
+                        closing.close();
+                    } catch (IOException e) {
+                        // Ignore, connection is discarded.
+                    }
+                }
+            };
+            closer.setDaemon(true);
+            closer.start();
+        }
+    }
+
+    /**
+     * Main method.
+     * @param args [--command-file file] [--threads n] config_file
+     */
+    public static void main(String[] args) throws Exception {
+        String commandFile = null;
+        String configFile = null;
+        int threads = DEFAULT_THREADS;
+        for (int i = 0; i < args.length; i++) {
+            if ("--command-file".equals(args[i]))
+                commandFile = args[++i];
+            else if ("--threads".equals(args[i]))
+                threads = Integer.parseInt(args[++i]);
+            else
+                configFile = args[i];
+        }
+        if (configFile == null) {
+            System.err.println(
+                    "Usage: check_jmx_batch [--command-file <file>] [--threads <n>] <config_file>");
+            System.exit(NagiosJmxPlugin.NAGIOS_UNKNOWN);
+        }
+        Properties config = new Properties();
+        InputStream in = new FileInputStream(configFile);
+        try {
+            config.load(in);
+        } finally {
+            in.close();
+        }
+        NagiosJmxBatch batch = new NagiosJmxBatch(getChecks(config), threads);
+        byte[] commands = batch.execute().getBytes("UTF-8");
+
+        OutputStream out = commandFile != null ?
+            new FileOutputStream(commandFile, true) : System.out;
+        try {
+            out.write(commands);
+            out.flush();
+        } finally {
+            if (commandFile != null)
+                out.close();
+        }
+        System.exit(NagiosJmxPlugin.NAGIOS_OK);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Thin check_jmx client handing its arguments to a running
+ * {@link NagiosJmxDaemon}. Falls back to executing the check in process
+ * if no daemon is listening.
+ *
+ */
+public class NagiosJmxClient {
+
+    /**
+     * Daemon host system property.
+     */
+    public static final String PROP_DAEMON_HOST = "check_jmx.daemon.host";
+    /**
+     * Daemon port system property.
+     */
+    public static final String PROP_DAEMON_PORT = "check_jmx.daemon.port";
+    /**
+     * Daemon token file system property.
+     */
+    public static final String PROP_DAEMON_TOKEN_FILE = "check_jmx.daemon.token_file";
+
+    private static final int CONNECT_TIMEOUT = 1000;
+    /**
+     * Time in milliseconds the client waits for the daemon beyond the
+     * timeout of the check.
+     */
+    private static final int RESPONSE_MARGIN = 5000;
+
+    /**
+     * Send arguments to daemon and print its output.
+     * @param host Daemon host.
+     * @param port Daemon port.
+     * @param token Daemon token.
+     * @param args check_jmx arguments.
+     * @return Nagios exit code.
+     * @throws IOException If the daemon cannot be reached.
+     */
+    public static int execute(String host, int port, String token, String[] args)
+    throws IOException
+    {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(getCheckTimeout(args) + RESPONSE_MARGIN);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(token);
+            out.writeInt(args.length);
+            for (String arg : args)
+                out.writeUTF(arg);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            int exitCode = in.readInt();
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            System.out.print(new String(output, "UTF-8"));
+            System.out.flush();
+            return exitCode;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Get the timeout of a check as applied by the daemon.
+     * @param args check_jmx arguments.
+     * @return Timeout in milliseconds.
+     */
+    private static int getCheckTimeout(String[] args) {
+        String timeout = NagiosJmxPlugin.parseArguments(args).getProperty(
+                NagiosJmxPlugin.PROP_TIMEOUT);
+        if (timeout != null) {
+            try {
+                double seconds = Double.parseDouble(timeout.split(":")[0]);
+                if (seconds > 0)
+                    return (int) Math.round(seconds * 1000);
+            } catch (NumberFormatException e) {
+                // Reported by the daemon.
+            }
+        }
+        return NagiosJmxDaemon.DEFAULT_CHECK_TIMEOUT * 1000;
+    }
+
+    /**
+     * Main method.
+     * @param args
+     */
+    public static void main(String[] args) {
+        String host = System.getProperty(PROP_DAEMON_HOST, "127.0.0.1");
+        int port = Integer.getInteger(PROP_DAEMON_PORT,
+                NagiosJmxDaemon.DEFAULT_PORT);
+        String tokenFile = System.getProperty(PROP_DAEMON_TOKEN_FILE);
+        File file = tokenFile != null ? new File(tokenFile) : NagiosJmxDaemon.DEFAULT_TOKEN_FILE;
+        int exitCode;
+        try {
+            if (!file.exists())
+                throw new ConnectException("No check_jmx daemon token " + file);
+            exitCode = execute(host, port, NagiosJmxDaemon.readToken(file), args);
+        } catch (ConnectException e) {
+            // No daemon running, or never started by this user, execute
+            // check in this JVM.
+            exitCode = new NagiosJmxPlugin().run(
+                    NagiosJmxPlugin.parseArguments(args));
+        } catch (IOException e) {
+            System.out.println(NagiosJmxPlugin.NAGIOS_UNKNOWN_MSG +
+                    "Error talking to check_jmx daemon: " + e.getMessage());
+            exitCode = NagiosJmxPlugin.NAGIOS_UNKNOWN;
+        }
+        System.exit(exitCode);
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resident check_jmx daemon. Keeps JMX connections open in a
+ * {@link JmxConnectionPool} and executes checks handed over by
+ * {@link NagiosJmxClient} on a loopback socket.
+ * Notification checks are answered from the subscriptions of a
+ * {@link NotificationMonitor}.
+ *
+ * <p>Protocol: the client sends the token of the daemon, the number of
+ * arguments and each argument as modified UTF-8 strings. The daemon answers
+ * with the Nagios exit code, the length of the output and the output bytes
+ * encoded in UTF-8.</p>
+ *
+ * <p>The token is kept in a file readable only by the user running the
+ * daemon, so only that user can hand over checks. Checks may write files
+ * only below the directories the daemon allows and may invoke operations
+ * only if the daemon allows them.</p>
+ *
+ */
+public class NagiosJmxDaemon {
+
+    /**
+     * Default daemon port.
+     */
+    public static final int DEFAULT_PORT = 5999;
+    /**
+     * Default number of worker threads.
+     */
+    public static final int DEFAULT_THREADS = 16;
+    /**
+     * Maximum number of arguments accepted per request.
+     */
+    static final int MAX_ARGUMENTS = 1024;
+    /**
+     * Default timeout in seconds of checks without -t.
+     */
+    public static final int DEFAULT_CHECK_TIMEOUT = 60;
+    /**
+     * Time in milliseconds a client is given to send its request.
+     */
+    static final int REQUEST_TIMEOUT = 10000;
+    /**
+     * Default token file, in the home directory of the user.
+     */
+    public static final File DEFAULT_TOKEN_FILE =
+        new File(System.getProperty("user.home"), ".check_jmx_daemon.token");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers;
+    private final JmxConnectionPool connectionPool;
+    private final NotificationMonitor notificationMonitor;
+    private final byte[] token;
+    private final List<File> allowedDirectories = new ArrayList<File>();
+    private boolean allowOperations = false;
+    private int checkTimeout = DEFAULT_CHECK_TIMEOUT;
+
+    public NagiosJmxDaemon(ServerSocket serverSocket, int threads,
+            JmxConnectionPool connectionPool, NotificationMonitor notificationMonitor,
+            String token)
+    throws IOException
+    {
+        this.serverSocket = serverSocket;
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.connectionPool = connectionPool;
+        this.notificationMonitor = notificationMonitor;
+        this.token = token.getBytes("UTF-8");
+    }
+
+    /**
+     * Allow checks to write state, index, history and dump files below a
+     * directory.
+     * @param directory Directory.
+     * @throws IOException If the directory cannot be resolved.
+     */
+    public void addAllowedDirectory(File directory) throws IOException {
+        allowedDirectories.add(directory.getCanonicalFile());
+    }
+
+    /**
+     * Allow checks to invoke MBean operations with -o.
+     * @param allowOperations true to allow operations.
+     */
+    public void setAllowOperations(boolean allowOperations) {
+        this.allowOperations = allowOperations;
+    }
+
+    /**
+     * Set the timeout of checks without -t.
+     * @param checkTimeout Timeout in seconds.
+     */
+    public void setCheckTimeout(int checkTimeout) {
+        this.checkTimeout = checkTimeout;
+    }
+
+    /**
+     * Accept and execute checks until the server socket is closed.
+     */
+    public void serve() {
+        connectionPool.start();
+        notificationMonitor.start();
+        try {
+            while (!serverSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed())
+                        break;
+                    continue;
+                }
+                workers.execute(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            connectionPool.close();
+            notificationMonitor.close();
+        }
+    }
+
+    /**
+     * Stop accepting checks.
+     * @throws IOException If closing the server socket fails.
+     */
+    public void shutdown() throws IOException {
+        serverSocket.close();
+    }
+
+    private void handle(Socket socket) {
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            byte[] clientToken = in.readUTF().getBytes("UTF-8");
+            int argc = in.readInt();
+            if (argc < 0 || argc > MAX_ARGUMENTS)
+                throw new IOException("Invalid argument count [" + argc + "]");
+            String[] args = new String[argc];
+            for (int i = 0; i < argc; i++)
+                args[i] = in.readUTF();
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PrintStream output = new PrintStream(buffer, false, "UTF-8");
+            int exitCode;
+            Properties props = NagiosJmxPlugin.parseArguments(args);
+            String rejected = MessageDigest.isEqual(token, clientToken)
+                ? checkArguments(props) : "Invalid check_jmx daemon token";
+            if (rejected != null) {
+                output.println(NagiosJmxPlugin.NAGIOS_UNKNOWN_MSG + rejected);
+                exitCode = NagiosJmxPlugin.NAGIOS_UNKNOWN;
+            } else {
+                if (!props.containsKey(NagiosJmxPlugin.PROP_TIMEOUT) && checkTimeout > 0)
+                    props.put(NagiosJmxPlugin.PROP_TIMEOUT, String.valueOf(checkTimeout));
+                NagiosJmxPlugin plugin = new NagiosJmxPlugin();
+                plugin.setConnectionPool(connectionPool);
+                plugin.setNotificationMonitor(notificationMonitor);
+                plugin.setOutput(output);
+                exitCode = plugin.run(props);
+            }
+            output.flush();
+
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(exitCode);
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            // Client went away, nothing to report to.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Check that a check only writes files below the allowed directories
+     * and only invokes operations if allowed.
+     * @param props Check properties.
+     * @return Reason the check is rejected, or null if it may run.
+     * @throws IOException If a path cannot be resolved.
+     */
+    private String checkArguments(Properties props) throws IOException {
+        if (props.containsKey(NagiosJmxPlugin.PROP_OPERATION) && !allowOperations)
+            return "Option -o not allowed by check_jmx daemon";
+        String[][] options = {
+            { NagiosJmxPlugin.PROP_STATE_FILE, "--state-file" },
+            { NagiosJmxPlugin.PROP_INDEX_DIR, "--index-dir" },
+            { NagiosJmxPlugin.PROP_HISTORY_DIR, "--history-dir" },
+            { NagiosJmxPlugin.PROP_DUMP_DIR, "--dump-dir" } };
+        for (String[] option : options) {
+            String path = props.getProperty(option[0]);
+            if (path != null && !isAllowed(new File(path)))
+                return "Option " + option[1] + " " + path
+                    + " not allowed by check_jmx daemon";
+        }
+        return null;
+    }
+
+    private boolean isAllowed(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        for (File directory : allowedDirectories) {
+            for (File parent = canonical; parent != null; parent = parent.getParentFile()) {
+                if (parent.equals(directory))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the token of a daemon.
+     * @param file Token file.
+     * @return Token.
+     * @throws IOException If the file cannot be read.
+     */
+    public static String readToken(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] bytes = new byte[256];
+            int n;
+            while ((n = in.read(bytes)) > 0)
+                buffer.write(bytes, 0, n);
+            return buffer.toString("UTF-8").trim();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the token of the daemon, creating a random token readable only
+     * by the current user if the file does not exist.
+     * @param file Token file.
+     * @return Token.
+     * @throws IOException If the file cannot be read or created.
+     */
+    static String loadToken(File file) throws IOException {
+        if (!file.createNewFile())
+            return readToken(file);
+        if (!(file.setReadable(false, false) && file.setReadable(true, true)
+                && file.setWritable(false, false) && file.setWritable(true, true))) {
+            file.delete();
+            throw new IOException("Cannot restrict permissions of token file " + file);
+        }
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random)
+            token.append(String.format("%02x", b & 0xff));
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(token.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return token.toString();
+    }
+
+    /**
+     * Main method.
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        Properties props = parseArguments(args);
+        int port = Integer.parseInt(props.getProperty("port",
+                String.valueOf(DEFAULT_PORT)));
+        int threads = Integer.parseInt(props.getProperty("threads",
+                String.valueOf(DEFAULT_THREADS)));
+        InetAddress bindAddress = InetAddress.getByName(
+                props.getProperty("bind", "127.0.0.1"));
+        if (!bindAddress.isLoopbackAddress()) {
+            System.err.println("check_jmx daemon only binds to loopback addresses, not "
+                    + bindAddress.getHostAddress());
+            System.exit(NagiosJmxPlugin.NAGIOS_UNKNOWN);
+        }
+        String tokenFile = props.getProperty("tokenFile");
+        String token = loadToken(tokenFile != null ? new File(tokenFile) : DEFAULT_TOKEN_FILE);
+
+        JmxConnectionPool pool = new JmxConnectionPool();
+        if (props.containsKey("idleTimeout"))
+            pool.setIdleTimeout(Long.parseLong(props.getProperty("idleTimeout")) * 1000);
+        if (props.containsKey("maxIdle"))
+            pool.setMaxIdle(Integer.parseInt(props.getProperty("maxIdle")));
+        if (props.containsKey("validationInterval"))
+            pool.setValidationInterval(
+                    Long.parseLong(props.getProperty("validationInterval")) * 1000);
+
+        NotificationMonitor monitor = new NotificationMonitor();
+        if (props.containsKey("subscriptionTimeout"))
+            monitor.setIdleTimeout(
+                    Long.parseLong(props.getProperty("subscriptionTimeout")) * 1000);
+
+        ServerSocket serverSocket = new ServerSocket(port, 128, bindAddress);
+        final NagiosJmxDaemon daemon = new NagiosJmxDaemon(serverSocket, threads, pool, monitor,
+                token);
+        for (String directory : props.getProperty("allowDirs", "").split(File.pathSeparator)) {
+            if (directory.length() > 0)
+                daemon.addAllowedDirectory(new File(directory));
+        }
+        daemon.setAllowOperations(props.containsKey("allowOperations"));
+        if (props.containsKey("checkTimeout"))
+            daemon.setCheckTimeout(Integer.parseInt(props.getProperty("checkTimeout")));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    daemon.shutdown();
+                } catch (IOException e) {
+                    // Ignore, exiting anyway.
+                }
+            }
+        });
+        daemon.serve();
+    }
+
+    private static Properties parseArguments(String[] args) {
+        Properties props = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            if ("-p".equals(args[i]) || "--port".equals(args[i]))
+                props.put("port", args[++i]);
+            else if ("-b".equals(args[i]) || "--bind".equals(args[i]))
+                props.put("bind", args[++i]);
+            else if ("--threads".equals(args[i]))
+                props.put("threads", args[++i]);
+            else if ("--idle-timeout".equals(args[i]))
+                props.put("idleTimeout", args[++i]);
+            else if ("--max-idle".equals(args[i]))
+                props.put("maxIdle", args[++i]);
+            else if ("--validation-interval".equals(args[i]))
+                props.put("validationInterval", args[++i]);
+            else if ("--subscription-timeout".equals(args[i]))
+                props.put("subscriptionTimeout", args[++i]);
+            else if ("--token-file".equals(args[i]))
+                props.put("tokenFile", args[++i]);
+            else if ("--allow-dir".equals(args[i])) {
+                String dirs = props.getProperty("allowDirs");
+                props.put("allowDirs", dirs == null ? args[++i]
+                    : dirs + File.pathSeparator + args[++i]);
+            }
+            else if ("--allow-operations".equals(args[i]))
+                props.put("allowOperations", "true");
+            else if ("--check-timeout".equals(args[i]))
+                props.put("checkTimeout", args[++i]);
+        }
+        return props;
+    }
+}
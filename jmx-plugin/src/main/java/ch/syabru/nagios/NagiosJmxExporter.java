@@ -0,0 +1,515 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXServiceURL;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Prometheus scrape gateway. Polls the attributes of a configuration file
+ * from a set of JVMs over pooled connections, using the same query engine
+ * as check_jmx, and serves the values in the Prometheus text exposition
+ * format on /metrics.
+ *
+ * <p>Each poll renders the complete exposition into a back buffer and
+ * publishes it by swapping a volatile reference. A scrape only writes the
+ * published bytes and never waits for a JVM; a JVM which does not answer
+ * within the timeout is reported with jmx_up 0.</p>
+ *
+ * <p>Configuration, a properties file:</p>
+ * <pre>
+ * port=9404
+ * interval=15
+ * target.app1.url=service:jmx:rmi:///jndi/rmi://app1:9010/jmxrmi
+ * target.app2.pid=org.example.Main
+ * metric.heap_used.objectName=java.lang:type=Memory
+ * metric.heap_used.attributeName=HeapMemoryUsage
+ * metric.heap_used.attributeKey=used
+ * metric.heap_used.units=B
+ * </pre>
+ *
+ */
+public class NagiosJmxExporter {
+
+    /**
+     * Default HTTP port.
+     */
+    public static final int DEFAULT_PORT = 9404;
+    /**
+     * Default poll interval in seconds.
+     */
+    public static final long DEFAULT_INTERVAL = 15;
+    /**
+     * Content type of the text exposition format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "jmx_";
+
+    private final List<Target> targets;
+    private final List<Metric> metrics;
+    private final JmxConnectionPool connectionPool;
+    private final long interval;
+    private final long timeout;
+    private final StringBuilder back = new StringBuilder();
+    private volatile byte[] snapshot;
+    private ScheduledExecutorService poller;
+
+    /**
+     * Create exporter.
+     * @param targets Targets.
+     * @param metrics Metrics polled from each target.
+     * @param connectionPool Connection pool.
+     * @param interval Poll interval in milliseconds.
+     * @param timeout Timeout of a poll in milliseconds.
+     */
+    public NagiosJmxExporter(List<Target> targets, List<Metric> metrics,
+            JmxConnectionPool connectionPool, long interval, long timeout)
+    {
+        this.targets = targets;
+        this.metrics = metrics;
+        this.connectionPool = connectionPool;
+        this.interval = interval;
+        this.timeout = timeout;
+        synchronized (this) {
+            render();
+        }
+    }
+
+    /**
+     * Start polling all targets, spread evenly over the interval.
+     * @param threads Number of polling threads.
+     */
+    public synchronized void start(int threads) {
+        connectionPool.start();
+        poller = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "check_jmx-exporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < targets.size(); i++) {
+            final Target target = targets.get(i);
+            poller.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    poll(target);
+                }
+            }, i * interval / targets.size(), interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop polling and close all connections.
+     */
+    public synchronized void stop() {
+        if (poller != null)
+            poller.shutdownNow();
+        connectionPool.close();
+    }
+
+    /**
+     * Get the exposition published by the last poll.
+     * @return Exposition encoded in UTF-8.
+     */
+    public byte[] getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Poll all metrics of a target and publish a new snapshot.
+     * @param target Target.
+     */
+    public void poll(Target target) {
+        long start = System.nanoTime();
+        List<JmxCheck> checks = new ArrayList<JmxCheck>(metrics.size());
+        for (Metric metric : metrics)
+            checks.add(metric.createCheck());
+        boolean up = query(target, checks);
+        double duration = (System.nanoTime() - start) / 1e9;
+        synchronized (this) {
+            target.checks = checks;
+            target.up = up;
+            target.duration = duration;
+            render();
+        }
+    }
+
+    /**
+     * Query checks of a target within the timeout. Checks which fail on
+     * their own, e.g. because the MBean is not registered, are left without
+     * value.
+     * @return true if the target could be queried.
+     */
+    private boolean query(final Target target, final List<JmxCheck> checks) {
+        final NagiosJmxPlugin plugin = new NagiosJmxPlugin();
+        plugin.setConnectionPool(connectionPool);
+        final Deadline deadline = new Deadline(timeout, NagiosJmxPlugin.NAGIOS_UNKNOWN);
+        MBeanServerConnection connection = null;
+        try {
+            connection = deadline.call(Deadline.PHASE_CONNECT,
+                    new Callable<MBeanServerConnection>() {
+                public MBeanServerConnection call() throws Exception {
+                    MBeanServerConnection connection = target.serviceUrl != null ?
+                        plugin.openConnection(target.serviceUrl, target.username,
+                                target.password) :
+                        plugin.openLocalConnection(target.localJvm);
+                    if (deadline.isExpired())
+                        plugin.abortConnection(connection);
+                    return connection;
+                }
+            });
+            final MBeanServerConnection queryConnection = connection;
+            deadline.call(Deadline.PHASE_QUERY, new Callable<Object>() {
+                public Object call() throws Exception {
+                    try {
+                        plugin.query(queryConnection, checks);
+                    } catch (NagiosJmxPluginException e) {
+                        // Isolate the failing checks.
+                        for (JmxCheck check : checks) {
+                            try {
+                                plugin.query(queryConnection, Collections.singletonList(check));
+                            } catch (NagiosJmxPluginException ce) {
+                                check.setValue(null);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+            plugin.closeConnection(connection);
+            return true;
+        } catch (Exception e) {
+            if (connection != null)
+                plugin.abortConnection(connection);
+            return false;
+        }
+    }
+
+    /**
+     * Render exposition of all targets into the back buffer and publish it.
+     * Samples are grouped by metric, as required by the format.
+     */
+    private void render() {
+        back.setLength(0);
+        back.append("# HELP jmx_up Whether the last poll of the target succeeded.\n");
+        back.append("# TYPE jmx_up gauge\n");
+        for (Target target : targets) {
+            if (target.checks != null)
+                appendSample(back, "jmx_up", target, null, target.up ? 1 : 0);
+        }
+        back.append("# HELP jmx_poll_duration_seconds Duration of the last poll of the target.\n");
+        back.append("# TYPE jmx_poll_duration_seconds gauge\n");
+        for (Target target : targets) {
+            if (target.checks != null)
+                appendSample(back, "jmx_poll_duration_seconds", target, null, target.duration);
+        }
+        for (int i = 0; i < metrics.size(); i++) {
+            Metric metric = metrics.get(i);
+            String name = metric.getExpositionName();
+            back.append("# HELP ").append(name).append(' ');
+            back.append(escape(metric.help, false)).append('\n');
+            back.append("# TYPE ").append(name).append(' ');
+            back.append(metric.isCounter() ? "counter" : "gauge").append('\n');
+            for (Target target : targets) {
+                if (target.checks == null || !target.up)
+                    continue;
+                JmxCheck check = target.checks.get(i);
+                if (check.getInstanceValues() != null && metric.aggregation == null) {
+                    for (Map.Entry<ObjectName, Number> entry : check.getInstanceValues().entrySet())
+                        appendSample(back, name, target, entry.getKey(),
+                                metric.scale(entry.getValue()));
+                } else if (check.getValue() != null) {
+                    appendSample(back, name, target, null, metric.scale(check.getValue()));
+                }
+            }
+        }
+        try {
+            snapshot = back.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void appendSample(StringBuilder out, String name, Target target,
+            ObjectName instance, Number value)
+    {
+        out.append(name).append("{target=\"").append(escape(target.name, true)).append('"');
+        if (instance != null) {
+            for (String key : new TreeSet<String>(instance.getKeyPropertyList().keySet())) {
+                String property = instance.getKeyProperty(key);
+                if (property.startsWith("\""))
+                    property = ObjectName.unquote(property);
+                out.append(',').append(sanitize(key)).append("=\"");
+                out.append(escape(property, true)).append('"');
+            }
+        }
+        out.append("} ").append(value).append('\n');
+    }
+
+    static String sanitize(String name) {
+        String sanitized = name.replaceAll("[^a-zA-Z0-9_]", "_");
+        return Character.isDigit(sanitized.charAt(0)) ? "_" + sanitized : sanitized;
+    }
+
+    private static String escape(String value, boolean label) {
+        value = value.replace("\\", "\\\\").replace("\n", "\\n");
+        return label ? value.replace("\"", "\\\"") : value;
+    }
+
+    /**
+     * Target JVM, either remote by service URL or local by process id or
+     * display name.
+     */
+    public static class Target {
+
+        private final String name;
+        private final JMXServiceURL serviceUrl;
+        private final String localJvm;
+        private final String username;
+        private final String password;
+        // Result of the last poll, guarded by the exporter.
+        private List<JmxCheck> checks;
+        private boolean up;
+        private double duration;
+
+        public Target(String name, JMXServiceURL serviceUrl, String localJvm,
+                String username, String password)
+        {
+            this.name = name;
+            this.serviceUrl = serviceUrl;
+            this.localJvm = localJvm;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    /**
+     * Attribute polled from each target, with the same object name,
+     * attribute, key and units syntax as check_jmx. Values are converted to
+     * base units, e.g. bytes and seconds, and counters (units c) are
+     * exposed as Prometheus counters.
+     */
+    public static class Metric {
+
+        private final String name;
+        private final String objectName;
+        private final String attributeName;
+        private final String attributeKey;
+        private final String units;
+        private final String aggregation;
+        private final String help;
+
+        /**
+         * Create metric.
+         * @param aggregation Aggregation of the MBeans matching an object
+         *        name pattern, or null to expose each MBean with its key
+         *        properties as labels.
+         * @throws NagiosJmxPluginException If units or aggregation are
+         *         unknown.
+         */
+        public Metric(String name, String objectName, String attributeName,
+                String attributeKey, String units, String aggregation, String help)
+        throws NagiosJmxPluginException
+        {
+            if (objectName == null || attributeName == null)
+                throw new NagiosJmxPluginException("objectName and attributeName required for metric [" +
+                        name + "]");
+            if (units != null && !NagiosJmxPlugin.UNITS.contains(units))
+                throw new NagiosJmxPluginException("Unknown unit [" + units + "]");
+            if (aggregation != null && !JmxCheck.AGGREGATIONS.contains(aggregation))
+                throw new NagiosJmxPluginException("Unknown aggregation [" + aggregation + "]");
+            this.name = name;
+            this.objectName = objectName;
+            this.attributeName = attributeName;
+            this.attributeKey = attributeKey;
+            this.units = units;
+            this.aggregation = aggregation;
+            this.help = help != null ? help : objectName + " " + attributeName +
+                    (attributeKey != null ? " " + attributeKey : "");
+            createCheck();
+        }
+
+        JmxCheck createCheck() {
+            try {
+                JmxCheck check = new JmxCheck(objectName, attributeName, attributeKey,
+                        units, null, null);
+                if (aggregation != null)
+                    check.setAggregation(aggregation);
+                return check;
+            } catch (NagiosJmxPluginException e) {
+                // Checks without thresholds are always valid.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean isCounter() {
+            return NagiosJmxPlugin.UNIT_COUNTER.equals(units);
+        }
+
+        String getExpositionName() {
+            String suffix = "";
+            if (NagiosJmxPlugin.UNIT_COUNTER.equals(units))
+                suffix = "_total";
+            else if (NagiosJmxPlugin.UNIT_PERCENT.equals(units))
+                suffix = "_percent";
+            else if (units != null && units.endsWith(NagiosJmxPlugin.UNIT_B))
+                suffix = "_bytes";
+            else if (units != null && units.endsWith(NagiosJmxPlugin.UNIT_S))
+                suffix = "_seconds";
+            return PREFIX + sanitize(name) + suffix;
+        }
+
+        Number scale(Number value) {
+            double factor;
+            if (NagiosJmxPlugin.UNIT_KB.equals(units))
+                factor = 1024.0;
+            else if (NagiosJmxPlugin.UNIT_MB.equals(units))
+                factor = 1024.0 * 1024;
+            else if (NagiosJmxPlugin.UNIT_TB.equals(units))
+                factor = 1024.0 * 1024 * 1024 * 1024;
+            else if (NagiosJmxPlugin.UNIT_MS.equals(units))
+                factor = 1e-3;
+            else if (NagiosJmxPlugin.UNIT_US.equals(units))
+                factor = 1e-6;
+            else
+                return value;
+            return value.doubleValue() * factor;
+        }
+    }
+
+    /**
+     * Read configuration.
+     * @param config Configuration properties.
+     * @return Exporter, not started.
+     * @throws NagiosJmxPluginException If the configuration is invalid.
+     */
+    public static NagiosJmxExporter create(Properties config)
+    throws NagiosJmxPluginException
+    {
+        List<Target> targets = new ArrayList<Target>();
+        for (String name : getNames(config, "target.")) {
+            String prefix = "target." + name + ".";
+            String url = config.getProperty(prefix + "url");
+            String pid = config.getProperty(prefix + "pid");
+            if ((url == null) == (pid == null))
+                throw new NagiosJmxPluginException("Either url or pid required for target [" +
+                        name + "]");
+            JMXServiceURL serviceUrl = null;
+            try {
+                if (url != null)
+                    serviceUrl = new JMXServiceURL(url);
+            } catch (MalformedURLException e) {
+                throw new NagiosJmxPluginException("Malformed service URL [" + url + "]", e);
+            }
+            targets.add(new Target(name, serviceUrl, pid,
+                    config.getProperty(prefix + "username"),
+                    config.getProperty(prefix + "password")));
+        }
+        List<Metric> metrics = new ArrayList<Metric>();
+        for (String name : getNames(config, "metric.")) {
+            String prefix = "metric." + name + ".";
+            metrics.add(new Metric(name,
+                    config.getProperty(prefix + NagiosJmxPlugin.PROP_OBJECT_NAME),
+                    config.getProperty(prefix + NagiosJmxPlugin.PROP_ATTRIBUTE_NAME),
+                    config.getProperty(prefix + NagiosJmxPlugin.PROP_ATTRIBUTE_KEY),
+                    config.getProperty(prefix + NagiosJmxPlugin.PROP_UNITS),
+                    config.getProperty(prefix + NagiosJmxPlugin.PROP_AGGREGATE),
+                    config.getProperty(prefix + "help")));
+        }
+        if (targets.isEmpty() || metrics.isEmpty())
+            throw new NagiosJmxPluginException("No targets or metrics configured");
+
+        long interval = Long.parseLong(config.getProperty("interval",
+                String.valueOf(DEFAULT_INTERVAL))) * 1000;
+        long timeout = config.containsKey("timeout") ?
+                Long.parseLong(config.getProperty("timeout")) * 1000 : interval;
+        JmxConnectionPool pool = new JmxConnectionPool();
+        pool.setIdleTimeout(Math.max(pool.getIdleTimeout(), 4 * interval));
+        return new NagiosJmxExporter(targets, metrics, pool, interval, timeout);
+    }
+
+    private static TreeSet<String> getNames(Properties config, String prefix) {
+        TreeSet<String> names = new TreeSet<String>();
+        for (String key : config.stringPropertyNames()) {
+            int end = key.indexOf('.', prefix.length());
+            if (key.startsWith(prefix) && end > prefix.length())
+                names.add(key.substring(prefix.length(), end));
+        }
+        return names;
+    }
+
+    /**
+     * Main method.
+     * @param args Configuration file.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: check_jmx_exporter <config_file>");
+            System.exit(NagiosJmxPlugin.NAGIOS_UNKNOWN);
+        }
+        Properties config = new Properties();
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            config.load(in);
+        } finally {
+            in.close();
+        }
+        final NagiosJmxExporter exporter = create(config);
+
+        int port = Integer.parseInt(config.getProperty("port", String.valueOf(DEFAULT_PORT)));
+        InetAddress bindAddress = InetAddress.getByName(config.getProperty("bind", "0.0.0.0"));
+        HttpServer server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = exporter.getSnapshot();
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        exporter.start(Math.min(exporter.targets.size(),
+                Integer.parseInt(config.getProperty("threads", "8"))));
+        server.start();
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Command line query of the values recorded by check_jmx with
+ * --history-dir, see {@link TimeSeriesStore}. Prints one line per point:
+ * UTC time, value and series, i.e. service URL, object name, attribute and
+ * key separated by blanks. With --step the points of each series are
+ * downsampled into buckets of that many seconds.
+ *
+ */
+public class NagiosJmxHistory {
+
+    /**
+     * Bucket aggregation average.
+     */
+    public static final String AGGREGATE_AVG = "avg";
+    /**
+     * Bucket aggregation minimum.
+     */
+    public static final String AGGREGATE_MIN = "min";
+    /**
+     * Bucket aggregation maximum.
+     */
+    public static final String AGGREGATE_MAX = "max";
+    /**
+     * Bucket aggregation last value.
+     */
+    public static final String AGGREGATE_LAST = "last";
+    /**
+     * Bucket aggregation number of points.
+     */
+    public static final String AGGREGATE_COUNT = "count";
+
+    private static final List<String> AGGREGATES = Arrays.asList(AGGREGATE_AVG,
+            AGGREGATE_MIN, AGGREGATE_MAX, AGGREGATE_LAST, AGGREGATE_COUNT);
+
+    private static final String USAGE =
+        "Usage: check_jmx_history --history-dir <directory> [--series <regex>]\n" +
+        "    [--from <time>] [--to <time>] [--step <seconds> [--aggregate <avg|min|max|last|count>]]\n" +
+        "    [--list]\n" +
+        "Times are now, relative like -90m, -2h or -7d, or UTC like 2010-12-31T23:59[:59].\n" +
+        "--from defaults to -1h, --to to now.";
+
+    private final TimeSeriesStore store;
+    private final Writer out;
+
+    /**
+     * Create query.
+     * @param store Store.
+     * @param out Output.
+     */
+    public NagiosJmxHistory(TimeSeriesStore store, Writer out) {
+        this.store = store;
+        this.out = out;
+    }
+
+    /**
+     * Print points of matching series.
+     * @param series Pattern found in series names, or null for all.
+     * @param from Start time in milliseconds.
+     * @param to End time in milliseconds.
+     * @throws IOException If the store cannot be read.
+     */
+    public void print(final Pattern series, long from, long to) throws IOException {
+        final IOException[] error = new IOException[1];
+        store.read(from, to, new TimeSeriesStore.PointVisitor() {
+            public boolean accept(String name) {
+                return error[0] == null && matches(series, name);
+            }
+
+            public void point(String name, long time, double value) {
+                try {
+                    out.write(formatTime(time) + "\t" + formatValue(value) + "\t" +
+                            formatSeries(name) + "\n");
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if (error[0] != null)
+            throw error[0];
+    }
+
+    /**
+     * Print matching series downsampled.
+     * @param series Pattern found in series names, or null for all.
+     * @param from Start time in milliseconds.
+     * @param to End time in milliseconds.
+     * @param step Bucket size in milliseconds.
+     * @param aggregate Aggregation of points in a bucket.
+     * @throws IOException If the store cannot be read.
+     */
+    public void print(final Pattern series, long from, long to, final long step,
+            String aggregate)
+    throws IOException
+    {
+        final Map<String, TreeMap<Long, double[]>> buckets =
+            new TreeMap<String, TreeMap<Long, double[]>>();
+        store.read(from, to, new TimeSeriesStore.PointVisitor() {
+            public boolean accept(String name) {
+                return matches(series, name);
+            }
+
+            public void point(String name, long time, double value) {
+                TreeMap<Long, double[]> seriesBuckets = buckets.get(name);
+                if (seriesBuckets == null) {
+                    seriesBuckets = new TreeMap<Long, double[]>();
+                    buckets.put(name, seriesBuckets);
+                }
+                long start = time - time % step;
+                // count, sum, min, max, last
+                double[] bucket = seriesBuckets.get(start);
+                if (bucket == null) {
+                    bucket = new double[] { 0, 0, value, value, value };
+                    seriesBuckets.put(start, bucket);
+                }
+                bucket[0]++;
+                bucket[1] += value;
+                bucket[2] = Math.min(bucket[2], value);
+                bucket[3] = Math.max(bucket[3], value);
+                bucket[4] = value;
+            }
+        });
+        for (Map.Entry<String, TreeMap<Long, double[]>> entry : buckets.entrySet()) {
+            String name = formatSeries(entry.getKey());
+            for (Map.Entry<Long, double[]> bucket : entry.getValue().entrySet()) {
+                double[] b = bucket.getValue();
+                double value;
+                if (AGGREGATE_MIN.equals(aggregate))
+                    value = b[2];
+                else if (AGGREGATE_MAX.equals(aggregate))
+                    value = b[3];
+                else if (AGGREGATE_LAST.equals(aggregate))
+                    value = b[4];
+                else if (AGGREGATE_COUNT.equals(aggregate))
+                    value = b[0];
+                else
+                    value = b[1] / b[0];
+                out.write(formatTime(bucket.getKey()) + "\t" + formatValue(value) + "\t" +
+                        name + "\n");
+            }
+        }
+    }
+
+    /**
+     * Print names of matching series with their number of points.
+     * @param series Pattern found in series names, or null for all.
+     * @param from Start time in milliseconds.
+     * @param to End time in milliseconds.
+     * @throws IOException If the store cannot be read.
+     */
+    public void list(final Pattern series, long from, long to) throws IOException {
+        final Map<String, Integer> counts = new TreeMap<String, Integer>();
+        store.read(from, to, new TimeSeriesStore.PointVisitor() {
+            public boolean accept(String name) {
+                return matches(series, name);
+            }
+
+            public void point(String name, long time, double value) {
+                Integer count = counts.get(name);
+                counts.put(name, count == null ? 1 : count + 1);
+            }
+        });
+        for (Map.Entry<String, Integer> entry : counts.entrySet())
+            out.write(entry.getValue() + "\t" + formatSeries(entry.getKey()) + "\n");
+    }
+
+    private static boolean matches(Pattern series, String name) {
+        return series == null || series.matcher(formatSeries(name)).find();
+    }
+
+    private static String formatSeries(String name) {
+        return name.replace('\u0000', ' ');
+    }
+
+    private static String formatTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static String formatValue(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return String.valueOf(value);
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Parse time.
+     * @param time now, relative time like -90m, or UTC time.
+     * @param now Current time in milliseconds.
+     * @return Time in milliseconds.
+     * @throws ParseException If the time cannot be parsed.
+     */
+    static long parseTime(String time, long now) throws ParseException {
+        if ("now".equals(time))
+            return now;
+        if (time.matches("-\\d+[smhd]")) {
+            long amount = Long.parseLong(time.substring(1, time.length() - 1));
+            switch (time.charAt(time.length() - 1)) {
+            case 's':
+                return now - amount * 1000;
+            case 'm':
+                return now - amount * 60000;
+            case 'h':
+                return now - amount * 3600000;
+            default:
+                return now - amount * 86400000;
+            }
+        }
+        SimpleDateFormat format = new SimpleDateFormat(time.length() > 16 ?
+                "yyyy-MM-dd'T'HH:mm:ss" : "yyyy-MM-dd'T'HH:mm");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.parse(time).getTime();
+    }
+
+    /**
+     * Main method.
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        String directory = null;
+        String series = null;
+        String from = "-1h";
+        String to = "now";
+        String step = null;
+        String aggregate = AGGREGATE_AVG;
+        boolean list = false;
+        boolean usage = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("--list".equals(args[i])) {
+                list = true;
+                continue;
+            }
+            // All other options take a value.
+            if (i + 1 == args.length) {
+                usage = true;
+                break;
+            }
+            if ("--history-dir".equals(args[i]))
+                directory = args[++i];
+            else if ("--series".equals(args[i]))
+                series = args[++i];
+            else if ("--from".equals(args[i]))
+                from = args[++i];
+            else if ("--to".equals(args[i]))
+                to = args[++i];
+            else if ("--step".equals(args[i]))
+                step = args[++i];
+            else if ("--aggregate".equals(args[i]))
+                aggregate = args[++i];
+            else
+                usage = true;
+        }
+        long stepMillis = 0;
+        if (step != null) {
+            try {
+                stepMillis = Long.parseLong(step) * 1000;
+            } catch (NumberFormatException e) {
+                usage = true;
+            }
+            if (stepMillis <= 0)
+                usage = true;
+        }
+        if (!AGGREGATES.contains(aggregate))
+            usage = true;
+        if (usage || directory == null || !new File(directory).isDirectory()) {
+            System.err.println(USAGE);
+            System.exit(NagiosJmxPlugin.NAGIOS_UNKNOWN);
+        }
+        long now = System.currentTimeMillis();
+        Pattern pattern = series != null ? Pattern.compile(series) : null;
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        NagiosJmxHistory history = new NagiosJmxHistory(TimeSeriesStore.open(
+                new File(directory), TimeSeriesStore.DEFAULT_RETENTION), out);
+        if (list)
+            history.list(pattern, parseTime(from, now), parseTime(to, now));
+        else if (step != null)
+            history.print(pattern, parseTime(from, now), parseTime(to, now),
+                    stepMillis, aggregate);
+        else
+            history.print(pattern, parseTime(from, now), parseTime(to, now));
+        out.flush();
+        System.exit(NagiosJmxPlugin.NAGIOS_OK);
+    }
+}
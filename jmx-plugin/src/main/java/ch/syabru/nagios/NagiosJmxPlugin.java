@@ -15,17 +15,41 @@
  */
 package ch.syabru.nagios;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.rmi.ConnectException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
@@ -34,8 +58,7 @@ import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
-import javax.management.openmbean.CompositeDataSupport;
-import javax.management.openmbean.InvalidKeyException;
+import javax.management.openmbean.CompositeData;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
@@ -68,6 +91,16 @@ public class NagiosJmxPlugin {
      */
     public static final int NAGIOS_UNKNOWN = 3; // 
     public static final String NAGIOS_UNKNOWN_MSG = "JMX UNKNOWN - ";
+    /**
+     * Status names by status code.
+     */
+    public static final List<String> STATUS_NAMES = Arrays.asList(
+            "OK", "WARNING", "CRITICAL", "UNKNOWN");
+    /**
+     * Status messages by status code.
+     */
+    public static final List<String> STATUS_MSGS = Arrays.asList(
+            NAGIOS_OK_MSG, NAGIOS_WARNING_MSG, NAGIOS_CRITICAL_MSG, NAGIOS_UNKNOWN_MSG);
 
     /**
      * Username system property.
@@ -94,15 +127,18 @@ public class NagiosJmxPlugin {
      */
     public static final String PROP_SERVICE_URL = "serviceUrl";
     /**
-     * Threshold warning level system property.
-     * The number format of this property has to correspond to the type of
-     * the attribute object.
+     * Process id or display name of a local JVM, queried through its local
+     * connector instead of the service URL.
+     */
+    public static final String PROP_LOCAL_JVM = "localJvm";
+    /**
+     * Threshold warning level system property, in Nagios range format.
+     * See {@link Threshold}.
      */
     public static final String PROP_THRESHOLD_WARNING = "thresholdWarning";
     /**
-     * Threshold critical level system property.
-     * The number format of this property has to correspond the type of
-     * the attribute object.
+     * Threshold critical level system property, in Nagios range format.
+     * See {@link Threshold}.
      */
     public static final String PROP_THRESHOLD_CRITICAL = "thresholdCritical";
     /**
@@ -121,6 +157,145 @@ public class NagiosJmxPlugin {
      * Help output.
      */
     public static final String PROP_HELP = "help";
+    /**
+     * Aggregation of values of MBeans matching an object name pattern.
+     */
+    public static final String PROP_AGGREGATE = "aggregate";
+    /**
+     * Report performance data of each MBean matching an object name pattern.
+     */
+    public static final String PROP_INSTANCES = "instances";
+    /**
+     * Maximum number of MBeans matching an object name pattern queried in
+     * parallel.
+     */
+    public static final String PROP_PARALLELISM = "parallelism";
+
+    /**
+     * Report counters as rate per second.
+     */
+    public static final String PROP_RATE = "rate";
+    /**
+     * File keeping counter samples between invocations.
+     */
+    public static final String PROP_STATE_FILE = "stateFile";
+    /**
+     * Add the time spent in each phase to the performance data.
+     */
+    public static final String PROP_TIMINGS = "timings";
+    /**
+     * Apply thresholds to the deviation from a baseline per hour of week.
+     */
+    public static final String PROP_ADAPTIVE = "adaptive";
+    /**
+     * Weight of a new value in the baseline.
+     */
+    public static final String PROP_ALPHA = "alpha";
+
+    /**
+     * Timeout of the whole check in seconds, optionally followed by the
+     * status reported on timeout, e.g. 10:UNKNOWN.
+     */
+    public static final String PROP_TIMEOUT = "timeout";
+
+    /**
+     * Number of samples taken over one connection.
+     */
+    public static final String PROP_SAMPLES = "samples";
+    /**
+     * Interval between samples in milliseconds.
+     */
+    public static final String PROP_INTERVAL = "interval";
+    /**
+     * Statistic of the samples thresholds apply to.
+     */
+    public static final String PROP_STATISTIC = "statistic";
+
+    /**
+     * Prefix of the notification types checked instead of attributes.
+     */
+    public static final String PROP_NOTIFICATION = "notification";
+    /**
+     * Window of notification checks in seconds.
+     */
+    public static final String PROP_WINDOW = "window";
+
+    /**
+     * Directory of the MBean indexes used to resolve object name patterns
+     * and validate attribute types locally.
+     */
+    public static final String PROP_INDEX_DIR = "indexDir";
+
+    /**
+     * Directory thread dumps are written to when a check is critical.
+     */
+    public static final String PROP_DUMP_DIR = "dumpDir";
+    /**
+     * Number of thread dumps kept per JVM.
+     */
+    public static final String PROP_DUMP_KEEP = "dumpKeep";
+    /**
+     * Directory of the store values of checks are recorded in.
+     */
+    public static final String PROP_HISTORY_DIR = "historyDir";
+    /**
+     * Days values are kept in the history store.
+     */
+    public static final String PROP_HISTORY_RETENTION = "historyRetention";
+    /**
+     * Longest time in milliseconds spent capturing a thread dump.
+     */
+    public static final long DUMP_TIMEOUT = 5000;
+
+    /**
+     * Check mode computing metrics from several remote calls, see
+     * {@link CheckMode}.
+     */
+    public static final String PROP_MODE = "mode";
+    /**
+     * Check mode threads, see {@link ThreadCpuCheck}.
+     */
+    public static final String MODE_THREADS = "threads";
+    /**
+     * Check mode gc, see {@link GcCheck}.
+     */
+    public static final String MODE_GC = "gc";
+    /**
+     * Check mode heap-forecast, see {@link HeapForecastCheck}.
+     */
+    public static final String MODE_HEAP_FORECAST = "heap-forecast";
+
+    /**
+     * Default window of notification checks in seconds.
+     */
+    public static final int DEFAULT_WINDOW = 60;
+    /**
+     * Default interval between samples in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+    /**
+     * Default number of counters kept in the state file.
+     */
+    public static final int DEFAULT_STATE_SLOTS = 131072;
+    /**
+     * Default weight of a new week in the baseline.
+     */
+    public static final double DEFAULT_ALPHA = 0.2;
+    /**
+     * Number of weeks a baseline bucket learns before deviations are
+     * reported.
+     */
+    public static final int BASELINE_MIN_WEEKS = 3;
+    /**
+     * Smallest standard deviation of a baseline, relative to its mean, so
+     * that a constant value does not turn every change into an alert.
+     */
+    public static final double BASELINE_MIN_DEVIATION = 0.01;
+
+    /**
+     * Default number of MBeans queried in parallel.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
 
     /**
      * Unit bytes.
@@ -165,38 +340,141 @@ public class NagiosJmxPlugin {
             UNIT_B, UNIT_KB, UNIT_MB, UNIT_TB, UNIT_S, UNIT_US, UNIT_MS,
             UNIT_COUNTER, UNIT_PERCENT);
 
-    private HashMap<MBeanServerConnection, JMXConnector> connections =
-        new HashMap<MBeanServerConnection, JMXConnector>();
+    private Map<MBeanServerConnection, JMXConnector> connections =
+        Collections.synchronizedMap(new HashMap<MBeanServerConnection, JMXConnector>());
 
-        /**
-     * Open a connection to a MBean server.
+    /**
+     * Creates daemon threads for querying MBeans in parallel.
+     */
+    private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "check_jmx-query");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private JmxConnectionPool connectionPool;
+
+    private NotificationMonitor notificationMonitor;
+
+    private MBeanIndex mbeanIndex;
+
+    private CheckMode checkMode;
+
+    private String dumpOutput;
+
+    private String historyOutput;
+
+    private long startupTime = -1;
+
+    private PrintStream out = System.out;
+
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    /**
+     * Set connection pool. If set, connections are borrowed from and given
+     * back to the pool instead of being opened and closed for each check.
+     * @param connectionPool Connection pool, or null.
+     */
+    public void setConnectionPool(JmxConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Set notification monitor answering notification checks.
+     * @param notificationMonitor Notification monitor, or null.
+     */
+    public void setNotificationMonitor(NotificationMonitor notificationMonitor) {
+        this.notificationMonitor = notificationMonitor;
+    }
+
+    /**
+     * Set stream the check result is written to. Defaults to System.out.
+     * @param out Output stream.
+     */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Connect to a MBean server.
      * @param serviceUrl Service URL, e.g. service:jmx:rmi://HOST:PORT/jndi/rmi://HOST:PORT/jmxrmi
      * @param username Username
      * @param password Password
-     * @return MBeanServerConnection if succesfull.
+     * @return Connected JMXConnector.
      * @throws IOException
      */
-    public MBeanServerConnection openConnection(
+    static JMXConnector connect(
             JMXServiceURL serviceUrl, String username, String password)
     throws IOException, SecurityException
     {
-        JMXConnector connector;
-        HashMap<String, Object> environment = new HashMap<String, Object>();
+        return connect(serviceUrl, username, password, new HashMap<String, Object>());
+    }
+
+    /**
+     * Connect to a MBean server.
+     * @param serviceUrl Service URL, e.g. service:jmx:rmi://HOST:PORT/jndi/rmi://HOST:PORT/jmxrmi
+     * @param username Username
+     * @param password Password
+     * @param environment Additional connector environment, modified.
+     * @return Connected JMXConnector.
+     * @throws IOException
+     */
+    static JMXConnector connect(JMXServiceURL serviceUrl, String username,
+            String password, Map<String, Object> environment)
+    throws IOException, SecurityException
+    {
+        TimeoutSocketFactory.install();
         // Add environment variable to check for dead connections.
         environment.put("jmx.remote.x.client.connection.check.period", 5000);
         if (username != null && password != null) {
-            environment = new HashMap<String, Object>();
             environment.put(JMXConnector.CREDENTIALS,
                     new String[] { username, password });
-            connector = JMXConnectorFactory.connect(serviceUrl, environment);
-        } else {
-            connector = JMXConnectorFactory.connect(serviceUrl, environment);
         }
+        return JMXConnectorFactory.connect(serviceUrl, environment);
+    }
+
+    /**
+     * Open a connection to a MBean server.
+     * @param serviceUrl Service URL, e.g. service:jmx:rmi://HOST:PORT/jndi/rmi://HOST:PORT/jmxrmi
+     * @param username Username
+     * @param password Password
+     * @return MBeanServerConnection if succesfull.
+     * @throws IOException
+     */
+    public MBeanServerConnection openConnection(
+            JMXServiceURL serviceUrl, String username, String password)
+    throws IOException, SecurityException
+    {
+        if (connectionPool != null)
+            return connectionPool.borrow(serviceUrl, username, password);
+        JMXConnector connector = connect(serviceUrl, username, password);
         MBeanServerConnection connection = connector.getMBeanServerConnection();
         connections.put(connection, connector);
         return connection;
     }
 
+    /**
+     * Open a connection to the local connector of a JVM on this host,
+     * starting its management agent if necessary. If the cached connector
+     * address is stale, the JVM is attached again.
+     * @param jvm Process id or display name.
+     * @return MBeanServerConnection if succesfull.
+     * @throws NagiosJmxPluginException If the JVM cannot be attached.
+     * @throws IOException
+     */
+    public MBeanServerConnection openLocalConnection(String jvm)
+    throws NagiosJmxPluginException, IOException
+    {
+        try {
+            return openConnection(LocalJvmConnector.getServiceUrl(jvm), null, null);
+        } catch (IOException e) {
+            LocalJvmConnector.forget(jvm);
+            return openConnection(LocalJvmConnector.getServiceUrl(jvm), null, null);
+        }
+    }
+
     /**
      * Close JMX connection.
      * @param connection Connection.
@@ -205,26 +483,399 @@ public class NagiosJmxPlugin {
     public void closeConnection(MBeanServerConnection connection)
     throws IOException
     {
+        if (connectionPool != null) {
+            connectionPool.release(connection);
+            return;
+        }
         JMXConnector connector = connections.remove(connection);
         if (connector != null)
             connector.close();
     }
 
+    /**
+     * Close a connection which may still be in use by a timed out remote
+     * call, without waiting for it. Pooled connections are discarded.
+     * @param connection Connection.
+     */
+    public void abortConnection(final MBeanServerConnection connection) {
+        if (connectionPool != null) {
+            connectionPool.invalidate(connection);
+            return;
+        }
+        final JMXConnector connector = connections.remove(connection);
+        if (connector == null)
+            return;
+        Thread closer = new Thread("check_jmx-abort") {
+            @Override
+            public void run() {
+                try {
+                    connector.close();
+                } catch (IOException e) {
+                    // Ignore, connection is discarded.
+                }
+            }
+        };
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    /**
+     * Create deadline of a check.
+     * @param timeout Timeout in seconds, optionally followed by the status
+     *        reported on timeout, e.g. 10:UNKNOWN; or null for none.
+     * @return Deadline.
+     * @throws NagiosJmxPluginException If timeout is malformed.
+     */
+    private Deadline getDeadline(String timeout) throws NagiosJmxPluginException {
+        if (timeout == null)
+            return new Deadline(0, NAGIOS_CRITICAL);
+        String[] parts = timeout.split(":");
+        int status = NAGIOS_CRITICAL;
+        if (parts.length > 1) {
+            status = STATUS_NAMES.indexOf(parts[1].toUpperCase());
+            if (status < 0)
+                throw new NagiosJmxPluginException("Unknown timeout status [" + parts[1] + "]");
+        }
+        long millis;
+        try {
+            millis = Math.round(Double.parseDouble(parts[0]) * 1000);
+        } catch (NumberFormatException e) {
+            throw new NagiosJmxPluginException("Malformed timeout [" + timeout + "]", e);
+        }
+        return new Deadline(millis, status);
+    }
+
     public Object query(MBeanServerConnection connection, String objectName, String attributeName,
             String attributeKey)
     throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException,
     AttributeNotFoundException, MBeanException, MalformedObjectNameException, NullPointerException
     {
-        Object value = null;
         ObjectName objName = new ObjectName(objectName);
         Object attribute = connection.getAttribute(objName, attributeName);
-        if (attribute instanceof CompositeDataSupport) {
-            CompositeDataSupport compositeAttr = (CompositeDataSupport) attribute;
-            value = compositeAttr.get(attributeKey);
-        } else {
-            value = attribute;
+        return getValue(attribute, attributeKey);
+    }
+
+    /**
+     * Get value of attribute, resolving the key of composite attributes.
+     * @param attribute Attribute value.
+     * @param attributeKey Attribute key, or null.
+     * @return Value.
+     */
+    static Object getValue(Object attribute, String attributeKey) {
+        if (attribute instanceof CompositeData && attributeKey != null)
+            return ((CompositeData) attribute).get(attributeKey);
+        return attribute;
+    }
+
+    /**
+     * Query values of all checks. Checks on the same MBean are fetched
+     * together with a single getAttributes call. Checks on an object name
+     * pattern are fetched from all matching MBeans in parallel.
+     * @param connection MBean server connection.
+     * @param checks Checks, values are set on return.
+     * @throws NagiosJmxPluginException If an MBean, attribute or key is not
+     *         found or a value is not a number.
+     * @throws Exception If querying the server fails.
+     */
+    public void query(MBeanServerConnection connection, List<JmxCheck> checks)
+    throws NagiosJmxPluginException, Exception
+    {
+        Map<String, List<JmxCheck>> checksByObjectName =
+            new LinkedHashMap<String, List<JmxCheck>>();
+        for (JmxCheck check : checks) {
+            List<JmxCheck> group = checksByObjectName.get(check.getObjectName());
+            if (group == null) {
+                group = new ArrayList<JmxCheck>();
+                checksByObjectName.put(check.getObjectName(), group);
+            }
+            group.add(check);
+        }
+        for (Map.Entry<String, List<JmxCheck>> entry : checksByObjectName.entrySet()) {
+            String objectName = entry.getKey();
+            ObjectName objName;
+            try {
+                objName = new ObjectName(objectName);
+            } catch (MalformedObjectNameException e) {
+                throw new NagiosJmxPluginException("Malformed objectName [" + objectName + "]", e);
+            }
+            Set<String> attributeNames = new LinkedHashSet<String>();
+            for (JmxCheck check : entry.getValue())
+                attributeNames.addAll(Arrays.asList(check.getRemoteAttributeNames()));
+            String[] names = attributeNames.toArray(new String[attributeNames.size()]);
+            if (objName.isPattern()) {
+                Set<ObjectName> objNames = mbeanIndex != null ?
+                    mbeanIndex.queryNames(connection, objName) :
+                    connection.queryNames(objName, null);
+                Map<ObjectName, Map<String, Object>> instanceAttributes =
+                    getAttributes(connection, objNames, names);
+                if (mbeanIndex != null && instanceAttributes.size() < objNames.size()) {
+                    // Indexed MBeans were replaced, resolve the pattern again.
+                    objNames = mbeanIndex.refresh(connection, objName);
+                    instanceAttributes = getAttributes(connection, objNames, names);
+                }
+                for (JmxCheck check : entry.getValue())
+                    check.computeAggregateValue(instanceAttributes);
+            } else {
+                if (mbeanIndex != null) {
+                    for (String name : names)
+                        mbeanIndex.validate(connection, objName, name);
+                }
+                Map<String, Object> attributes = getAttributes(connection, objName, names);
+                for (JmxCheck check : entry.getValue())
+                    check.computeValue(attributes);
+            }
+        }
+    }
+
+    /**
+     * Fetch attributes of several MBeans in parallel over one connection.
+     * MBeans which disappear while being queried are skipped, attributes
+     * which cannot be read are missing in the result.
+     * @param connection MBean server connection.
+     * @param objNames Object names.
+     * @param attributeNames Attribute names.
+     * @return Attribute values by attribute name for each MBean, ordered by
+     *         object name.
+     * @throws Exception If querying the server fails.
+     */
+    private Map<ObjectName, Map<String, Object>> getAttributes(
+            final MBeanServerConnection connection, Set<ObjectName> objNames,
+            final String[] attributeNames)
+    throws Exception
+    {
+        List<ObjectName> sorted = new ArrayList<ObjectName>(objNames);
+        Collections.sort(sorted, new Comparator<ObjectName>() {
+            public int compare(ObjectName o1, ObjectName o2) {
+                return o1.getCanonicalName().compareTo(o2.getCanonicalName());
+            }
+        });
+        Map<ObjectName, Future<AttributeList>> futures =
+            new LinkedHashMap<ObjectName, Future<AttributeList>>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parallelism, sorted.size())), DAEMON_THREADS);
+        try {
+            for (final ObjectName objName : sorted) {
+                futures.put(objName, executor.submit(new Callable<AttributeList>() {
+                    public AttributeList call() throws Exception {
+                        return connection.getAttributes(objName, attributeNames);
+                    }
+                }));
+            }
+            Map<ObjectName, Map<String, Object>> result =
+                new LinkedHashMap<ObjectName, Map<String, Object>>();
+            for (Map.Entry<ObjectName, Future<AttributeList>> entry : futures.entrySet()) {
+                AttributeList list;
+                try {
+                    list = entry.getValue().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof InstanceNotFoundException)
+                        continue;
+                    if (e.getCause() instanceof Exception)
+                        throw (Exception) e.getCause();
+                    throw e;
+                }
+                Map<String, Object> attributes = new HashMap<String, Object>();
+                for (Object attribute : list) {
+                    Attribute attr = (Attribute) attribute;
+                    attributes.put(attr.getName(), attr.getValue());
+                }
+                result.put(entry.getKey(), attributes);
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetch attributes of a MBean in one remote call.
+     * @param connection MBean server connection.
+     * @param objName Object name.
+     * @param attributeNames Attribute names.
+     * @return Attribute values by attribute name.
+     * @throws NagiosJmxPluginException If MBean or an attribute is not found.
+     * @throws Exception If querying the server fails.
+     */
+    private Map<String, Object> getAttributes(MBeanServerConnection connection,
+            ObjectName objName, String[] attributeNames)
+    throws NagiosJmxPluginException, Exception
+    {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        try {
+            for (Object attribute : connection.getAttributes(objName, attributeNames)) {
+                Attribute attr = (Attribute) attribute;
+                attributes.put(attr.getName(), attr.getValue());
+            }
+            // getAttributes silently drops attributes it could not read, fetch
+            // them one by one to report the actual error.
+            for (String attributeName : attributeNames) {
+                if (attributes.containsKey(attributeName))
+                    continue;
+                try {
+                    attributes.put(attributeName,
+                            connection.getAttribute(objName, attributeName));
+                } catch (AttributeNotFoundException e) {
+                    throw new NagiosJmxPluginException("attributeName not found [" +
+                            attributeName + "]", e);
+                }
+            }
+        } catch (InstanceNotFoundException e) {
+            throw new NagiosJmxPluginException("objectName not found [" + objName + "]", e);
+        }
+        return attributes;
+    }
+
+    /**
+     * Query values of all checks repeatedly and add them to the sample
+     * window of each check. Samples are scheduled at fixed times relative
+     * to the first one, so slow remote calls do not make the window drift;
+     * a sample time already missed is skipped. Sampling stops early if the
+     * next sample would not complete within the deadline.
+     * @param connection MBean server connection.
+     * @param checks Checks.
+     * @param samples Number of samples.
+     * @param interval Interval between samples in milliseconds.
+     * @param deadline Deadline of the check.
+     * @throws NagiosJmxPluginException If an MBean, attribute or key is not
+     *         found or a value is not a number.
+     * @throws Exception If querying the server fails or sampling is
+     *         interrupted.
+     */
+    public void sample(MBeanServerConnection connection, List<JmxCheck> checks,
+            int samples, long interval, Deadline deadline)
+    throws NagiosJmxPluginException, Exception
+    {
+        for (JmxCheck check : checks)
+            check.startSampling(samples);
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+        long start = System.nanoTime();
+        long next = start;
+        long slowest = 0;
+        for (int i = 0; i < samples; i++) {
+            long now = System.nanoTime();
+            if (i > 0) {
+                next += intervalNanos;
+                if (intervalNanos > 0 && next < now)
+                    next += (now - next + intervalNanos - 1) / intervalNanos * intervalNanos;
+                // Leave time for one more sample and closing the connection.
+                long needed = Math.max(0, next - now) + 2 * slowest;
+                if (TimeUnit.NANOSECONDS.toMillis(needed) >= deadline.getRemaining())
+                    break;
+                for (long wait = next - now; wait > 0; wait = next - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.interrupted())
+                        throw new InterruptedException("Sampling interrupted");
+                }
+            }
+            long begin = System.nanoTime();
+            query(connection, checks);
+            slowest = Math.max(slowest, System.nanoTime() - begin);
+            for (JmxCheck check : checks)
+                check.addSample();
+        }
+    }
+
+    /**
+     * Set values of notification checks from the notifications received by
+     * the notification monitor. The attribute name of a check selects the
+     * statistic, the attribute key the value in the user data.
+     * @param checks Checks.
+     * @param deadline Deadline, bounding the subscription on first use.
+     * @param serviceUrl Service URL, or null for a local JVM.
+     * @param localJvm Process id or display name of a local JVM.
+     * @param username Username.
+     * @param password Password.
+     * @param type Prefix of the notification types.
+     * @param window Window in seconds.
+     * @throws NagiosJmxPluginException If not running in the daemon, a
+     *         statistic is unknown or subscribing fails.
+     */
+    private void queryNotifications(final List<JmxCheck> checks, Deadline deadline,
+            final JMXServiceURL serviceUrl, final String localJvm, final String username,
+            final String password, final String type, int window)
+    throws NagiosJmxPluginException
+    {
+        if (notificationMonitor == null)
+            throw new NagiosJmxPluginException(
+                    "Notification checks require the check_jmx daemon");
+        for (JmxCheck check : checks) {
+            if (!NotificationMonitor.STATISTICS.contains(check.getAttributeName()))
+                throw new NagiosJmxPluginException("Unknown notification statistic [" +
+                        check.getAttributeName() + "]");
+        }
+        List<NotificationMonitor.Subscription> subscriptions;
+        try {
+            subscriptions = deadline.call(Deadline.PHASE_CONNECT,
+                    new Callable<List<NotificationMonitor.Subscription>>() {
+                public List<NotificationMonitor.Subscription> call() throws Exception {
+                    List<NotificationMonitor.Subscription> subscriptions =
+                        new ArrayList<NotificationMonitor.Subscription>();
+                    for (JmxCheck check : checks)
+                        subscriptions.add(notificationMonitor.subscribe(serviceUrl, localJvm,
+                                username, password, check.getObjectName(), type,
+                                check.getAttributeKey()));
+                    return subscriptions;
+                }
+            });
+        } catch (NagiosJmxPluginException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new NagiosJmxPluginException("Error subscribing to notifications: " +
+                    e.getMessage(), e);
+        }
+        for (int i = 0; i < checks.size(); i++) {
+            JmxCheck check = checks.get(i);
+            check.setValue(subscriptions.get(i).getStatistic(check.getAttributeName(), window));
+            if (check.getValue() == null)
+                check.setPending("pending, no values in window");
+        }
+    }
+
+    /**
+     * Set values of checks from the metrics of the check mode.
+     */
+    private void queryMode(MBeanServerConnection connection, List<JmxCheck> checks,
+            Deadline deadline, Properties args)
+    throws NagiosJmxPluginException, Exception
+    {
+        Map<String, Number> values = checkMode.query(connection, deadline, args);
+        for (JmxCheck check : checks)
+            check.setValue(values.get(check.getAttributeName()));
+    }
+
+    /**
+     * Capture a thread dump if a check is critical, within half of the
+     * remaining time so the result is not delayed beyond the deadline.
+     * Failures are reported in the output but do not change the status.
+     */
+    private void captureThreadDump(final MBeanServerConnection connection,
+            List<JmxCheck> checks, Deadline deadline, Properties args)
+    {
+        boolean critical = false;
+        for (JmxCheck check : checks)
+            critical |= check.evaluate() == NAGIOS_CRITICAL;
+        long timeout = Math.min(DUMP_TIMEOUT, deadline.getRemaining() / 2);
+        if (!critical || timeout <= 0)
+            return;
+        final ThreadDumpCapture capture = new ThreadDumpCapture(
+                new File(args.getProperty(PROP_DUMP_DIR)),
+                Integer.parseInt(args.getProperty(PROP_DUMP_KEEP,
+                        String.valueOf(ThreadDumpCapture.DEFAULT_KEEP))));
+        final String target = getTarget(args);
+        long start = System.nanoTime();
+        try {
+            File dump = new Deadline(timeout, NAGIOS_CRITICAL).call(Deadline.PHASE_DUMP,
+                    new Callable<File>() {
+                public File call() throws Exception {
+                    return capture.capture(connection, target);
+                }
+            });
+            dumpOutput = "Thread dump written to " + dump;
+        } catch (Exception e) {
+            dumpOutput = "Thread dump failed: " + e.getMessage();
+        } finally {
+            deadline.addTiming(Deadline.PHASE_DUMP, System.nanoTime() - start);
         }
-        return value;
     }
 
     public void invoke(MBeanServerConnection connection, String objectName,
@@ -236,22 +887,273 @@ public class NagiosJmxPlugin {
         connection.invoke(objName, operationName, null, null);
     }
 
+    /**
+     * Replace values of counter checks by their rate per second since the
+     * previous invocation. The last sample of each counter is kept in the
+     * state file. A counter lower than its previous sample is taken as
+     * reset to zero in between.
+     * @param serviceUrl Service URL.
+     * @param checks Checks.
+     * @param file State file.
+     * @throws NagiosJmxPluginException If the state file cannot be accessed.
+     */
+    private void computeRates(String serviceUrl, List<JmxCheck> checks, File file)
+    throws NagiosJmxPluginException
+    {
+        StateFile stateFile = null;
+        for (final JmxCheck check : checks) {
+            final Number counter = check.getValue();
+            if (!UNIT_COUNTER.equals(check.getUnits()) || counter == null)
+                continue;
+            final boolean integral = !(counter instanceof Double || counter instanceof Float);
+            final long now = System.currentTimeMillis();
+            try {
+                if (stateFile == null)
+                    stateFile = StateFile.open(file, 2, DEFAULT_STATE_SLOTS);
+                stateFile.update(check.getStateKey(serviceUrl), new StateFile.SlotUpdate() {
+                    public boolean update(long[] values, long lastUpdate) {
+                        Double rate = null;
+                        if (lastUpdate > 0 && now > lastUpdate) {
+                            double delta = integral ?
+                                counter.longValue() - values[0] :
+                                counter.doubleValue() - Double.longBitsToDouble(values[1]);
+                            if (delta < 0)
+                                delta = counter.doubleValue();
+                            rate = delta * 1000 / (now - lastUpdate);
+                        }
+                        check.setRate(rate);
+                        values[0] = counter.longValue();
+                        values[1] = Double.doubleToLongBits(counter.doubleValue());
+                        return true;
+                    }
+                });
+            } catch (IOException e) {
+                throw new NagiosJmxPluginException("Error accessing state file [" +
+                        file + "]: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Replace values by their deviation from a baseline in standard
+     * deviations. Each check has a baseline per hour of the week, an
+     * exponentially weighted mean and variance kept in a state file next to
+     * the counter state file. The values of the current hour are summed up
+     * in a slot of their own, and folded into the baseline of their hour of
+     * the week once the hour is over, so each week adds one value to a
+     * baseline however often the check runs.
+     * @param serviceUrl Service URL.
+     * @param checks Checks.
+     * @param args Arguments.
+     * @throws NagiosJmxPluginException If the state file cannot be accessed.
+     */
+    private void computeDeviations(String serviceUrl, List<JmxCheck> checks, Properties args)
+    throws NagiosJmxPluginException
+    {
+        final double alpha = Double.parseDouble(args.getProperty(PROP_ALPHA,
+                String.valueOf(DEFAULT_ALPHA)));
+        Calendar now = Calendar.getInstance();
+        // Hours since the epoch in local time, so that buckets follow the
+        // local hour of the day.
+        final long hour = (now.getTimeInMillis() + now.get(Calendar.ZONE_OFFSET)
+                + now.get(Calendar.DST_OFFSET)) / 3600000;
+        File file = new File(getStateFile(args).getPath() + ".baseline");
+        StateFile stateFile = null;
+        for (final JmxCheck check : checks) {
+            if (check.getValue() == null)
+                continue;
+            final String key = check.getStateKey(serviceUrl) + "\u0000baseline\u0000";
+            final double value = check.getValue().doubleValue();
+            final long[] completed = new long[4];
+            try {
+                if (stateFile == null)
+                    stateFile = StateFile.open(file, 4, DEFAULT_STATE_SLOTS);
+                // Slot of the current hour: hour, sum, sum of squares, count.
+                stateFile.update(key + "hour", new StateFile.SlotUpdate() {
+                    public boolean update(long[] values, long lastUpdate) {
+                        if (values[0] != hour) {
+                            System.arraycopy(values, 0, completed, 0, values.length);
+                            values[0] = hour;
+                            values[1] = Double.doubleToLongBits(0);
+                            values[2] = Double.doubleToLongBits(0);
+                            values[3] = 0;
+                        }
+                        values[1] = Double.doubleToLongBits(
+                                Double.longBitsToDouble(values[1]) + value);
+                        values[2] = Double.doubleToLongBits(
+                                Double.longBitsToDouble(values[2]) + value * value);
+                        values[3]++;
+                        return true;
+                    }
+                });
+                if (completed[3] > 0) {
+                    // Baseline of an hour of the week: mean, variance, weeks.
+                    stateFile.update(key + getHourOfWeek(completed[0]), new StateFile.SlotUpdate() {
+                        public boolean update(long[] values, long lastUpdate) {
+                            double count = completed[3];
+                            double sum = Double.longBitsToDouble(completed[1]);
+                            double sumSquares = Double.longBitsToDouble(completed[2]);
+                            double hourMean = sum / count;
+                            double mean = Double.longBitsToDouble(values[0]);
+                            double variance = Double.longBitsToDouble(values[1]);
+                            if (values[2] == 0) {
+                                mean = hourMean;
+                                variance = Math.max(0, sumSquares / count - hourMean * hourMean);
+                            } else {
+                                // Mean squared distance of the values of the
+                                // hour from the baseline mean.
+                                double spread = Math.max(0, sumSquares / count
+                                        - 2 * mean * hourMean + mean * mean);
+                                mean += alpha * (hourMean - mean);
+                                variance = (1 - alpha) * variance + alpha * spread;
+                            }
+                            values[0] = Double.doubleToLongBits(mean);
+                            values[1] = Double.doubleToLongBits(variance);
+                            values[2] = Math.min(Integer.MAX_VALUE, values[2] + 1);
+                            return true;
+                        }
+                    });
+                }
+                stateFile.update(key + getHourOfWeek(hour), new StateFile.SlotUpdate() {
+                    public boolean update(long[] values, long lastUpdate) {
+                        double mean = Double.longBitsToDouble(values[0]);
+                        double variance = Double.longBitsToDouble(values[1]);
+                        int weeks = (int) values[2];
+                        double deviation = Math.max(Math.sqrt(variance),
+                                Math.abs(mean) * BASELINE_MIN_DEVIATION);
+                        check.setDeviation(mean, deviation, weeks,
+                                weeks >= BASELINE_MIN_WEEKS && deviation > 0);
+                        return false;
+                    }
+                });
+            } catch (IOException e) {
+                throw new NagiosJmxPluginException("Error accessing state file [" +
+                        file + "]: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Get hour of the week, 0 being the first hour of Sunday.
+     * @param hour Hours since the epoch in local time.
+     * @return Hour of the week.
+     */
+    private static int getHourOfWeek(long hour) {
+        // The epoch was a Thursday.
+        return (int) (((hour / 24 + 4) % 7) * 24 + hour % 24);
+    }
+
+    /**
+     * Get check mode.
+     * @param mode Mode name.
+     * @return Check mode.
+     * @throws NagiosJmxPluginException If mode is unknown.
+     */
+    static CheckMode getCheckMode(String mode) throws NagiosJmxPluginException {
+        if (MODE_THREADS.equals(mode))
+            return new ThreadCpuCheck();
+        if (MODE_GC.equals(mode))
+            return new GcCheck();
+        if (MODE_HEAP_FORECAST.equals(mode))
+            return new HeapForecastCheck();
+        throw new NagiosJmxPluginException("Unknown mode [" + mode + "]");
+    }
+
+    /**
+     * Get state file keeping samples between invocations.
+     * @param args Arguments.
+     * @return State file.
+     */
+    static File getStateFile(Properties args) {
+        return new File(args.getProperty(PROP_STATE_FILE,
+                new File(System.getProperty("java.io.tmpdir"), "check_jmx.state").getPath()));
+    }
+
+    /**
+     * Get key identifying the target JVM of a check across invocations.
+     * @param args Arguments.
+     * @return Service URL, or local: followed by the process id or name.
+     */
+    static String getTarget(Properties args) {
+        String serviceUrl = args.getProperty(PROP_SERVICE_URL);
+        // Local connector address changes with each JVM start.
+        return serviceUrl != null ? serviceUrl : "local:" + args.getProperty(PROP_LOCAL_JVM);
+    }
+
+    /**
+     * Get checks from arguments. The first check is defined by the plain
+     * property names, further checks by the property names suffixed with
+     * their index, e.g. objectName.1. The object name is taken from the
+     * previous check if not set. In a check mode, the attribute name
+     * selects a metric of the mode.
+     * @param args Arguments.
+     * @param mode Check mode, or null.
+     * @return Checks, or null if a check is incomplete.
+     * @throws NagiosJmxPluginException If units or metrics are unknown.
+     */
+    private List<JmxCheck> getChecks(Properties args, CheckMode mode)
+    throws NagiosJmxPluginException
+    {
+        if (args.containsKey(PROP_PARALLELISM))
+            parallelism = Integer.parseInt(args.getProperty(PROP_PARALLELISM));
+
+        List<JmxCheck> checks = new ArrayList<JmxCheck>();
+        String objectName = mode != null ? mode.getObjectName() : null;
+        for (int i = 0; i == 0 || args.containsKey(getItemProperty(PROP_ATTRIBUTE_NAME, i)); i++) {
+            objectName = args.getProperty(getItemProperty(PROP_OBJECT_NAME, i), objectName);
+            String attributeName = args.getProperty(getItemProperty(PROP_ATTRIBUTE_NAME, i));
+            String attributeKey = args.getProperty(getItemProperty(PROP_ATTRIBUTE_KEY, i));
+            String units = args.getProperty(getItemProperty(PROP_UNITS, i));
+            String thresholdWarning = args.getProperty(getItemProperty(PROP_THRESHOLD_WARNING, i));
+            String thresholdCritical = args.getProperty(getItemProperty(PROP_THRESHOLD_CRITICAL, i));
+            String aggregation = args.getProperty(getItemProperty(PROP_AGGREGATE, i),
+                    JmxCheck.AGGREGATE_SUM);
+
+            if (objectName == null || attributeName == null)
+                return null;
+            if (mode != null) {
+                if (!mode.getMetrics().contains(attributeName))
+                    throw new NagiosJmxPluginException("Unknown metric [" + attributeName +
+                            "], expected one of " + mode.getMetrics());
+                if (units == null)
+                    units = mode.getUnits(attributeName);
+            } else if ( UNIT_PERCENT.equals(units) &&
+                    ( ( attributeKey != null && !attributeKey.contains(":") ) || ( attributeKey == null && !attributeName.contains(":") ) ) )
+                return null;
+            if (units != null && !UNITS.contains(units))
+                throw new NagiosJmxPluginException("Unknown unit [" + units + "]");
+            if (!JmxCheck.AGGREGATIONS.contains(aggregation))
+                throw new NagiosJmxPluginException("Unknown aggregation [" + aggregation + "]");
+
+            JmxCheck check = new JmxCheck(objectName, attributeName, attributeKey,
+                    units, thresholdWarning, thresholdCritical);
+            check.setAggregation(aggregation);
+            checks.add(check);
+        }
+        return checks;
+    }
+
+    /**
+     * Get property name of a check item.
+     * @param name Property name.
+     * @param index Index of check, 0 for the first check.
+     * @return Property name, suffixed by index for all but the first check.
+     */
+    static String getItemProperty(String name, int index) {
+        return index == 0 ? name : name + "." + index;
+    }
+
     /**
      * Get system properties and execute query.
      * @return Nagios exit code.
      * @throws NagiosJmxPluginException XX 
      */
-    public int execute(Properties args) throws NagiosJmxPluginException {
-        String username = args.getProperty(PROP_USERNAME);
-        String password = args.getProperty(PROP_PASSWORD);
-        String objectName = args.getProperty(PROP_OBJECT_NAME);
-        String attributeName = args.getProperty(PROP_ATTRIBUTE_NAME);
-        String attributeKey = args.getProperty(PROP_ATTRIBUTE_KEY);
+    public int execute(final Properties args) throws NagiosJmxPluginException {
+        final String username = args.getProperty(PROP_USERNAME);
+        final String password = args.getProperty(PROP_PASSWORD);
         String serviceUrl = args.getProperty(PROP_SERVICE_URL);
-        String thresholdWarning = args.getProperty(PROP_THRESHOLD_WARNING);
-        String thresholdCritical = args.getProperty(PROP_THRESHOLD_CRITICAL);
-        String operation = args.getProperty(PROP_OPERATION);
-        String units = args.getProperty(PROP_UNITS);
+        final String localJvm = args.getProperty(PROP_LOCAL_JVM);
+        final String operation = args.getProperty(PROP_OPERATION);
         String help = args.getProperty(PROP_HELP);
 
         if (help != null) {
@@ -259,241 +1161,482 @@ public class NagiosJmxPlugin {
             return 0;
         }
         
-        if (objectName == null || attributeName == null || serviceUrl == null)
+        checkPositive(args, PROP_PARALLELISM, "Parallelism");
+        checkPositive(args, PROP_DUMP_KEEP, "Dump keep");
+        checkPositive(args, PROP_HISTORY_RETENTION, "History retention");
+        checkPositive(args, ThreadCpuCheck.PROP_TOP, "Top");
+        if (args.containsKey(PROP_ALPHA)) {
+            double alpha;
+            try {
+                alpha = Double.parseDouble(args.getProperty(PROP_ALPHA));
+            } catch (NumberFormatException e) {
+                throw new NagiosJmxPluginException("Malformed alpha", e);
+            }
+            if (!(alpha > 0 && alpha <= 1))
+                throw new NagiosJmxPluginException("Alpha must be greater than 0 and at most 1");
+        }
+        if (args.containsKey(PROP_MODE))
+            checkMode = getCheckMode(args.getProperty(PROP_MODE));
+        final List<JmxCheck> checks = getChecks(args, checkMode);
+        if (checks == null || (serviceUrl == null && localJvm == null))
         {
             showUsage();
             return 0;
         }
         
-        if ( units.equals(UNIT_PERCENT) &&
-        		( ( attributeKey != null && !attributeKey.contains(":") ) || ( attributeKey == null && !attributeName.contains(":") ) ) )
-        {
-        	showUsage();
-        	return 0;
-        }
-        
-        if (units != null && !UNITS.contains(units))
-            throw new NagiosJmxPluginException("Unknown unit [" + units + "]");
-            
         JMXServiceURL url = null;
+        if (serviceUrl != null) {
+            try {
+                url = new JMXServiceURL(serviceUrl);
+            } catch (MalformedURLException e) {
+                throw new NagiosJmxPluginException("Malformed service URL [" + serviceUrl + "]", e);
+            }
+        } else {
+            serviceUrl = getTarget(args);
+        }
+        final int samples;
+        final long interval;
         try {
-            url = new JMXServiceURL(serviceUrl);
-        } catch (MalformedURLException e) {
-            throw new NagiosJmxPluginException("Malformed service URL [" + serviceUrl + "]", e);
+            samples = Integer.parseInt(args.getProperty(PROP_SAMPLES, "1"));
+            interval = Long.parseLong(args.getProperty(PROP_INTERVAL,
+                    String.valueOf(DEFAULT_INTERVAL)));
+        } catch (NumberFormatException e) {
+            throw new NagiosJmxPluginException("Malformed samples or interval", e);
+        }
+        if (samples < 1 || interval < 0)
+            throw new NagiosJmxPluginException("Samples must be positive and interval not negative");
+        String statistic = args.getProperty(PROP_STATISTIC, JmxCheck.STATISTIC_MEAN);
+        if (!JmxCheck.STATISTICS.contains(statistic))
+            throw new NagiosJmxPluginException("Unknown statistic [" + statistic + "]");
+        final boolean rate = args.containsKey(PROP_RATE);
+
+        final Deadline deadline = getDeadline(args.getProperty(PROP_TIMEOUT));
+        if (args.containsKey(PROP_INDEX_DIR))
+            mbeanIndex = MBeanIndex.open(new File(args.getProperty(PROP_INDEX_DIR)), serviceUrl);
+        String notificationType = args.getProperty(PROP_NOTIFICATION);
+        if (notificationType != null) {
+            if (operation != null)
+                throw new NagiosJmxPluginException("Operation not supported for notification checks");
+            int window;
+            try {
+                window = Integer.parseInt(args.getProperty(PROP_WINDOW,
+                        String.valueOf(DEFAULT_WINDOW)));
+            } catch (NumberFormatException e) {
+                throw new NagiosJmxPluginException("Malformed window", e);
+            }
+            if (window < 1 || window > NotificationMonitor.MAX_WINDOW)
+                throw new NagiosJmxPluginException("Window must be between 1 and " +
+                        NotificationMonitor.MAX_WINDOW + " seconds");
+            queryNotifications(checks, deadline, url, localJvm, username, password,
+                    notificationType, window);
+            return report(checks, args, deadline);
         }
         // Connect to MBean server.
+        final JMXServiceURL jmxUrl = url;
         MBeanServerConnection connection = null;
-        Number value = null;
+        boolean expired = false;
         try {
             try {
-                connection = openConnection(url, username, password);
+                connection = deadline.call(Deadline.PHASE_CONNECT,
+                        new Callable<MBeanServerConnection>() {
+                    public MBeanServerConnection call() throws Exception {
+                        MBeanServerConnection connection = jmxUrl != null ?
+                            openConnection(jmxUrl, username, password) :
+                            openLocalConnection(localJvm);
+                        // Check gave up waiting, don't leak the connection.
+                        if (deadline.isExpired())
+                            closeConnection(connection);
+                        return connection;
+                    }
+                });
+            } catch (NagiosJmxPluginException e) {
+                throw e;
             } catch (ConnectException ce) {
                 throw new NagiosJmxPluginException("Error opening RMI connection: " + ce.getMessage(), ce);
             } catch (Exception e) {
                 throw new NagiosJmxPluginException("Error opening connection: " + e.getMessage(), e);
             }
-            // Query attribute.
+            final MBeanServerConnection queryConnection = connection;
+            // Query attributes.
             try {
-            	
-            	if( UNIT_PERCENT.equals( units ) && attributeKey != null && attributeKey.contains(":") )
-            	{
-            		String[] attributeKeys = attributeKey.split(":");
-            		String attributeKeyWhole = attributeKeys[0];
-            		String attributeKeyPart	= attributeKeys[1];
-            		Number valueWhole = (Number) query(connection, objectName, attributeName, attributeKeyWhole);
-                	Number valuePart = (Number) query(connection, objectName, attributeName, attributeKeyPart);
-                	value = Math.round( valuePart.doubleValue() * 100 / valueWhole.doubleValue() );
-            	}
-            	else if( UNIT_PERCENT.equals( units ) && attributeName != null && attributeName.contains(":") )
-            	{
-            		String[] attributeNames = attributeName.split(":");
-            		String attributeNameWhole = attributeNames[0];
-            		String attributeNamePart = attributeNames[1];
-            		Number valueWhole = (Number) query(connection, objectName, attributeNameWhole, attributeKey);
-                	Number valuePart = (Number) query(connection, objectName, attributeNamePart, attributeKey);
-                	value = Math.round( valuePart.doubleValue() * 100 / valueWhole.doubleValue() );
-            	}
-            	else
-            	{
-            		value = (Number) query(connection, objectName, attributeName, attributeKey);
-            	}
-            	
-            } catch (MalformedObjectNameException e) {
-                throw new NagiosJmxPluginException("Malformed objectName [" + objectName + "]", e);
-            } catch (InstanceNotFoundException e) {
-                throw new NagiosJmxPluginException("objectName not found [" + objectName + "]", e);
-            } catch (AttributeNotFoundException e) {
-                throw new NagiosJmxPluginException("attributeName not found [" + attributeName + "]", e);
-            } catch (InvalidKeyException e) {
-                throw new NagiosJmxPluginException("attributeKey not found [" + attributeKey + "]", e);
-            } catch (ClassCastException e) {
-                throw new NagiosJmxPluginException(
-                        "Type of value is not a number [" + value.getClass().getName() + "]");
+                deadline.call(Deadline.PHASE_QUERY, new Callable<Object>() {
+                    public Object call() throws Exception {
+                        if (mbeanIndex != null) {
+                            // Keep pooled connections listening for new MBeans.
+                            mbeanIndex.sync(queryConnection, connectionPool != null);
+                        }
+                        if (checkMode != null)
+                            queryMode(queryConnection, checks, deadline, args);
+                        else if (samples > 1)
+                            sample(queryConnection, checks, samples, interval, deadline);
+                        else
+                            query(queryConnection, checks);
+                        return null;
+                    }
+                });
+            } catch (NagiosJmxPluginException e) {
+                throw e;
             } catch (Exception e) {
                 throw new NagiosJmxPluginException("Error querying server: " + e.getMessage(), e);
+            } finally {
+                if (mbeanIndex != null) {
+                    try {
+                        mbeanIndex.save();
+                    } catch (IOException e) {
+                        // Index is rebuilt from the server next time.
+                    }
+                }
             }
             // Invoke operation if defined.
             if (operation != null) {
                 try {
-                    invoke(connection, objectName, operation);
+                    deadline.call(Deadline.PHASE_INVOKE, new Callable<Object>() {
+                        public Object call() throws Exception {
+                            invoke(queryConnection, checks.get(0).getObjectName(), operation);
+                            return null;
+                        }
+                    });
+                } catch (NagiosJmxPluginException e) {
+                    throw e;
                 } catch (Exception e) {
                     throw new NagiosJmxPluginException("Error invoking operation [" +
                             operation + "]: " + e.getMessage(), e);
                 }
             }
+            if (samples > 1) {
+                for (JmxCheck check : checks) {
+                    // Counters keep their last sample, their rate is computed below.
+                    if (!rate || !UNIT_COUNTER.equals(check.getUnits()))
+                        check.computeStatistic(statistic);
+                }
+            }
+            if (rate)
+                computeRates(serviceUrl, checks, getStateFile(args));
+            if (args.containsKey(PROP_ADAPTIVE))
+                computeDeviations(serviceUrl, checks, args);
+            if (args.containsKey(PROP_DUMP_DIR))
+                captureThreadDump(queryConnection, checks, deadline, args);
+        } catch (NagiosJmxTimeoutException e) {
+            expired = true;
+            throw e;
         } finally {
-            if (connection != null) {
+            if (connection != null && expired) {
+                abortConnection(connection);
+            } else if (connection != null) {
+                final MBeanServerConnection closeConnection = connection;
                 try {
-                    closeConnection(connection);
+                    deadline.call(Deadline.PHASE_CLOSE, new Callable<Object>() {
+                        public Object call() throws Exception {
+                            closeConnection(closeConnection);
+                            return null;
+                        }
+                    });
+                } catch (NagiosJmxTimeoutException e) {
+                    abortConnection(connection);
+                    throw e;
                 } catch (Exception e) {
                     throw new NagiosJmxPluginException(
                             "Error closing JMX connection", e);
                 }
             }
         }
-        int exitCode;
-        if (value != null) {
-            if (isOverThreshold(value, thresholdCritical)) {
-                System.out.print(NAGIOS_CRITICAL_MSG);
-                exitCode = NAGIOS_CRITICAL;
-            } else if (isOverThreshold(value, thresholdWarning)) {
-                System.out.print(NAGIOS_WARNING_MSG);
-                exitCode = NAGIOS_WARNING;
-            } else {
-                System.out.print(NAGIOS_OK_MSG);
-                exitCode = NAGIOS_OK;
-            }
-            System.out.print(getStatusOutput(objectName, attributeName,
-                    attributeKey, value, units));
-            System.out.println(getPerformanceDataOutput(objectName, attributeName,
-                    attributeKey, value, thresholdWarning, thresholdCritical,
-                    units));
+        return report(checks, args, deadline);
+    }
+
+    /**
+     * Evaluate checks and print status and performance data.
+     * @param checks Checks with values set.
+     * @param args Arguments.
+     * @return Nagios exit code.
+     */
+    private int report(List<JmxCheck> checks, Properties args, Deadline deadline) {
+        int exitCode = NAGIOS_OK;
+        for (JmxCheck check : checks)
+            exitCode = Math.max(exitCode, check.evaluate());
+        if (args.containsKey(PROP_HISTORY_DIR))
+            recordHistory(checks, args, deadline);
+        out.print(STATUS_MSGS.get(exitCode));
+        if (checks.size() == 1 && checks.get(0).getValue() == null && !checks.get(0).isRate()
+                && checks.get(0).getPending() == null) {
+            out.println("Value not set. JMX query returned null value.");
         } else {
-            System.out.print(NAGIOS_WARNING_MSG);
-            System.out.println("Value not set. JMX query returned null value.");
-            exitCode = NAGIOS_WARNING;
+            out.print(getStatusOutput(checks));
+            out.print(getPerformanceDataOutput(checks,
+                    args.containsKey(PROP_INSTANCES)));
+            Map<String, Long> timings = getTimings(deadline);
+            if (args.containsKey(PROP_TIMINGS)) {
+                for (Map.Entry<String, Long> timing : timings.entrySet())
+                    out.print(" '" + timing.getKey() + "_ms'=" + formatMillis(timing.getValue()) +
+                            "ms;;;;");
+            }
+            out.println();
+            if (checkMode != null && checkMode.getLongOutput() != null)
+                out.println(checkMode.getLongOutput());
+            if (dumpOutput != null)
+                out.println(dumpOutput);
+            if (historyOutput != null)
+                out.println(historyOutput);
+            if (args.containsKey(PROP_VERBOSE)) {
+                StringBuilder line = new StringBuilder("Timings:");
+                for (Map.Entry<String, Long> timing : timings.entrySet())
+                    line.append(' ').append(timing.getKey()).append(' ')
+                        .append(formatMillis(timing.getValue())).append(" ms");
+                out.println(line);
+            }
         }
         return exitCode;
     }
 
     /**
-     * Get status output.
-     * @param objectName Object name.
-     * @param attributeName Attribute name.
-     * @param attributeKey Attribute key, or null
-     * @param value Value
-     * @return Formatted string for user output.
+     * Get time spent in each phase of the check, preceded by the JVM
+     * startup if known and followed by the total.
+     * @param deadline Deadline of the check.
+     * @return Time in nanoseconds by phase name.
+     */
+    private Map<String, Long> getTimings(Deadline deadline) {
+        Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        if (startupTime >= 0)
+            timings.put("startup", startupTime);
+        timings.putAll(deadline.getTimings());
+        timings.put("total", deadline.getElapsed());
+        return timings;
+    }
+
+    private static String formatMillis(long nanos) {
+        return new BigDecimal(nanos / 1e6).setScale(1, RoundingMode.HALF_UP).toPlainString();
+    }
+
+    /**
+     * Set time from JVM start until the check was started, reported with
+     * the phase timings.
+     * @param startupTime Time in nanoseconds, -1 if unknown.
+     */
+    public void setStartupTime(long startupTime) {
+        this.startupTime = startupTime;
+    }
+
+    /**
+     * Validate an optional integer argument before anything is queried, so
+     * that a malformed value does not replace the result of the checks.
+     * @param args Arguments.
+     * @param name Property name.
+     * @param description Description used in the error message.
+     * @throws NagiosJmxPluginException If the value is not a positive integer.
      */
-    private String getStatusOutput(String objectName, String attributeName,
-            String attributeKey, Number value, String units)
+    private static void checkPositive(Properties args, String name, String description)
+    throws NagiosJmxPluginException
     {
-        StringBuilder output = new StringBuilder();
-        output.append(attributeName);
-        if (attributeKey != null) {
-            output.append(".").append(attributeKey);
+        String value = args.getProperty(name);
+        if (value == null)
+            return;
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new NagiosJmxPluginException("Malformed " + description.toLowerCase() +
+                    " [" + value + "]", e);
         }
-        output.append(" = ").append(value);
-        if (units != null)
-            output.append(units);
-        return output.toString();
+        if (number < 1)
+            throw new NagiosJmxPluginException(description + " must be positive");
     }
 
     /**
-     * Get performance data output.
-     * @param objectName Object name.
-     * @param attributeName Attribute name.
-     * @param attributeKey Attribute key, or null
-     * @param value Value
-     * @param units Units, null if not defined.
+     * Append values of checks to the history store within the deadline of
+     * the check. Failures are reported in the output but do not change the
+     * status.
+     */
+    private void recordHistory(List<JmxCheck> checks, final Properties args,
+            Deadline deadline)
+    {
+        String target = getTarget(args);
+        final List<String> series = new ArrayList<String>();
+        final List<Double> values = new ArrayList<Double>();
+        for (JmxCheck check : checks) {
+            if (check.getValue() == null)
+                continue;
+            series.add(check.getStateKey(target));
+            values.add(check.getValue().doubleValue());
+        }
+        try {
+            deadline.call(Deadline.PHASE_HISTORY, new Callable<Object>() {
+                public Object call() throws Exception {
+                    TimeSeriesStore store = TimeSeriesStore.open(
+                            new File(args.getProperty(PROP_HISTORY_DIR)),
+                            Integer.parseInt(args.getProperty(PROP_HISTORY_RETENTION,
+                                    String.valueOf(TimeSeriesStore.DEFAULT_RETENTION))));
+                    store.append(System.currentTimeMillis(), series, values);
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            historyOutput = "History not recorded: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Get status output.
+     * @param checks Checks.
      * @return Formatted string for user output.
      */
-    private String getPerformanceDataOutput(String objectName,
-            String attributeName, String attributeKey, Number value,
-            String thresholdWarning, String thresholdCritical,
-            String units)
+    private String getStatusOutput(List<JmxCheck> checks)
     {
         StringBuilder output = new StringBuilder();
-        output.append(" | '");
-        output.append(attributeName);
-        if (attributeKey != null) {
-            output.append(" ").append(attributeKey);
-        }
-        output.append("'=").append(value);
-        if (units != null)
-            output.append(units);
-        output.append(";");
-        if (thresholdWarning != null)
-            output.append(thresholdWarning);
-        output.append(";");
-        if (thresholdCritical != null)
-            output.append(thresholdCritical);
-        output.append(";;");
+        for (JmxCheck check : checks) {
+            if (output.length() > 0)
+                output.append(", ");
+            output.append(check.getLabel());
+            if (check.getValue() == null) {
+                if (check.isRate())
+                    output.append(" rate pending, no previous sample");
+                else if (check.getPending() != null)
+                    output.append(" ").append(check.getPending());
+                else
+                    output.append(" not set");
+                continue;
+            }
+            output.append(" = ").append(check.getValue());
+            if (check.isDeviation())
+                output.append(" sigma");
+            else if (check.isRate())
+                output.append("/s");
+            else if (check.getUnits() != null)
+                output.append(check.getUnits());
+            if (check.isDeviation()) {
+                output.append(" (").append(check.getObserved());
+                if (check.isRate())
+                    output.append("/s");
+                else if (check.getUnits() != null)
+                    output.append(check.getUnits());
+                if (check.getBaselineCount() < BASELINE_MIN_WEEKS)
+                    output.append(", learning baseline ").append(check.getBaselineCount())
+                        .append(" of ").append(BASELINE_MIN_WEEKS).append(" weeks)");
+                else
+                    output.append(", baseline ").append(check.getBaselineMean()).append(" +/- ")
+                        .append(check.getBaselineDeviation()).append(")");
+            }
+            if (check.getInstanceValues() != null)
+                output.append(" (").append(check.getInstanceValues().size()).append(" MBeans)");
+            if (check.getStatistic() != null)
+                output.append(" (").append(check.getStatistic()).append(" of ")
+                    .append(check.getSampleCount()).append(" samples)");
+        }
         return output.toString();
     }
 
     /**
-     * Check if value is over threshold.
-     * @param value Value, which is either Double, Long, Integer, Short, Byte,
-     *        or Float.
-     * @param threshold Threshold, which must be parseable in same number
-     *        format as value, can be null
-     * @return true if value is over threshold, false otherwise.
-     * @throws NagiosJmxPluginException If number format is not parseable.
+     * Get performance data output.
+     * @param checks Checks.
+     * @param instances true to add performance data of each MBean matching
+     *        an object name pattern.
+     * @return Formatted string for user output.
      */
-    private boolean isOverThreshold(Number value, String threshold)
-    throws NagiosJmxPluginException
+    private String getPerformanceDataOutput(List<JmxCheck> checks, boolean instances)
     {
-        boolean overThreshold = false;
-        try {
-            if (threshold == null) {
-                overThreshold = false;
-            } else if (value instanceof Double) {
-                overThreshold = value.doubleValue() > Double.valueOf(threshold);
-            } else if (value instanceof Integer) {
-                overThreshold = value.intValue() > Integer.valueOf(threshold);
-            } else if (value instanceof Long) {
-                overThreshold = value.longValue() > Long.valueOf(threshold);
-            } else if (value instanceof Short) {
-                overThreshold = value.shortValue() > Short.valueOf(threshold);
-            } else if (value instanceof Byte) {
-                overThreshold = value.byteValue() > Byte.valueOf(threshold);
-            } else if (value instanceof Float) {
-                overThreshold = value.floatValue() > Float.valueOf(threshold);
+        StringBuilder output = new StringBuilder();
+        Set<String> instanceLabels = new HashSet<String>();
+        output.append(" |");
+        for (JmxCheck check : checks) {
+            if (check.getValue() == null)
+                continue;
+            if (check.isDeviation()) {
+                // Keep the value under its own label, the deviation gets a
+                // label of its own.
+                output.append(" '").append(check.getPerformanceLabel());
+                output.append("'=").append(check.getObserved());
+                if (check.getUnits() != null && !check.isRate())
+                    output.append(check.getUnits());
+                output.append(";;;;");
+                output.append(" '").append(check.getPerformanceLabel()).append(" sigma");
             } else {
-                throw new NumberFormatException(
-                        "Unknown number format [" + value.getClass().getName() + "]");
+                output.append(" '").append(check.getPerformanceLabel());
+            }
+            output.append("'=").append(check.getValue());
+            if (check.getUnits() != null && !check.isRate() && !check.isDeviation())
+                output.append(check.getUnits());
+            output.append(";");
+            if (check.getThresholdWarning() != null)
+                output.append(check.getThresholdWarning());
+            output.append(";");
+            if (check.getThresholdCritical() != null)
+                output.append(check.getThresholdCritical());
+            output.append(";;");
+            if (check.getStatistic() != null) {
+                appendPerformanceData(output, check, "min", check.getSampleMin());
+                appendPerformanceData(output, check, "mean", check.getSampleMean());
+                appendPerformanceData(output, check, "max", check.getSampleMax());
+            }
+            if (check.isDeviation()) {
+                appendPerformanceData(output, check, "baseline", check.getBaselineMean());
+            }
+            if (instances && check.getInstanceValues() != null) {
+                for (Map.Entry<ObjectName, Number> entry : check.getInstanceValues().entrySet()) {
+                    String label = check.getPerformanceLabel(entry.getKey());
+                    // Same attribute may be aggregated by several checks.
+                    if (!instanceLabels.add(label))
+                        continue;
+                    output.append(" '").append(label);
+                    output.append("'=").append(entry.getValue());
+                    if (check.getUnits() != null)
+                        output.append(check.getUnits());
+                    output.append(";;;;");
+                }
             }
-        } catch (NumberFormatException e) {
-            throw new NagiosJmxPluginException("Error parsing value of threshold [" +
-                    threshold + "]. Expected [" + value.getClass().getName() + "]", e);
         }
-        return overThreshold;
+        return output.toString();
+    }
+
+    private void appendPerformanceData(StringBuilder output, JmxCheck check,
+            String statistic, Number value)
+    {
+        output.append(" '").append(check.getPerformanceLabel()).append(" ");
+        output.append(statistic).append("'=").append(value);
+        if (check.getUnits() != null && !check.isRate())
+            output.append(check.getUnits());
+        output.append(";;;;");
     }
 
     /**
-     * Main method.
-     * @param args
+     * Execute query and report errors as Nagios status.
+     * @param props Arguments as returned by {@link #parseArguments(String[])}.
+     * @return Nagios exit code.
      */
-    public static void main(String[] args) {
-
-        NagiosJmxPlugin plugin = new NagiosJmxPlugin();
+    public int run(Properties props) {
         int exitCode;
-        Properties props = parseArguments(args);
         String verbose = props.getProperty(PROP_VERBOSE);
         try {
-            exitCode = plugin.execute(props);
+            exitCode = execute(props);
+        } catch (NagiosJmxTimeoutException e) {
+            out.println(STATUS_MSGS.get(e.getStatus()) + e.getMessage());
+            if (verbose != null)
+                e.printStackTrace(out);
+            exitCode = e.getStatus();
         } catch (NagiosJmxPluginException e) {
-            System.out.println(NAGIOS_CRITICAL_MSG + e.getMessage());
+            out.println(NAGIOS_CRITICAL_MSG + e.getMessage());
             if (verbose != null)
-                e.printStackTrace(System.out);
+                e.printStackTrace(out);
             exitCode = NAGIOS_CRITICAL;
         } catch (Exception e) {
-            System.out.println(NAGIOS_UNKNOWN_MSG + e.getMessage());
+            out.println(NAGIOS_UNKNOWN_MSG + e.getMessage());
             if (verbose != null)
-                e.printStackTrace(System.out);
+                e.printStackTrace(out);
             exitCode = NAGIOS_UNKNOWN;
         }
-        System.exit(exitCode);
+        out.flush();
+        return exitCode;
+    }
+
+    /**
+     * Main method.
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        NagiosJmxPlugin plugin = new NagiosJmxPlugin();
+        Properties props = parseArguments(args);
+        if (props.containsKey(PROP_TIMINGS) || props.containsKey(PROP_VERBOSE))
+            plugin.setStartupTime(TimeUnit.MILLISECONDS.toNanos(
+                    ManagementFactory.getRuntimeMXBean().getUptime()));
+        System.exit(plugin.run(props));
     }
 
     private void showUsage() throws NagiosJmxPluginException {
@@ -512,41 +1655,114 @@ public class NagiosJmxPlugin {
             for (int len = r.read(buffer); len != -1; len = r.read(buffer)) {
                 sbHelp.append(buffer, 0, len);
             }
-            System.out.println(sbHelp.toString());
-            System.exit(0);
+            out.println(sbHelp.toString());
         } catch (IOException e) {
             throw new NagiosJmxPluginException(e);
         }
     }
     
-    private static Properties parseArguments (String[] args) {
+    /**
+     * Parse command line arguments. Options -O, -A, -K, -w, -c and -u may
+     * be repeated to query several attributes at once. A new check starts
+     * with -O or -A once the current check has an attribute, or with any
+     * other of these options repeated within the current check.
+     * @param args Command line arguments.
+     * @return Properties.
+     */
+    static Properties parseArguments (String[] args) {
         Properties props = new Properties();
+        int item = 0;
         for(int i=0; i<args.length; i++) {
             if("-h".equals(args[i]))
                 props.put(PROP_HELP, "");
             else if ("-U".equals(args[i]))
                 props.put(PROP_SERVICE_URL, args[++i]);
+            else if ("-P".equals(args[i]))
+                props.put(PROP_LOCAL_JVM, args[++i]);
             else if("-O".equals(args[i]))
-                props.put(PROP_OBJECT_NAME, args[++i]);
+                item = putItemProperty(props, item, PROP_OBJECT_NAME, args[++i], true);
             else if ("-A".equals(args[i]))
-                props.put(PROP_ATTRIBUTE_NAME, args[++i]);
+                item = putItemProperty(props, item, PROP_ATTRIBUTE_NAME, args[++i], true);
             else if ("-K".equals(args[i]))
-                props.put(PROP_ATTRIBUTE_KEY, args[++i]);
+                item = putItemProperty(props, item, PROP_ATTRIBUTE_KEY, args[++i], false);
             else if("-v".equals(args[i]))
                 props.put(PROP_VERBOSE, "true");
             else if ("-w".equals(args[i]))
-                props.put(PROP_THRESHOLD_WARNING, args[++i]);
+                item = putItemProperty(props, item, PROP_THRESHOLD_WARNING, args[++i], false);
             else if ("-c".equals(args[i]))
-                props.put(PROP_THRESHOLD_CRITICAL, args[++i]);
+                item = putItemProperty(props, item, PROP_THRESHOLD_CRITICAL, args[++i], false);
             else if ("--username".equals(args[i]))
                 props.put(PROP_USERNAME, args[++i]);
             else if ("--password".equals(args[i]))
                 props.put(PROP_PASSWORD, args[++i]);
             else if ("-u".equals(args[i]))
-                props.put(PROP_UNITS, args[++i]);
+                item = putItemProperty(props, item, PROP_UNITS, args[++i], false);
             else if ("-o".equals(args[i]))
                 props.put(PROP_OPERATION, args[++i]);
+            else if ("--aggregate".equals(args[i]))
+                item = putItemProperty(props, item, PROP_AGGREGATE, args[++i], false);
+            else if ("--instances".equals(args[i]))
+                props.put(PROP_INSTANCES, "true");
+            else if ("--parallelism".equals(args[i]))
+                props.put(PROP_PARALLELISM, args[++i]);
+            else if ("--rate".equals(args[i]))
+                props.put(PROP_RATE, "true");
+            else if ("--state-file".equals(args[i]))
+                props.put(PROP_STATE_FILE, args[++i]);
+            else if ("--samples".equals(args[i]))
+                props.put(PROP_SAMPLES, args[++i]);
+            else if ("--interval".equals(args[i]))
+                props.put(PROP_INTERVAL, args[++i]);
+            else if ("--statistic".equals(args[i]))
+                props.put(PROP_STATISTIC, args[++i]);
+            else if ("--notification".equals(args[i]))
+                props.put(PROP_NOTIFICATION, args[++i]);
+            else if ("--window".equals(args[i]))
+                props.put(PROP_WINDOW, args[++i]);
+            else if ("--index-dir".equals(args[i]))
+                props.put(PROP_INDEX_DIR, args[++i]);
+            else if ("--mode".equals(args[i]))
+                props.put(PROP_MODE, args[++i]);
+            else if ("--top".equals(args[i]))
+                props.put(ThreadCpuCheck.PROP_TOP, args[++i]);
+            else if ("--timings".equals(args[i]))
+                props.put(PROP_TIMINGS, "true");
+            else if ("--adaptive".equals(args[i]))
+                props.put(PROP_ADAPTIVE, "true");
+            else if ("--alpha".equals(args[i]))
+                props.put(PROP_ALPHA, args[++i]);
+            else if ("--history-dir".equals(args[i]))
+                props.put(PROP_HISTORY_DIR, args[++i]);
+            else if ("--history-retention".equals(args[i]))
+                props.put(PROP_HISTORY_RETENTION, args[++i]);
+            else if ("--dump-dir".equals(args[i]))
+                props.put(PROP_DUMP_DIR, args[++i]);
+            else if ("--dump-keep".equals(args[i]))
+                props.put(PROP_DUMP_KEEP, args[++i]);
+            else if ("-t".equals(args[i]))
+                props.put(PROP_TIMEOUT, args[++i]);
         }
         return props;
     }
+
+    /**
+     * Put property of a check item, advancing to the next check if the
+     * current check is complete.
+     * @param props Properties.
+     * @param item Index of current check.
+     * @param name Property name.
+     * @param value Property value.
+     * @param startsCheck true if the option starts a new check once the
+     *        current check has an attribute.
+     * @return Index of check the property was put to.
+     */
+    private static int putItemProperty(Properties props, int item, String name,
+            String value, boolean startsCheck)
+    {
+        if (props.containsKey(getItemProperty(PROP_ATTRIBUTE_NAME, item)) &&
+                (startsCheck || props.containsKey(getItemProperty(name, item))))
+            item++;
+        props.put(getItemProperty(name, item), value);
+        return item;
+    }
 }
@@ -0,0 +1,548 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Snapshot of all readable attributes of the MBeans matching a pattern,
+ * for capacity reviews, and a diff of two snapshots.
+ *
+ * <p>A snapshot is a file of JSON lines, gzip compressed if its name ends
+ * in .gz: a header line with target and time, then one line per MBean with
+ * the time it was read and its attribute values flattened to paths like
+ * HeapMemoryUsage.used or SystemProperties[java.version]. MBeans are
+ * written as they are read, so memory use does not grow with the number of
+ * MBeans. Attributes are read with getAttributes in batches.</p>
+ *
+ * <p>The diff prints, for each numeric value of an MBean in both
+ * snapshots, the old and new value, the delta and the rate per second, and
+ * lists MBeans only found in one of the snapshots.</p>
+ *
+ */
+public class NagiosJmxSnapshot {
+
+    /**
+     * Default number of attributes read with one getAttributes call.
+     */
+    public static final int DEFAULT_BATCH = 64;
+    /**
+     * Maximum number of array elements written per attribute.
+     */
+    public static final int MAX_ARRAY = 1000;
+
+    private static final String USAGE =
+        "Usage: check_jmx_snapshot (-U <service_url> | -P <pid_or_name>) [--username <user>]\n" +
+        "    [--password <pass>] [-O <object_name_pattern>] [--batch <n>] -f <file>\n" +
+        "       check_jmx_snapshot --diff <old_file> <new_file> [--all]";
+
+    private final int batch;
+    private int mbeans;
+    private int values;
+
+    /**
+     * Create snapshot.
+     * @param batch Number of attributes read with one getAttributes call.
+     */
+    public NagiosJmxSnapshot(int batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Write snapshot of all MBeans matching a pattern.
+     * @param connection MBean server connection.
+     * @param target Target written to the header.
+     * @param pattern Object name pattern.
+     * @param out Output.
+     * @throws Exception If the server cannot be queried or the output
+     *         cannot be written.
+     */
+    public void write(MBeanServerConnection connection, String target, ObjectName pattern,
+            Writer out)
+    throws Exception
+    {
+        Map<String, Object> header = new LinkedHashMap<String, Object>();
+        header.put("target", target);
+        header.put("pattern", pattern.toString());
+        header.put("time", System.currentTimeMillis());
+        writeJson(out, header);
+        out.write('\n');
+        TreeSet<ObjectName> names = new TreeSet<ObjectName>(connection.queryNames(pattern, null));
+        for (ObjectName name : names) {
+            Map<String, Object> flattened = new TreeMap<String, Object>();
+            long time;
+            try {
+                List<String> attributes = new ArrayList<String>();
+                for (MBeanAttributeInfo info : connection.getMBeanInfo(name).getAttributes()) {
+                    if (info.isReadable())
+                        attributes.add(info.getName());
+                }
+                time = System.currentTimeMillis();
+                for (int i = 0; i < attributes.size(); i += batch) {
+                    List<String> chunk = attributes.subList(i,
+                            Math.min(attributes.size(), i + batch));
+                    for (Attribute attribute : getAttributes(connection, name, chunk))
+                        flatten(attribute.getName(), attribute.getValue(), flattened);
+                }
+            } catch (JMException e) {
+                // MBean unregistered or not accessible, skip it.
+                continue;
+            } catch (RuntimeException e) {
+                // E.g. security exception, skip the MBean.
+                continue;
+            }
+            Map<String, Object> record = new LinkedHashMap<String, Object>();
+            record.put("mbean", name.getCanonicalName());
+            record.put("time", time);
+            record.put("values", flattened);
+            writeJson(out, record);
+            out.write('\n');
+            mbeans++;
+            values += flattened.size();
+        }
+        out.flush();
+    }
+
+    /**
+     * Get number of MBeans written by the last snapshot.
+     * @return Number of MBeans.
+     */
+    public int getMBeanCount() {
+        return mbeans;
+    }
+
+    /**
+     * Get number of values written by the last snapshot.
+     * @return Number of values.
+     */
+    public int getValueCount() {
+        return values;
+    }
+
+    /**
+     * Read attributes with one call, or one by one if the MBean fails the
+     * whole call, leaving out attributes which cannot be read.
+     */
+    private static List<Attribute> getAttributes(MBeanServerConnection connection,
+            ObjectName name, List<String> attributes)
+    throws IOException
+    {
+        List<Attribute> result = new ArrayList<Attribute>();
+        try {
+            AttributeList list = connection.getAttributes(name,
+                    attributes.toArray(new String[attributes.size()]));
+            for (Object attribute : list)
+                result.add((Attribute) attribute);
+            return result;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            // Fall through.
+        }
+        for (String attribute : attributes) {
+            try {
+                result.add(new Attribute(attribute, connection.getAttribute(name, attribute)));
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                // Attribute not readable, leave it out.
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Flatten value into paths of composite keys, table indexes and array
+     * indexes.
+     */
+    static void flatten(String path, Object value, Map<String, Object> flattened) {
+        if (value instanceof CompositeData) {
+            CompositeData data = (CompositeData) value;
+            for (String key : data.getCompositeType().keySet())
+                flatten(path + "." + key, data.get(key), flattened);
+        } else if (value instanceof TabularData) {
+            TabularData table = (TabularData) value;
+            List<String> indexNames = table.getTabularType().getIndexNames();
+            for (Object row : table.values()) {
+                CompositeData data = (CompositeData) row;
+                StringBuilder index = new StringBuilder();
+                for (String indexName : indexNames) {
+                    if (index.length() > 0)
+                        index.append(',');
+                    index.append(data.get(indexName));
+                }
+                String rowPath = path + "[" + index + "]";
+                // Map style tables, e.g. SystemProperties, hold one value per key.
+                if (data.getCompositeType().keySet().size() == indexNames.size() + 1 &&
+                        data.getCompositeType().containsKey("value")) {
+                    flatten(rowPath, data.get("value"), flattened);
+                    continue;
+                }
+                for (String key : data.getCompositeType().keySet()) {
+                    if (!indexNames.contains(key))
+                        flatten(rowPath + "." + key, data.get(key), flattened);
+                }
+            }
+        } else if (value != null && value.getClass().isArray()) {
+            int length = Math.min(MAX_ARRAY, Array.getLength(value));
+            for (int i = 0; i < length; i++)
+                flatten(path + "[" + i + "]", Array.get(value, i), flattened);
+        } else if (value == null || value instanceof Number || value instanceof Boolean) {
+            flattened.put(path, value);
+        } else {
+            flattened.put(path, value.toString());
+        }
+    }
+
+    /**
+     * Compare two snapshots. The old snapshot is held in memory, the new one
+     * is streamed.
+     * @param oldIn Old snapshot.
+     * @param newIn New snapshot.
+     * @param all Also print unchanged values.
+     * @param out Output.
+     * @throws IOException If a snapshot cannot be read.
+     */
+    public static void diff(Reader oldIn, Reader newIn, boolean all, Writer out)
+    throws IOException
+    {
+        Map<String, Map<String, Object>> previous = new HashMap<String, Map<String, Object>>();
+        BufferedReader reader = new BufferedReader(oldIn);
+        reader.readLine();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Map<String, Object> record = JsonParser.parse(line);
+            previous.put((String) record.get("mbean"), record);
+        }
+        reader = new BufferedReader(newIn);
+        reader.readLine();
+        List<String> added = new ArrayList<String>();
+        while ((line = reader.readLine()) != null) {
+            Map<String, Object> record = JsonParser.parse(line);
+            String mbean = (String) record.get("mbean");
+            Map<String, Object> before = previous.remove(mbean);
+            if (before == null) {
+                added.add(mbean);
+                continue;
+            }
+            double seconds = (((Number) record.get("time")).longValue() -
+                    ((Number) before.get("time")).longValue()) / 1000.0;
+            @SuppressWarnings("unchecked")
+            Map<String, Object> oldValues = (Map<String, Object>) before.get("values");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> newValues = (Map<String, Object>) record.get("values");
+            for (Map.Entry<String, Object> entry : newValues.entrySet()) {
+                Object oldValue = oldValues.get(entry.getKey());
+                Object newValue = entry.getValue();
+                if (!(oldValue instanceof BigDecimal) || !(newValue instanceof BigDecimal))
+                    continue;
+                BigDecimal delta = ((BigDecimal) newValue).subtract((BigDecimal) oldValue);
+                if (delta.signum() == 0 && !all)
+                    continue;
+                String rate = seconds > 0 ? new BigDecimal(delta.doubleValue() / seconds)
+                    .setScale(2, RoundingMode.HALF_UP).toPlainString() + "/s" : "";
+                out.write(mbean + "\t" + entry.getKey() + "\t" + oldValue + "\t" + newValue +
+                        "\t" + delta.toPlainString() + "\t" + rate + "\n");
+            }
+        }
+        for (String mbean : added)
+            out.write("+\t" + mbean + "\n");
+        for (String mbean : new TreeSet<String>(previous.keySet()))
+            out.write("-\t" + mbean + "\n");
+        out.flush();
+    }
+
+    private static void writeJson(Writer out, Object value) throws IOException {
+        if (value == null) {
+            out.write("null");
+        } else if (value instanceof Map<?, ?>) {
+            out.write('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first)
+                    out.write(',');
+                first = false;
+                writeString(out, entry.getKey().toString());
+                out.write(':');
+                writeJson(out, entry.getValue());
+            }
+            out.write('}');
+        } else if (value instanceof Boolean) {
+            out.write(value.toString());
+        } else if (value instanceof Number && !isNonFinite((Number) value)) {
+            out.write(value instanceof BigDecimal ?
+                    ((BigDecimal) value).toPlainString() : value.toString());
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    private static boolean isNonFinite(Number value) {
+        return Double.isNaN(value.doubleValue()) || Double.isInfinite(value.doubleValue());
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c == '\n') {
+                out.write("\\n");
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Parser of the JSON objects written by snapshots. Numbers are parsed
+     * as BigDecimal to keep the precision of longs.
+     */
+    static class JsonParser {
+        private final String text;
+        private int position;
+
+        private JsonParser(String text) {
+            this.text = text;
+        }
+
+        static Map<String, Object> parse(String line) throws IOException {
+            JsonParser parser = new JsonParser(line);
+            Object value = parser.parseValue();
+            if (!(value instanceof Map<?, ?>))
+                throw new IOException("Not a snapshot record: " + line);
+            @SuppressWarnings("unchecked")
+            Map<String, Object> record = (Map<String, Object>) value;
+            return record;
+        }
+
+        private Object parseValue() throws IOException {
+            skipBlanks();
+            char c = peek();
+            if (c == '{') {
+                position++;
+                Map<String, Object> map = new HashMap<String, Object>();
+                skipBlanks();
+                if (peek() == '}') {
+                    position++;
+                    return map;
+                }
+                while (true) {
+                    skipBlanks();
+                    String key = parseString();
+                    skipBlanks();
+                    expect(':');
+                    map.put(key, parseValue());
+                    skipBlanks();
+                    if (peek() == '}') {
+                        position++;
+                        return map;
+                    }
+                    expect(',');
+                }
+            }
+            if (c == '"')
+                return parseString();
+            if (text.startsWith("null", position)) {
+                position += 4;
+                return null;
+            }
+            if (text.startsWith("true", position)) {
+                position += 4;
+                return Boolean.TRUE;
+            }
+            if (text.startsWith("false", position)) {
+                position += 5;
+                return Boolean.FALSE;
+            }
+            int start = position;
+            while (position < text.length() && "+-.eE0123456789".indexOf(text.charAt(position)) >= 0)
+                position++;
+            try {
+                return new BigDecimal(text.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number at " + start + ": " + text);
+            }
+        }
+
+        private String parseString() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = peek();
+                position++;
+                if (c == '"')
+                    return sb.toString();
+                if (c == '\\') {
+                    c = peek();
+                    position++;
+                    if (c == 'n') {
+                        sb.append('\n');
+                    } else if (c == 'u') {
+                        sb.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        position += 4;
+                    } else {
+                        sb.append(c);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+
+        private char peek() throws IOException {
+            if (position >= text.length())
+                throw new IOException("Unexpected end of line: " + text);
+            return text.charAt(position);
+        }
+
+        private void expect(char c) throws IOException {
+            if (peek() != c)
+                throw new IOException("Expected '" + c + "' at " + position + ": " + text);
+            position++;
+        }
+
+        private void skipBlanks() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+                position++;
+        }
+    }
+
+    private static InputStream openInput(String file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        return file.endsWith(".gz") ? new GZIPInputStream(in) : in;
+    }
+
+    /**
+     * Main method.
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        String serviceUrl = null;
+        String localJvm = null;
+        String username = null;
+        String password = null;
+        String pattern = "*:*";
+        String file = null;
+        int batch = DEFAULT_BATCH;
+        List<String> diff = null;
+        boolean all = false;
+        boolean usage = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("-U".equals(args[i]))
+                serviceUrl = args[++i];
+            else if ("-P".equals(args[i]))
+                localJvm = args[++i];
+            else if ("--username".equals(args[i]))
+                username = args[++i];
+            else if ("--password".equals(args[i]))
+                password = args[++i];
+            else if ("-O".equals(args[i]))
+                pattern = args[++i];
+            else if ("--batch".equals(args[i]))
+                batch = Integer.parseInt(args[++i]);
+            else if ("-f".equals(args[i]))
+                file = args[++i];
+            else if ("--diff".equals(args[i]) && i + 2 < args.length)
+                diff = Arrays.asList(args[++i], args[++i]);
+            else if ("--all".equals(args[i]))
+                all = true;
+            else
+                usage = true;
+        }
+        if (diff != null && !usage) {
+            Reader oldIn = new InputStreamReader(openInput(diff.get(0)), "UTF-8");
+            Reader newIn = new InputStreamReader(openInput(diff.get(1)), "UTF-8");
+            try {
+                diff(oldIn, newIn, all, new BufferedWriter(
+                        new OutputStreamWriter(System.out, "UTF-8")));
+            } finally {
+                oldIn.close();
+                newIn.close();
+            }
+            System.exit(NagiosJmxPlugin.NAGIOS_OK);
+        }
+        if (usage || file == null || (serviceUrl == null && localJvm == null)) {
+            System.err.println(USAGE);
+            System.exit(NagiosJmxPlugin.NAGIOS_UNKNOWN);
+        }
+
+        NagiosJmxPlugin plugin = new NagiosJmxPlugin();
+        MBeanServerConnection connection = serviceUrl != null ?
+            plugin.openConnection(new JMXServiceURL(serviceUrl), username, password) :
+            plugin.openLocalConnection(localJvm);
+        OutputStream stream = new FileOutputStream(file);
+        if (file.endsWith(".gz"))
+            stream = new GZIPOutputStream(stream);
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+        NagiosJmxSnapshot snapshot = new NagiosJmxSnapshot(batch);
+        try {
+            snapshot.write(connection, serviceUrl != null ? serviceUrl : "local:" + localJvm,
+                    new ObjectName(pattern), out);
+        } catch (IOException e) {
+            // Don't leave a truncated snapshot behind.
+            out.close();
+            new File(file).delete();
+            System.err.println("Snapshot failed: " + e.getMessage());
+            System.exit(NagiosJmxPlugin.NAGIOS_UNKNOWN);
+        } finally {
+            out.close();
+            plugin.closeConnection(connection);
+        }
+        System.out.println("Snapshot of " + snapshot.getMBeanCount() + " MBeans with " +
+                snapshot.getValueCount() + " values written to " + file);
+        System.exit(NagiosJmxPlugin.NAGIOS_OK);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+/**
+ * Thrown when a check does not complete within its deadline.
+ *
+ */
+public class NagiosJmxTimeoutException extends NagiosJmxPluginException {
+
+    private static final long serialVersionUID = 4863259913582201375L;
+
+    private final String phase;
+    private final int status;
+
+    public NagiosJmxTimeoutException(String phase, long timeout, int status) {
+        super("Timeout after " + timeout + "ms during " + phase + " phase");
+        this.phase = phase;
+        this.status = status;
+    }
+
+    /**
+     * Get phase which timed out.
+     * @return Phase, e.g. connect.
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    /**
+     * Get Nagios status to report.
+     * @return Nagios status code.
+     */
+    public int getStatus() {
+        return status;
+    }
+}
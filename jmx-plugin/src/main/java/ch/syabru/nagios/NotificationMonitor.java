@@ -0,0 +1,492 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Keeps notification subscriptions open in the daemon and aggregates the
+ * received notifications in memory, so checks on notifications, e.g. GC or
+ * memory threshold notifications, are answered without remote calls.
+ *
+ * <p>A subscription listens to all MBeans matching an object name
+ * (pattern) for notifications whose type starts with a given prefix, over
+ * a dedicated connection. Notifications are counted in per second buckets
+ * together with the sum and maximum of a numeric value taken from the user
+ * data. Subscriptions are reconnected in the background when their
+ * connection fails and closed when no check used them for the idle
+ * timeout.</p>
+ *
+ */
+public class NotificationMonitor {
+
+    /**
+     * Number of notifications in the window.
+     */
+    public static final String STATISTIC_COUNT = "count";
+    /**
+     * Notifications per second in the window.
+     */
+    public static final String STATISTIC_RATE = "rate";
+    /**
+     * Sum of notification values in the window.
+     */
+    public static final String STATISTIC_SUM = "sum";
+    /**
+     * Maximum notification value in the window.
+     */
+    public static final String STATISTIC_MAX = "max";
+    /**
+     * Average notification value in the window.
+     */
+    public static final String STATISTIC_AVG = "avg";
+    /**
+     * List of valid statistics.
+     */
+    public static final List<String> STATISTICS = Arrays.asList(
+            STATISTIC_COUNT, STATISTIC_RATE, STATISTIC_SUM, STATISTIC_MAX, STATISTIC_AVG);
+
+    /**
+     * Longest window in seconds.
+     */
+    public static final int MAX_WINDOW = 3600;
+    /**
+     * Default time in milliseconds a subscription is kept without checks.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 3600000;
+
+    private static final long MAINTENANCE_PERIOD = 30000;
+    private static final long DEFAULT_FETCH_TIMEOUT = 60000;
+
+    private final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private Timer timer;
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Start the background thread reconnecting failed subscriptions and
+     * closing idle ones.
+     */
+    public synchronized void start() {
+        if (timer != null)
+            return;
+        timer = new Timer("check_jmx-notifications", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, MAINTENANCE_PERIOD, MAINTENANCE_PERIOD);
+    }
+
+    /**
+     * Close all subscriptions.
+     */
+    public void close() {
+        List<Subscription> all;
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+            all = new ArrayList<Subscription>(subscriptions.values());
+            subscriptions.clear();
+        }
+        for (Subscription subscription : all)
+            subscription.close();
+    }
+
+    /**
+     * Get subscription, subscribing on first use or if its connection
+     * failed.
+     * @param serviceUrl Service URL, or null for a local JVM.
+     * @param localJvm Process id or display name of a local JVM.
+     * @param username Username, or null.
+     * @param password Password, or null.
+     * @param objectName Object name or pattern of the emitting MBeans.
+     * @param type Prefix of the notification types.
+     * @param valueKey Path of the value in the user data, keys of nested
+     *        composite data separated by dots, e.g. gcInfo.duration; or null
+     *        if the user data is the value.
+     * @return Subscription.
+     * @throws NagiosJmxPluginException If the object name is malformed or
+     *         not registered.
+     * @throws Exception If subscribing fails.
+     */
+    public Subscription subscribe(JMXServiceURL serviceUrl, String localJvm,
+            String username, String password, String objectName, String type,
+            String valueKey)
+    throws NagiosJmxPluginException, Exception
+    {
+        StringBuilder key = new StringBuilder();
+        key.append(serviceUrl != null ? serviceUrl.toString() : "local:" + localJvm);
+        key.append('\u0000').append(username).append('\u0000').append(password);
+        key.append('\u0000').append(objectName).append('\u0000').append(type);
+        key.append('\u0000').append(valueKey);
+        Subscription subscription;
+        synchronized (this) {
+            subscription = subscriptions.get(key.toString());
+            if (subscription == null) {
+                ObjectName objName;
+                try {
+                    objName = new ObjectName(objectName);
+                } catch (MalformedObjectNameException e) {
+                    throw new NagiosJmxPluginException("Malformed objectName [" + objectName + "]", e);
+                }
+                subscription = new Subscription(serviceUrl, localJvm, username, password,
+                        objName, type, valueKey);
+                subscriptions.put(key.toString(), subscription);
+            }
+        }
+        subscription.lastUsed = System.currentTimeMillis();
+        try {
+            subscription.connect();
+        } catch (Exception e) {
+            // Don't keep retrying a subscription which never succeeded.
+            if (subscription.getSince() == 0) {
+                synchronized (this) {
+                    subscriptions.remove(key.toString());
+                }
+            }
+            throw e;
+        }
+        return subscription;
+    }
+
+    private void maintain() {
+        List<Subscription> idle = new ArrayList<Subscription>();
+        List<Subscription> active = new ArrayList<Subscription>();
+        long limit = System.currentTimeMillis() - idleTimeout;
+        synchronized (this) {
+            for (Iterator<Subscription> i = subscriptions.values().iterator(); i.hasNext(); ) {
+                Subscription subscription = i.next();
+                if (subscription.lastUsed < limit) {
+                    i.remove();
+                    idle.add(subscription);
+                } else {
+                    active.add(subscription);
+                }
+            }
+        }
+        for (Subscription subscription : idle)
+            subscription.close();
+        for (Subscription subscription : active) {
+            try {
+                subscription.connect();
+            } catch (Exception e) {
+                // Retried on the next run or check.
+            }
+        }
+    }
+
+    private synchronized void schedule(TimerTask task) {
+        if (timer != null)
+            timer.schedule(task, 0);
+    }
+
+    /**
+     * Get the connector environment of connections receiving
+     * notifications.
+     * @return Environment, to be modified by the caller.
+     */
+    static HashMap<String, Object> getEnvironment() {
+        HashMap<String, Object> environment = new HashMap<String, Object>();
+        // Notifications are fetched with a long poll, which must return
+        // before the socket read timeout.
+        environment.put("jmx.remote.x.notification.fetch.timeout",
+                Math.min(DEFAULT_FETCH_TIMEOUT, TimeoutSocketFactory.READ_TIMEOUT / 2));
+        return environment;
+    }
+
+    /**
+     * Get numeric value of a notification.
+     * @param notification Notification.
+     * @param valueKey Path of the value in the user data, or null.
+     * @return Value, or null if the notification has no such numeric value.
+     */
+    static Number getValue(Notification notification, String valueKey) {
+        Object value = notification.getUserData();
+        if (valueKey != null) {
+            for (String key : valueKey.split("\\.")) {
+                if (!(value instanceof CompositeData) ||
+                        !((CompositeData) value).containsKey(key))
+                    return null;
+                value = ((CompositeData) value).get(key);
+            }
+        }
+        return value instanceof Number ? (Number) value : null;
+    }
+
+    /**
+     * Subscription to the notifications of the MBeans matching an object
+     * name, with the statistics of the last {@link #MAX_WINDOW} seconds.
+     */
+    public class Subscription implements NotificationListener {
+
+        private final JMXServiceURL serviceUrl;
+        private final String localJvm;
+        private final String username;
+        private final String password;
+        private final ObjectName objectName;
+        private final String type;
+        private final String valueKey;
+        private final long[] seconds = new long[MAX_WINDOW];
+        private final long[] counts = new long[MAX_WINDOW];
+        // Notifications carrying a value.
+        private final long[] valued = new long[MAX_WINDOW];
+        private final double[] sums = new double[MAX_WINDOW];
+        private final double[] maxima = new double[MAX_WINDOW];
+        private final Set<ObjectName> emitters = new HashSet<ObjectName>();
+        private boolean integral = true;
+        private long since;
+        private JMXConnector connector;
+        private volatile boolean failed;
+        private volatile long lastUsed;
+
+        private final NotificationListener connectionListener = new NotificationListener() {
+            public void handleNotification(Notification notification, Object handback) {
+                String type = notification.getType();
+                if (JMXConnectionNotification.FAILED.equals(type) ||
+                        JMXConnectionNotification.CLOSED.equals(type))
+                    failed = true;
+            }
+        };
+
+        private final NotificationListener registrationListener = new NotificationListener() {
+            public void handleNotification(Notification notification, Object handback) {
+                final ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+                if (!objectName.apply(name))
+                    return;
+                if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(
+                        notification.getType())) {
+                    synchronized (Subscription.this) {
+                        emitters.remove(name);
+                    }
+                    return;
+                }
+                // No remote calls on the notification thread.
+                schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        try {
+                            addEmitter(name);
+                        } catch (Exception e) {
+                            // MBean gone again or connection failed.
+                        }
+                    }
+                });
+            }
+        };
+
+        Subscription(JMXServiceURL serviceUrl, String localJvm, String username,
+                String password, ObjectName objectName, String type, String valueKey)
+        {
+            this.serviceUrl = serviceUrl;
+            this.localJvm = localJvm;
+            this.username = username;
+            this.password = password;
+            this.objectName = objectName;
+            this.type = type;
+            this.valueKey = valueKey;
+        }
+
+        /**
+         * Get time the subscription was established.
+         * @return Time in milliseconds.
+         */
+        public synchronized long getSince() {
+            return since;
+        }
+
+        /**
+         * Connect and add listeners, unless connected.
+         */
+        synchronized void connect() throws NagiosJmxPluginException, Exception {
+            if (connector != null && !failed)
+                return;
+            close();
+            HashMap<String, Object> environment = getEnvironment();
+            try {
+                JMXServiceURL url = serviceUrl != null ? serviceUrl :
+                    LocalJvmConnector.getServiceUrl(localJvm);
+                connector = NagiosJmxPlugin.connect(url, username, password, environment);
+            } catch (IOException e) {
+                if (localJvm != null)
+                    LocalJvmConnector.forget(localJvm);
+                throw e;
+            }
+            failed = false;
+            connector.addConnectionNotificationListener(connectionListener, null, null);
+            MBeanServerConnection connection = connector.getMBeanServerConnection();
+            try {
+                if (objectName.isPattern()) {
+                    MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+                    filter.enableAllObjectNames();
+                    connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                            registrationListener, filter, null);
+                    for (ObjectName name : connection.queryNames(objectName, null)) {
+                        try {
+                            addEmitter(name);
+                        } catch (InstanceNotFoundException e) {
+                            // Unregistered in between.
+                        }
+                    }
+                } else {
+                    addEmitter(objectName);
+                }
+            } catch (InstanceNotFoundException e) {
+                close();
+                throw new NagiosJmxPluginException("objectName not found [" + objectName + "]", e);
+            } catch (Exception e) {
+                close();
+                throw e;
+            }
+            if (since == 0)
+                since = System.currentTimeMillis();
+        }
+
+        private synchronized void addEmitter(ObjectName name) throws Exception {
+            if (connector == null || failed || emitters.contains(name))
+                return;
+            NotificationFilterSupport filter = new NotificationFilterSupport();
+            filter.enableType(type);
+            connector.getMBeanServerConnection().addNotificationListener(name, this, filter, null);
+            emitters.add(name);
+        }
+
+        /**
+         * Close connection, keeping the statistics.
+         */
+        synchronized void close() {
+            emitters.clear();
+            if (connector == null)
+                return;
+            final JMXConnector closing = connector;
+            connector = null;
+            failed = true;
+            // Closing may block on a dead server.
+            Thread closer = new Thread("check_jmx-notifications-closer") {
+                @Override
+                public void run() {
+                    try {
+                        closing.close();
+                    } catch (IOException e) {
+                        // Ignore, connection is discarded.
+                    }
+                }
+            };
+            closer.setDaemon(true);
+            closer.start();
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            Number value = getValue(notification, valueKey);
+            long second = System.currentTimeMillis() / 1000;
+            int bucket = (int) (second % MAX_WINDOW);
+            synchronized (this) {
+                if (seconds[bucket] != second) {
+                    seconds[bucket] = second;
+                    counts[bucket] = 0;
+                    valued[bucket] = 0;
+                    sums[bucket] = 0;
+                    maxima[bucket] = Double.NEGATIVE_INFINITY;
+                }
+                counts[bucket]++;
+                if (value != null) {
+                    valued[bucket]++;
+                    integral &= !(value instanceof Double || value instanceof Float ||
+                            value instanceof BigDecimal);
+                    sums[bucket] += value.doubleValue();
+                    maxima[bucket] = Math.max(maxima[bucket], value.doubleValue());
+                }
+            }
+        }
+
+        /**
+         * Get statistic of the notifications received in a window. The
+         * window is shortened to the time since subscribing.
+         * @param statistic One of {@link NotificationMonitor#STATISTICS}.
+         * @param window Window in seconds, at most
+         *        {@link NotificationMonitor#MAX_WINDOW}.
+         * @return Value, or null for max and avg if no notification in the
+         *         window carried a value.
+         */
+        public synchronized Number getStatistic(String statistic, int window) {
+            long now = System.currentTimeMillis();
+            long second = now / 1000;
+            long count = 0;
+            long valueCount = 0;
+            double sum = 0;
+            double max = Double.NEGATIVE_INFINITY;
+            for (long s = second - Math.min(window, MAX_WINDOW) + 1; s <= second; s++) {
+                int bucket = (int) (s % MAX_WINDOW);
+                if (seconds[bucket] != s)
+                    continue;
+                count += counts[bucket];
+                valueCount += valued[bucket];
+                sum += sums[bucket];
+                max = Math.max(max, maxima[bucket]);
+            }
+            if (STATISTIC_COUNT.equals(statistic))
+                return count;
+            if (STATISTIC_RATE.equals(statistic)) {
+                double span = Math.max(1, Math.min(window, (now - since) / 1000.0));
+                return new BigDecimal(count / span).setScale(2, RoundingMode.HALF_UP);
+            }
+            if ((STATISTIC_AVG.equals(statistic) || STATISTIC_MAX.equals(statistic))
+                    && valueCount == 0)
+                return null;
+            if (STATISTIC_AVG.equals(statistic))
+                return new BigDecimal(sum / valueCount).setScale(2, RoundingMode.HALF_UP);
+            double value = STATISTIC_MAX.equals(statistic) ? max : sum;
+            return integral ? (Number) Math.round(value) : (Number) value;
+        }
+    }
+}
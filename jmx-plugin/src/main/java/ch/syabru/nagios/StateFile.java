@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memory-mapped state file with a fixed number of slots, shared between
+ * check_jmx invocations.
+ *
+ * <p>Each slot holds a 64 bit key hash, the time of the last update and a
+ * fixed number of long values. Slots are grouped into stripes; a key is
+ * stored in the stripe selected by its hash and only that stripe is locked
+ * while it is read or updated, so concurrent Nagios workers rarely wait on
+ * each other. If a stripe is full, its least recently updated slot is
+ * reused.</p>
+ *
+ */
+public class StateFile {
+
+    /**
+     * Update of a slot.
+     */
+    public interface SlotUpdate {
+        /**
+         * Update values of a slot.
+         * @param values Current values, to be modified in place.
+         * @param lastUpdate Time of last update in milliseconds, or 0 if the
+         *        slot is new and values are all zero.
+         * @return true to store the values, false to leave the slot unchanged.
+         */
+        boolean update(long[] values, long lastUpdate);
+    }
+
+    private static final int MAGIC = 0x4a4d5853; // JMXS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int STRIPE_SIZE = 64;
+
+    private static final Map<File, StateFile> OPEN_FILES = new HashMap<File, StateFile>();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int valueCount;
+    private final int slotSize;
+    private final int slotCount;
+    private final int stripeCount;
+    private final Object[] stripeLocks;
+
+    /**
+     * Open state file, creating it if it does not exist. State files are
+     * shared per JVM, as file locks are held by the JVM and not by a thread.
+     * @param file File.
+     * @param valueCount Number of long values per slot.
+     * @param slotCount Number of slots of a new file, rounded up to a
+     *        multiple of the stripe size.
+     * @return State file.
+     * @throws IOException If the file cannot be opened or has a different
+     *         number of values per slot.
+     */
+    public static StateFile open(File file, int valueCount, int slotCount)
+    throws IOException
+    {
+        File canonical = file.getCanonicalFile();
+        synchronized (OPEN_FILES) {
+            StateFile stateFile = OPEN_FILES.get(canonical);
+            if (stateFile == null) {
+                stateFile = new StateFile(canonical, valueCount, slotCount);
+                OPEN_FILES.put(canonical, stateFile);
+            } else if (stateFile.valueCount != valueCount) {
+                throw new IOException("State file [" + file + "] holds " +
+                        stateFile.valueCount + " values per slot, expected " + valueCount);
+            }
+            return stateFile;
+        }
+    }
+
+    private StateFile(File file, int valueCount, int slotCount) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        FileLock lock = channel.lock(0, HEADER_SIZE, false);
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                slotCount = (slotCount + STRIPE_SIZE - 1) / STRIPE_SIZE * STRIPE_SIZE;
+                raf.setLength(HEADER_SIZE + (long) slotCount * (16 + 8 * valueCount));
+                raf.seek(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(valueCount);
+                raf.writeInt(slotCount);
+            } else {
+                raf.seek(0);
+                if (raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                    throw new IOException("Not a check_jmx state file [" + file + "]");
+                int fileValueCount = raf.readInt();
+                if (fileValueCount != valueCount)
+                    throw new IOException("State file [" + file + "] holds " +
+                            fileValueCount + " values per slot, expected " + valueCount);
+                slotCount = raf.readInt();
+            }
+        } finally {
+            lock.release();
+        }
+        this.valueCount = valueCount;
+        this.slotSize = 16 + 8 * valueCount;
+        this.slotCount = slotCount;
+        this.stripeCount = slotCount / STRIPE_SIZE;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) slotCount * slotSize);
+        this.stripeLocks = new Object[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            stripeLocks[i] = new Object();
+    }
+
+    /**
+     * Get number of long values per slot.
+     * @return Number of values.
+     */
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * Read and update the slot of a key atomically.
+     * @param key Key.
+     * @param update Update applied to the values of the slot.
+     * @throws IOException If the slot cannot be locked.
+     */
+    public void update(String key, SlotUpdate update) throws IOException {
+        long hash = hash(key);
+        int stripe = (int) ((hash >>> 1) % stripeCount);
+        int first = stripe * STRIPE_SIZE;
+        synchronized (stripeLocks[stripe]) {
+            FileLock lock = channel.lock(HEADER_SIZE + (long) first * slotSize,
+                    (long) STRIPE_SIZE * slotSize, false);
+            try {
+                int slot = findSlot(hash, first);
+                int position = HEADER_SIZE + slot * slotSize;
+                long[] values = new long[valueCount];
+                long lastUpdate = 0;
+                if (buffer.getLong(position) == hash) {
+                    lastUpdate = buffer.getLong(position + 8);
+                    for (int i = 0; i < valueCount; i++)
+                        values[i] = buffer.getLong(position + 16 + 8 * i);
+                }
+                if (update.update(values, lastUpdate)) {
+                    for (int i = 0; i < valueCount; i++)
+                        buffer.putLong(position + 16 + 8 * i, values[i]);
+                    buffer.putLong(position + 8, System.currentTimeMillis());
+                    buffer.putLong(position, hash);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Find slot of a key within its stripe: the slot holding the key, else
+     * the first empty slot, else the least recently updated slot.
+     */
+    private int findSlot(long hash, int first) {
+        int start = (int) ((hash >>> 32) & 0x7fffffff) % STRIPE_SIZE;
+        int oldest = -1;
+        long oldestUpdate = Long.MAX_VALUE;
+        for (int i = 0; i < STRIPE_SIZE; i++) {
+            int slot = first + (start + i) % STRIPE_SIZE;
+            int position = HEADER_SIZE + slot * slotSize;
+            long slotHash = buffer.getLong(position);
+            if (slotHash == hash || slotHash == 0)
+                return slot;
+            long update = buffer.getLong(position + 8);
+            if (update < oldestUpdate) {
+                oldest = slot;
+                oldestUpdate = update;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a key, never 0 as 0 marks an empty slot.
+     */
+    static long hash(String key) {
+        byte[] bytes;
+        try {
+            bytes = key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
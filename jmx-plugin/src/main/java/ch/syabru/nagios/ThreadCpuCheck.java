@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Hot thread check. Reads the CPU time of all threads twice, in one bulk
+ * call each, and reports the CPU usage over the interval in between: total
+ * of all threads as percent of all processors, and of the busiest thread
+ * as percent of one processor. The top threads are listed with the head of
+ * their stack in the long output.
+ *
+ */
+public class ThreadCpuCheck implements CheckMode {
+
+    /**
+     * Metric CPU usage of all threads in percent of all processors.
+     */
+    public static final String METRIC_TOTAL = "total";
+    /**
+     * Metric CPU usage of the busiest thread in percent of one processor.
+     */
+    public static final String METRIC_MAX = "max";
+    /**
+     * Number of threads listed in the long output.
+     */
+    public static final String PROP_TOP = "top";
+    /**
+     * Default number of threads listed.
+     */
+    public static final int DEFAULT_TOP = 5;
+
+    private static final int STACK_DEPTH = 3;
+
+    private String longOutput;
+
+    public String getObjectName() {
+        return ManagementFactory.THREAD_MXBEAN_NAME;
+    }
+
+    public List<String> getMetrics() {
+        return Arrays.asList(METRIC_TOTAL, METRIC_MAX);
+    }
+
+    public String getUnits(String metric) {
+        return NagiosJmxPlugin.UNIT_PERCENT;
+    }
+
+    public Map<String, Number> query(MBeanServerConnection connection, Deadline deadline,
+            Properties args)
+    throws NagiosJmxPluginException, Exception
+    {
+        ObjectName threading = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
+        if (!Boolean.TRUE.equals(connection.getAttribute(threading, "ThreadCpuTimeEnabled")))
+            throw new NagiosJmxPluginException("Thread CPU time measurement is disabled");
+        long interval = Long.parseLong(args.getProperty(NagiosJmxPlugin.PROP_INTERVAL,
+                String.valueOf(NagiosJmxPlugin.DEFAULT_INTERVAL)));
+        int top = Integer.parseInt(args.getProperty(PROP_TOP, String.valueOf(DEFAULT_TOP)));
+        ObjectName os = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
+        int processors = ((Number) connection.getAttribute(os, "AvailableProcessors")).intValue();
+
+        long[] ids = (long[]) connection.getAttribute(threading, "AllThreadIds");
+        long[] before = getThreadCpuTime(connection, threading, ids);
+        long start = System.nanoTime();
+        // Leave half of the remaining time for the second call and closing.
+        long wait = Math.min(interval, deadline.getRemaining() / 2);
+        if (wait > 0)
+            Thread.sleep(wait);
+        long[] after = getThreadCpuTime(connection, threading, ids);
+        long elapsed = System.nanoTime() - start;
+
+        double[] usage = new double[ids.length];
+        double total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            // -1 if the thread died or CPU time is not supported.
+            if (before[i] < 0 || after[i] < 0)
+                continue;
+            usage[i] = (after[i] - before[i]) * 100.0 / elapsed;
+            total += usage[i];
+        }
+        Integer[] order = new Integer[ids.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        final double[] sortUsage = usage;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(sortUsage[i2], sortUsage[i1]);
+            }
+        });
+
+        Map<String, Number> values = new HashMap<String, Number>();
+        values.put(METRIC_TOTAL, round(total / processors));
+        values.put(METRIC_MAX, round(ids.length > 0 ? usage[order[0]] : 0));
+
+        top = Math.min(top, ids.length);
+        long[] topIds = new long[top];
+        for (int i = 0; i < top; i++)
+            topIds[i] = ids[order[i]];
+        CompositeData[] infos = (CompositeData[]) connection.invoke(threading, "getThreadInfo",
+                new Object[] { topIds, STACK_DEPTH }, new String[] { "[J", "int" });
+        StringBuilder output = new StringBuilder();
+        output.append("Top threads by CPU over ").append(
+                TimeUnit.NANOSECONDS.toMillis(elapsed)).append("ms:");
+        for (int i = 0; i < top; i++) {
+            if (infos[i] == null)
+                continue;
+            ThreadInfo info = ThreadInfo.from(infos[i]);
+            output.append("\n").append(round(usage[order[i]])).append("% \"");
+            // A pipe would start performance data.
+            output.append(info.getThreadName().replace('|', '/')).append("\" id=").append(info.getThreadId());
+            output.append(" ").append(info.getThreadState());
+            for (StackTraceElement element : info.getStackTrace())
+                output.append("\n    at ").append(element);
+        }
+        longOutput = output.toString();
+        return values;
+    }
+
+    public String getLongOutput() {
+        return longOutput;
+    }
+
+    /**
+     * Get CPU time of threads, in one call if the JVM supports the bulk
+     * operation of com.sun.management.ThreadMXBean (Java 8 and later).
+     */
+    private static long[] getThreadCpuTime(MBeanServerConnection connection,
+            ObjectName threading, long[] ids)
+    throws Exception
+    {
+        try {
+            return (long[]) connection.invoke(threading, "getThreadCpuTime",
+                    new Object[] { ids }, new String[] { "[J" });
+        } catch (ReflectionException e) {
+            long[] times = new long[ids.length];
+            for (int i = 0; i < ids.length; i++)
+                times[i] = (Long) connection.invoke(threading, "getThreadCpuTime",
+                        new Object[] { ids[i] }, new String[] { "long" });
+            return times;
+        }
+    }
+
+    private static BigDecimal round(double value) {
+        return new BigDecimal(value).setScale(1, RoundingMode.HALF_UP);
+    }
+}
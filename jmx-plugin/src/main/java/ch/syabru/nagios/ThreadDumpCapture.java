@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Captures a thread dump of the checked JVM over the open connection and
+ * writes it gzip compressed to a dump directory, next to a summary of the
+ * blocked threads grouped by the owner of the lock they wait for. Only the
+ * newest dumps of each JVM are kept.
+ *
+ */
+public class ThreadDumpCapture {
+
+    /**
+     * Default number of dumps kept per JVM.
+     */
+    public static final int DEFAULT_KEEP = 10;
+    /**
+     * Maximum size of an uncompressed dump in bytes; the dump is truncated
+     * beyond.
+     */
+    public static final long MAX_SIZE = 16 * 1024 * 1024;
+    /**
+     * Maximum number of threads fetched from the JVM, bounding the memory
+     * and transfer of a dump.
+     */
+    public static final int MAX_THREADS = 2000;
+
+    private static final String DUMP_SUFFIX = ".tdump.gz";
+    private static final String SUMMARY_SUFFIX = ".summary.txt";
+
+    private final File directory;
+    private final int keep;
+
+    /**
+     * Create capture.
+     * @param directory Dump directory.
+     * @param keep Number of dumps kept per JVM.
+     */
+    public ThreadDumpCapture(File directory, int keep) {
+        this.directory = directory;
+        this.keep = keep;
+    }
+
+    /**
+     * Capture a thread dump. If interrupted, e.g. because the deadline
+     * expired, no files are left behind.
+     * @param connection MBean server connection.
+     * @param target Target, e.g. service URL, naming the dump files.
+     * @return Dump file.
+     * @throws Exception If the dump cannot be taken or written.
+     */
+    public File capture(MBeanServerConnection connection, String target) throws Exception {
+        ObjectName threading = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
+        boolean monitors = Boolean.TRUE.equals(
+                connection.getAttribute(threading, "ObjectMonitorUsageSupported"));
+        boolean synchronizers = Boolean.TRUE.equals(
+                connection.getAttribute(threading, "SynchronizerUsageSupported"));
+        long[] ids = (long[]) connection.getAttribute(threading, "AllThreadIds");
+        int omitted = Math.max(0, ids.length - MAX_THREADS);
+        if (omitted > 0)
+            ids = Arrays.copyOf(ids, MAX_THREADS);
+        CompositeData[] data = (CompositeData[]) connection.invoke(threading, "getThreadInfo",
+                new Object[] { ids, monitors, synchronizers },
+                new String[] { long[].class.getName(), "boolean", "boolean" });
+        // Ownable synchronizers are only covered if their usage is supported.
+        long[] deadlocked = (long[]) connection.invoke(threading,
+                synchronizers ? "findDeadlockedThreads" : "findMonitorDeadlockedThreads",
+                null, null);
+        List<ThreadInfo> threads = new ArrayList<ThreadInfo>(data.length);
+        for (CompositeData cd : data) {
+            // Terminated since the ids were read.
+            if (cd != null)
+                threads.add(ThreadInfo.from(cd));
+        }
+
+        directory.mkdirs();
+        final String prefix = Long.toHexString(StateFile.hash(target)) + "-";
+        String base = prefix + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        File dump = new File(directory, base + DUMP_SUFFIX);
+        File summary = new File(directory, base + SUMMARY_SUFFIX);
+        File dumpTmp = new File(directory, base + DUMP_SUFFIX + ".tmp");
+        File summaryTmp = new File(directory, base + SUMMARY_SUFFIX + ".tmp");
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(new FileOutputStream(dumpTmp)), "UTF-8"));
+            try {
+                writeDump(out, target, threads, omitted);
+            } finally {
+                out.close();
+            }
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(summaryTmp), "UTF-8"));
+            try {
+                writeSummary(out, target, threads, deadlocked);
+            } finally {
+                out.close();
+            }
+            if (Thread.interrupted())
+                throw new InterruptedException("Thread dump interrupted");
+            if (!dumpTmp.renameTo(dump) || !summaryTmp.renameTo(summary))
+                throw new IOException("Cannot write thread dump to [" + directory + "]");
+        } finally {
+            dumpTmp.delete();
+            summaryTmp.delete();
+        }
+        rotate(prefix);
+        return dump;
+    }
+
+    private void writeDump(Writer out, String target, List<ThreadInfo> threads, int omitted)
+    throws IOException, InterruptedException
+    {
+        long size = 0;
+        out.write("Thread dump of " + target + " at " + new Date() + "\n\n");
+        for (ThreadInfo thread : threads) {
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedException("Thread dump interrupted");
+            String entry = format(thread);
+            size += entry.length();
+            if (size > MAX_SIZE) {
+                out.write("... truncated at " + MAX_SIZE + " characters\n");
+                return;
+            }
+            out.write(entry);
+        }
+        if (omitted > 0)
+            out.write("... " + omitted + " more threads not captured\n");
+    }
+
+    /**
+     * Format thread like jstack, without the truncation of
+     * ThreadInfo.toString().
+     */
+    static String format(ThreadInfo thread) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('"').append(thread.getThreadName()).append("\" id=");
+        sb.append(thread.getThreadId()).append(' ').append(thread.getThreadState());
+        if (thread.getLockName() != null)
+            sb.append(" on ").append(thread.getLockName());
+        if (thread.getLockOwnerName() != null)
+            sb.append(" owned by \"").append(thread.getLockOwnerName()).append("\" id=")
+                .append(thread.getLockOwnerId());
+        if (thread.isSuspended())
+            sb.append(" (suspended)");
+        if (thread.isInNative())
+            sb.append(" (in native)");
+        sb.append('\n');
+        StackTraceElement[] stack = thread.getStackTrace();
+        MonitorInfo[] monitors = thread.getLockedMonitors();
+        for (int i = 0; i < stack.length; i++) {
+            sb.append("\tat ").append(stack[i]).append('\n');
+            if (i == 0 && thread.getLockInfo() != null)
+                sb.append("\t-  waiting on ").append(thread.getLockInfo()).append('\n');
+            for (MonitorInfo monitor : monitors) {
+                if (monitor.getLockedStackDepth() == i)
+                    sb.append("\t-  locked ").append(monitor).append('\n');
+            }
+        }
+        LockInfo[] synchronizers = thread.getLockedSynchronizers();
+        if (synchronizers.length > 0) {
+            sb.append("\n\tLocked synchronizers:\n");
+            for (LockInfo synchronizer : synchronizers)
+                sb.append("\t- ").append(synchronizer).append('\n');
+        }
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    private void writeSummary(Writer out, String target, List<ThreadInfo> threads,
+            long[] deadlocked)
+    throws IOException
+    {
+        Map<String, List<ThreadInfo>> byOwner = new LinkedHashMap<String, List<ThreadInfo>>();
+        for (ThreadInfo thread : threads) {
+            if (thread.getLockOwnerId() < 0)
+                continue;
+            String owner = "\"" + thread.getLockOwnerName() + "\" id=" + thread.getLockOwnerId();
+            List<ThreadInfo> waiting = byOwner.get(owner);
+            if (waiting == null) {
+                waiting = new ArrayList<ThreadInfo>();
+                byOwner.put(owner, waiting);
+            }
+            waiting.add(thread);
+        }
+        List<Map.Entry<String, List<ThreadInfo>>> owners =
+            new ArrayList<Map.Entry<String, List<ThreadInfo>>>(byOwner.entrySet());
+        Collections.sort(owners, new Comparator<Map.Entry<String, List<ThreadInfo>>>() {
+            public int compare(Map.Entry<String, List<ThreadInfo>> e1,
+                    Map.Entry<String, List<ThreadInfo>> e2) {
+                return e2.getValue().size() - e1.getValue().size();
+            }
+        });
+        out.write("Blocked threads of " + target + " at " + new Date() + ": " +
+                threads.size() + " threads\n");
+        if (deadlocked != null)
+            out.write("Deadlocked thread ids: " + Arrays.toString(deadlocked) + "\n");
+        for (Map.Entry<String, List<ThreadInfo>> owner : owners) {
+            out.write("\n" + owner.getValue().size() + " waiting for locks owned by " +
+                    owner.getKey() + "\n");
+            for (ThreadInfo thread : owner.getValue()) {
+                out.write("\t\"" + thread.getThreadName() + "\" id=" + thread.getThreadId() +
+                        " " + thread.getThreadState() + " on " + thread.getLockName() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Delete the oldest dumps of a JVM beyond the number kept.
+     */
+    private void rotate(final String prefix) {
+        File[] dumps = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(DUMP_SUFFIX);
+            }
+        });
+        if (dumps == null || dumps.length <= keep)
+            return;
+        // Names sort by time.
+        Arrays.sort(dumps);
+        for (int i = 0; i < dumps.length - keep; i++) {
+            String name = dumps[i].getName();
+            dumps[i].delete();
+            new File(directory, name.substring(0, name.length() - DUMP_SUFFIX.length()) +
+                    SUMMARY_SUFFIX).delete();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threshold in Nagios range format, parsed once and evaluated against
+ * values of any number type.
+ *
+ * <p>Format is <code>[@][start:][end]</code>: an alert is raised if the
+ * value is outside the range start..end, or inside if prefixed by @. Start
+ * defaults to 0, ~ stands for negative infinity and a missing end for
+ * positive infinity. For example 10: alerts below 10, 5:10 outside 5..10
+ * and @10:20 between 10 and 20. Unlike the Nagios guidelines, a plain
+ * number such as 10 alerts only above that number, like ~:10, as earlier
+ * versions of this plugin did; attributes reporting -1 when undefined do
+ * not alert.</p>
+ *
+ */
+public final class Threshold {
+
+    private final String range;
+    private final boolean inside;
+    private final boolean hasStart;
+    private final boolean hasEnd;
+    private final double start;
+    private final double end;
+    private final boolean integral;
+    private final long startLong;
+    private final long endLong;
+    private final BigDecimal startDecimal;
+    private final BigDecimal endDecimal;
+
+    /**
+     * Parse threshold.
+     * @param range Threshold in Nagios range format, or null.
+     * @return Threshold, or null if range is null.
+     * @throws NagiosJmxPluginException If range is malformed.
+     */
+    public static Threshold parse(String range) throws NagiosJmxPluginException {
+        if (range == null)
+            return null;
+        try {
+            return new Threshold(range);
+        } catch (NumberFormatException e) {
+            throw new NagiosJmxPluginException("Error parsing threshold [" + range + "]", e);
+        }
+    }
+
+    private Threshold(String range) throws NagiosJmxPluginException {
+        this.range = range;
+        String spec = range.trim();
+        inside = spec.startsWith("@");
+        if (inside)
+            spec = spec.substring(1);
+        if (spec.length() == 0)
+            throw new NagiosJmxPluginException("Malformed threshold [" + range + "]");
+        int colon = spec.indexOf(':');
+        // A plain number has no start, see class comment.
+        String startSpec = colon < 0 ? "~" : spec.substring(0, colon);
+        String endSpec = colon < 0 ? spec : spec.substring(colon + 1);
+
+        BigDecimal startValue = startSpec.equals("~") ? null :
+            new BigDecimal(startSpec.length() == 0 ? "0" : startSpec);
+        BigDecimal endValue = endSpec.length() == 0 ? null : new BigDecimal(endSpec);
+        if (startValue != null && endValue != null && startValue.compareTo(endValue) > 0)
+            throw new NagiosJmxPluginException("Start of threshold [" + range +
+                    "] is greater than end");
+
+        hasStart = startValue != null;
+        hasEnd = endValue != null;
+        startDecimal = startValue;
+        endDecimal = endValue;
+        start = hasStart ? startValue.doubleValue() : Double.NEGATIVE_INFINITY;
+        end = hasEnd ? endValue.doubleValue() : Double.POSITIVE_INFINITY;
+        integral = isLong(startValue) && isLong(endValue);
+        startLong = hasStart && integral ? startValue.longValueExact() : Long.MIN_VALUE;
+        endLong = hasEnd && integral ? endValue.longValueExact() : Long.MAX_VALUE;
+    }
+
+    private static boolean isLong(BigDecimal value) {
+        if (value == null)
+            return true;
+        try {
+            value.longValueExact();
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check if value raises an alert.
+     * @param value Value.
+     * @return true if value raises an alert.
+     */
+    public boolean isAlert(double value) {
+        boolean outside = value < start || value > end;
+        return inside ? !outside : outside;
+    }
+
+    /**
+     * Check if value raises an alert.
+     * @param value Value.
+     * @return true if value raises an alert.
+     */
+    public boolean isAlert(long value) {
+        if (!integral)
+            return isAlert((double) value);
+        boolean outside = (hasStart && value < startLong) || (hasEnd && value > endLong);
+        return inside ? !outside : outside;
+    }
+
+    /**
+     * Check if value raises an alert. Integral values are compared exactly,
+     * as are BigDecimal and BigInteger values.
+     * @param value Value.
+     * @return true if value raises an alert.
+     */
+    public boolean isAlert(Number value) {
+        if (value instanceof Long || value instanceof Integer ||
+                value instanceof Short || value instanceof Byte ||
+                value instanceof AtomicLong || value instanceof AtomicInteger)
+            return isAlert(value.longValue());
+        if (value instanceof BigDecimal || value instanceof BigInteger) {
+            BigDecimal decimal = value instanceof BigDecimal ? (BigDecimal) value :
+                new BigDecimal((BigInteger) value);
+            boolean outside = (hasStart && decimal.compareTo(startDecimal) < 0) ||
+                (hasEnd && decimal.compareTo(endDecimal) > 0);
+            return inside ? !outside : outside;
+        }
+        return isAlert(value.doubleValue());
+    }
+
+    @Override
+    public String toString() {
+        return range;
+    }
+}
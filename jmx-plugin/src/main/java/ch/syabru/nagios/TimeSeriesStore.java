@@ -0,0 +1,611 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Embedded time series store for the values of checks, kept in a directory
+ * of memory-mapped segment files shared between check_jmx invocations.
+ *
+ * <p>Segments are named by UTC day and sequence number, e.g.
+ * 20101231-000.tss, and deleted when older than the retention. A segment
+ * holds a hash table of series and fixed size chunks; each series is a
+ * linked list of chunks. Points are compressed as in Facebook's Gorilla:
+ * timestamps as delta of delta in milliseconds, values as the XOR of the
+ * previous value's bits. The encoder state is kept in the chunk header, so
+ * any process can append to a series while holding the segment lock.</p>
+ *
+ */
+public class TimeSeriesStore {
+
+    /**
+     * Default retention in days.
+     */
+    public static final int DEFAULT_RETENTION = 7;
+
+    /**
+     * Receives points read from the store.
+     */
+    public interface PointVisitor {
+        /**
+         * Accept series, called once per series and segment before its
+         * points.
+         * @param series Series name.
+         * @return true to read the points of the series.
+         */
+        boolean accept(String series);
+
+        /**
+         * Receive point.
+         * @param series Series name.
+         * @param time Time in milliseconds.
+         * @param value Value.
+         */
+        void point(String series, long time, double value);
+    }
+
+    private static final int MAGIC = 0x4a4d5854; // JMXT
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int TABLE_SIZE = 65536;
+    private static final int ENTRY_SIZE = 16;
+    private static final int CHUNK_SIZE = 512;
+    private static final int CHUNK_COUNT = 65536;
+    private static final int CHUNK_HEADER = 56;
+    private static final int MAX_NAME = 256;
+    // Worst case encoding of a point: 4 + 32 bits time, 2 + 5 + 6 + 64 bits value.
+    private static final int MAX_POINT_BITS = 113;
+    private static final int NO_WINDOW = 0xff;
+    // Larger delta of delta starts a new chunk, it does not fit 32 bits.
+    private static final long MAX_DOD = 1L << 30;
+    private static final long SEGMENT_SIZE =
+        HEADER_SIZE + (long) TABLE_SIZE * ENTRY_SIZE + (long) CHUNK_COUNT * CHUNK_SIZE;
+    private static final String SUFFIX = ".tss";
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    // Header offsets.
+    private static final int H_ALLOCATED = 8;
+    private static final int H_FULL = 12;
+    // Chunk header offsets.
+    private static final int C_HASH = 0;
+    private static final int C_NEXT = 8;
+    private static final int C_COUNT = 12;
+    private static final int C_BITS = 16;
+    private static final int C_NAME_LENGTH = 20;
+    private static final int C_LEADING = 22;
+    private static final int C_TRAILING = 23;
+    private static final int C_FIRST_TIME = 24;
+    private static final int C_LAST_TIME = 32;
+    private static final int C_LAST_DELTA = 40;
+    private static final int C_LAST_VALUE = 48;
+
+    private static final Map<File, TimeSeriesStore> OPEN_STORES =
+        new HashMap<File, TimeSeriesStore>();
+
+    private final File directory;
+    private final int retention;
+    private Segment segment;
+
+    /**
+     * Open store, creating its directory if it does not exist. Stores are
+     * shared per JVM, as file locks are held by the JVM and not by a thread.
+     * @param directory Directory.
+     * @param retention Retention in days.
+     * @return Store.
+     * @throws IOException If the directory cannot be created.
+     */
+    public static TimeSeriesStore open(File directory, int retention) throws IOException {
+        File canonical = directory.getCanonicalFile();
+        synchronized (OPEN_STORES) {
+            TimeSeriesStore store = OPEN_STORES.get(canonical);
+            if (store == null) {
+                if (!canonical.isDirectory() && !canonical.mkdirs())
+                    throw new IOException("Cannot create directory [" + directory + "]");
+                store = new TimeSeriesStore(canonical, retention);
+                OPEN_STORES.put(canonical, store);
+            }
+            return store;
+        }
+    }
+
+    private TimeSeriesStore(File directory, int retention) {
+        this.directory = directory;
+        this.retention = retention;
+    }
+
+    /**
+     * Append points of one point in time.
+     * @param time Time in milliseconds.
+     * @param series Series names.
+     * @param values Values, in the order of the series.
+     * @throws IOException If the segment cannot be written.
+     */
+    public synchronized void append(long time, List<String> series, List<Double> values)
+    throws IOException
+    {
+        String day = formatDay(time);
+        if (segment == null || !segment.day.equals(day)) {
+            if (segment != null) {
+                segment.close();
+                segment = null;
+            }
+            segment = openSegment(day, -1);
+            deleteExpired(time);
+        }
+        try {
+            for (int i = 0; i < series.size(); i++) {
+                long hash = StateFile.hash(series.get(i));
+                while (!segment.append(hash, series.get(i), time, values.get(i))) {
+                    Segment full = segment;
+                    segment = null;
+                    full.close();
+                    segment = openSegment(day, full.sequence);
+                }
+            }
+        } catch (IOException e) {
+            // An interrupted wait for the segment lock closes the channel,
+            // open the segment again on the next append.
+            if (segment != null) {
+                try {
+                    segment.close();
+                } catch (IOException ce) {
+                    // Ignore, segment is discarded.
+                }
+                segment = null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read points within a time range.
+     * @param from Start time in milliseconds, inclusive.
+     * @param to End time in milliseconds, inclusive.
+     * @param visitor Visitor receiving the points in order of segments.
+     * @throws IOException If a segment cannot be read.
+     */
+    public void read(long from, long to, PointVisitor visitor) throws IOException {
+        String first = formatDay(from);
+        String last = formatDay(to);
+        for (File file : listSegments()) {
+            String day = file.getName().substring(0, 8);
+            if (day.compareTo(first) < 0 || day.compareTo(last) > 0)
+                continue;
+            Segment segment = new Segment(file, false);
+            try {
+                segment.read(from, to, visitor);
+            } finally {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * Open the latest segment of a day, or a new one after the given
+     * sequence number if it is full.
+     */
+    private Segment openSegment(String day, int after) throws IOException {
+        int sequence = Math.max(0, after + 1);
+        for (File file : listSegments()) {
+            String name = file.getName();
+            if (name.startsWith(day))
+                sequence = Math.max(sequence, Integer.parseInt(name.substring(9, 12)));
+        }
+        while (true) {
+            Segment segment = new Segment(new File(directory,
+                    String.format("%s-%03d%s", day, sequence, SUFFIX)), true);
+            if (!segment.isFull())
+                return segment;
+            segment.close();
+            sequence++;
+        }
+    }
+
+    private void deleteExpired(long now) {
+        String oldest = formatDay(now - retention * DAY);
+        for (File file : listSegments()) {
+            if (file.getName().substring(0, 8).compareTo(oldest) < 0)
+                file.delete();
+        }
+    }
+
+    private File[] listSegments() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.length() == 16 && name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static String formatDay(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    /**
+     * Segment file.
+     */
+    private static class Segment {
+
+        private final String day;
+        private final int sequence;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        Segment(File path, boolean write) throws IOException {
+            String name = path.getName();
+            day = name.substring(0, 8);
+            sequence = Integer.parseInt(name.substring(9, 12));
+            file = new RandomAccessFile(path, write ? "rw" : "r");
+            channel = file.getChannel();
+            try {
+                if (write) {
+                    FileLock lock = channel.lock();
+                    try {
+                        if (file.length() < HEADER_SIZE) {
+                            file.setLength(SEGMENT_SIZE);
+                            file.seek(0);
+                            file.writeInt(MAGIC);
+                            file.writeInt(VERSION);
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                }
+                if (file.length() != SEGMENT_SIZE)
+                    throw new IOException("Not a check_jmx history segment [" + path + "]");
+                buffer = channel.map(write ? FileChannel.MapMode.READ_WRITE :
+                    FileChannel.MapMode.READ_ONLY, 0, SEGMENT_SIZE);
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                    throw new IOException("Not a check_jmx history segment [" + path + "]");
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        boolean isFull() {
+            return buffer.getInt(H_FULL) != 0;
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+
+        /**
+         * Append point.
+         * @return false if the segment is full.
+         */
+        boolean append(long hash, String series, long time, double value) throws IOException {
+            FileLock lock = channel.lock();
+            try {
+                if (isFull())
+                    return false;
+                int entry = findEntry(hash);
+                if (entry < 0)
+                    return markFull();
+                int chunk = buffer.getInt(entry + 12);
+                if (chunk == 0) {
+                    chunk = allocate(hash, encode(series));
+                    if (chunk == 0)
+                        return markFull();
+                    buffer.putLong(entry, hash);
+                    buffer.putInt(entry + 8, chunk);
+                    buffer.putInt(entry + 12, chunk);
+                    startChunk(chunk, time, value);
+                    return true;
+                }
+                int position = chunkPosition(chunk);
+                long lastTime = buffer.getLong(position + C_LAST_TIME);
+                if (time <= lastTime)
+                    return true;
+                long delta = time - lastTime;
+                long dod = delta - buffer.getLong(position + C_LAST_DELTA);
+                int bits = buffer.getInt(position + C_BITS);
+                int capacity = (CHUNK_SIZE - CHUNK_HEADER -
+                        buffer.getShort(position + C_NAME_LENGTH)) * 8;
+                if (bits + MAX_POINT_BITS > capacity || Math.abs(dod) >= MAX_DOD) {
+                    int next = allocate(hash, new byte[0]);
+                    if (next == 0)
+                        return markFull();
+                    buffer.putInt(position + C_NEXT, next);
+                    buffer.putInt(entry + 12, next);
+                    startChunk(next, time, value);
+                    return true;
+                }
+                BitWriter writer = new BitWriter(buffer, dataPosition(position), bits);
+                writeTime(writer, dod);
+                writeValue(writer, position, Double.doubleToRawLongBits(value));
+                buffer.putInt(position + C_BITS, writer.position);
+                buffer.putLong(position + C_LAST_TIME, time);
+                buffer.putLong(position + C_LAST_DELTA, delta);
+                buffer.putInt(position + C_COUNT, buffer.getInt(position + C_COUNT) + 1);
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+
+        void read(long from, long to, PointVisitor visitor) throws IOException {
+            FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+            try {
+                for (int i = 0; i < TABLE_SIZE; i++) {
+                    int entry = HEADER_SIZE + i * ENTRY_SIZE;
+                    int chunk = buffer.getInt(entry + 8);
+                    if (chunk == 0)
+                        continue;
+                    String series = decodeName(chunkPosition(chunk));
+                    if (!visitor.accept(series))
+                        continue;
+                    for (; chunk != 0; chunk = buffer.getInt(chunkPosition(chunk) + C_NEXT))
+                        readChunk(chunkPosition(chunk), series, from, to, visitor);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+
+        private void readChunk(int position, String series, long from, long to,
+                PointVisitor visitor)
+        {
+            if (buffer.getLong(position + C_FIRST_TIME) > to ||
+                    buffer.getLong(position + C_LAST_TIME) < from)
+                return;
+            int count = buffer.getInt(position + C_COUNT);
+            BitReader reader = new BitReader(buffer, dataPosition(position));
+            long time = buffer.getLong(position + C_FIRST_TIME);
+            long bits = reader.read(64);
+            long delta = 0;
+            int leading = NO_WINDOW;
+            int trailing = 0;
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    delta += readTime(reader);
+                    time += delta;
+                    if (reader.read(1) != 0) {
+                        if (reader.read(1) != 0) {
+                            leading = (int) reader.read(5);
+                            trailing = 64 - leading - ((int) reader.read(6) + 1);
+                        }
+                        bits ^= reader.read(64 - leading - trailing) << trailing;
+                    }
+                }
+                if (time > to)
+                    return;
+                if (time >= from)
+                    visitor.point(series, time, Double.longBitsToDouble(bits));
+            }
+        }
+
+        private int findEntry(long hash) {
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                int entry = HEADER_SIZE + (int) ((hash + i) & (TABLE_SIZE - 1)) * ENTRY_SIZE;
+                long entryHash = buffer.getLong(entry);
+                if (entryHash == hash || entryHash == 0)
+                    return entry;
+            }
+            return -1;
+        }
+
+        private boolean markFull() {
+            buffer.putInt(H_FULL, 1);
+            return false;
+        }
+
+        /**
+         * Allocate chunk.
+         * @return Chunk number, 0 if the segment is full.
+         */
+        private int allocate(long hash, byte[] name) {
+            int allocated = buffer.getInt(H_ALLOCATED);
+            if (allocated == CHUNK_COUNT)
+                return 0;
+            buffer.putInt(H_ALLOCATED, allocated + 1);
+            int chunk = allocated + 1;
+            int position = chunkPosition(chunk);
+            buffer.putLong(position + C_HASH, hash);
+            buffer.putShort(position + C_NAME_LENGTH, (short) name.length);
+            for (int i = 0; i < name.length; i++)
+                buffer.put(position + CHUNK_HEADER + i, name[i]);
+            return chunk;
+        }
+
+        private void startChunk(int chunk, long time, double value) {
+            int position = chunkPosition(chunk);
+            long bits = Double.doubleToRawLongBits(value);
+            BitWriter writer = new BitWriter(buffer, dataPosition(position), 0);
+            writer.write(bits, 64);
+            buffer.putInt(position + C_BITS, writer.position);
+            buffer.putInt(position + C_COUNT, 1);
+            buffer.put(position + C_LEADING, (byte) NO_WINDOW);
+            buffer.putLong(position + C_FIRST_TIME, time);
+            buffer.putLong(position + C_LAST_TIME, time);
+            buffer.putLong(position + C_LAST_DELTA, 0);
+            buffer.putLong(position + C_LAST_VALUE, bits);
+        }
+
+        private static void writeTime(BitWriter writer, long dod) {
+            if (dod == 0) {
+                writer.write(0, 1);
+            } else if (dod >= -63 && dod <= 64) {
+                writer.write(0x2, 2);
+                writer.write(dod, 7);
+            } else if (dod >= -255 && dod <= 256) {
+                writer.write(0x6, 3);
+                writer.write(dod, 9);
+            } else if (dod >= -2047 && dod <= 2048) {
+                writer.write(0xe, 4);
+                writer.write(dod, 12);
+            } else {
+                writer.write(0xf, 4);
+                writer.write(dod, 32);
+            }
+        }
+
+        private static long readTime(BitReader reader) {
+            if (reader.read(1) == 0)
+                return 0;
+            if (reader.read(1) == 0)
+                return signed(reader.read(7), 7);
+            if (reader.read(1) == 0)
+                return signed(reader.read(9), 9);
+            if (reader.read(1) == 0)
+                return signed(reader.read(12), 12);
+            return signed(reader.read(32), 32);
+        }
+
+        /**
+         * Interpret the low bits of a value as two's complement, values
+         * above the positive range wrap to negative ones, which is how 64 and
+         * 256 etc. are told apart from -64 and -256.
+         */
+        private static long signed(long value, int bits) {
+            long max = 1L << (bits - 1);
+            return value > max ? value - (1L << bits) : value;
+        }
+
+        private void writeValue(BitWriter writer, int position, long bits) {
+            long xor = bits ^ buffer.getLong(position + C_LAST_VALUE);
+            buffer.putLong(position + C_LAST_VALUE, bits);
+            if (xor == 0) {
+                writer.write(0, 1);
+                return;
+            }
+            writer.write(1, 1);
+            int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trailing = Long.numberOfTrailingZeros(xor);
+            int previousLeading = buffer.get(position + C_LEADING) & 0xff;
+            int previousTrailing = buffer.get(position + C_TRAILING) & 0xff;
+            if (previousLeading != NO_WINDOW && leading >= previousLeading &&
+                    trailing >= previousTrailing) {
+                writer.write(0, 1);
+                writer.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+                return;
+            }
+            int significant = 64 - leading - trailing;
+            writer.write(1, 1);
+            writer.write(leading, 5);
+            writer.write(significant - 1, 6);
+            writer.write(xor >>> trailing, significant);
+            buffer.put(position + C_LEADING, (byte) leading);
+            buffer.put(position + C_TRAILING, (byte) trailing);
+        }
+
+        private String decodeName(int position) {
+            byte[] name = new byte[buffer.getShort(position + C_NAME_LENGTH)];
+            for (int i = 0; i < name.length; i++)
+                name[i] = buffer.get(position + CHUNK_HEADER + i);
+            try {
+                return new String(name, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static byte[] encode(String series) {
+            try {
+                byte[] name = series.getBytes("UTF-8");
+                return name.length <= MAX_NAME ? name : Arrays.copyOf(name, MAX_NAME);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static int chunkPosition(int chunk) {
+            return HEADER_SIZE + TABLE_SIZE * ENTRY_SIZE + (chunk - 1) * CHUNK_SIZE;
+        }
+
+        private int dataPosition(int position) {
+            return position + CHUNK_HEADER + buffer.getShort(position + C_NAME_LENGTH);
+        }
+    }
+
+    /**
+     * Writes bits most significant first into a zeroed buffer region.
+     */
+    private static class BitWriter {
+        private final ByteBuffer buffer;
+        private final int base;
+        private int position;
+
+        BitWriter(ByteBuffer buffer, int base, int position) {
+            this.buffer = buffer;
+            this.base = base;
+            this.position = position;
+        }
+
+        void write(long value, int bits) {
+            while (bits > 0) {
+                int index = base + (position >>> 3);
+                int free = 8 - (position & 7);
+                int take = Math.min(free, bits);
+                int chunk = (int) (value >>> (bits - take)) & ((1 << take) - 1);
+                buffer.put(index, (byte) (buffer.get(index) | chunk << (free - take)));
+                position += take;
+                bits -= take;
+            }
+        }
+    }
+
+    /**
+     * Reads bits written by {@link BitWriter}.
+     */
+    private static class BitReader {
+        private final ByteBuffer buffer;
+        private final int base;
+        private int position;
+
+        BitReader(ByteBuffer buffer, int base) {
+            this.buffer = buffer;
+            this.base = base;
+        }
+
+        long read(int bits) {
+            long value = 0;
+            while (bits > 0) {
+                int available = 8 - (position & 7);
+                int take = Math.min(available, bits);
+                int b = buffer.get(base + (position >>> 3)) & 0xff;
+                value = value << take | (b >>> (available - take)) & ((1 << take) - 1);
+                position += take;
+                bits -= take;
+            }
+            return value;
+        }
+    }
+}
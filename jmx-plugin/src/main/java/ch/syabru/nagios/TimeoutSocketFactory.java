@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2009-2010 Felix Roethenbacher
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package ch.syabru.nagios;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+/**
+ * RMI socket factory applying a fixed connect and read timeout to all client
+ * sockets, so that a JVM which accepts connections but does not answer
+ * cannot block a thread forever. The timeouts are the same for all checks
+ * of a JVM, as RMI pools its sockets across connections; the timeout of a
+ * check is enforced by its {@link Deadline}.
+ *
+ */
+public class TimeoutSocketFactory extends RMISocketFactory {
+
+    /**
+     * Connect timeout in milliseconds.
+     */
+    public static final int CONNECT_TIMEOUT = 20000;
+    /**
+     * Read timeout in milliseconds. Longer than any remote call of a check
+     * and than the notification fetch timeout.
+     */
+    public static final int READ_TIMEOUT = 300000;
+
+    private static boolean installed;
+
+    /**
+     * Install factory as default RMI socket factory of this JVM, unless
+     * already installed.
+     */
+    public static synchronized void install() {
+        if (installed)
+            return;
+        installed = true;
+        try {
+            RMISocketFactory.setSocketFactory(new TimeoutSocketFactory());
+        } catch (IOException e) {
+            // Another factory is already installed, leave it alone.
+        }
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        return new ServerSocket(port);
+    }
+}